@@ -154,6 +154,19 @@ public class Inflater
    */
   private boolean nowrap;
 
+  /**
+   * The output position after which the next checkpoint is to be
+   * recorded or -1, if none is wanted.
+   */
+  private long checkpointAt = -1;
+  private InflaterCheckpoint checkpoint;
+
+  /**
+   * The number of bits to drop from the input before the next block,
+   * after having resumed from a checkpoint.
+   */
+  private int skipBits;
+
   private StreamManipulator input;
   private OutputWindow outputWindow;
   private InflaterDynHeader dynHeader;
@@ -381,6 +394,9 @@ public class Inflater
     distTree = null;
     isLastBlock = false;
     adler.reset();
+    checkpointAt = -1;
+    checkpoint = null;
+    skipBits = 0;
   }
 
   /**
@@ -450,6 +466,48 @@ public class Inflater
     totalIn += len;
   }
 
+  /**
+   * Asks for a checkpoint to be recorded at the first block boundary
+   * at or after the given output position.
+   * @param out the position or -1, if no checkpoint is needed.
+   */
+  void setCheckpointAt(long out)
+  {
+    checkpointAt = out;
+    checkpoint = null;
+  }
+
+  /**
+   * Returns the checkpoint recorded since the last call, if any.
+   */
+  InflaterCheckpoint getCheckpoint()
+  {
+    InflaterCheckpoint cp = checkpoint;
+    checkpoint = null;
+    return cp;
+  }
+
+  /**
+   * Resumes inflation from a checkpoint.  The caller must then provide
+   * input starting from the byte that holds the checkpoint's bit
+   * position.  Only works for raw (nowrap) streams.
+   * @param cp the checkpoint.
+   */
+  void restore(InflaterCheckpoint cp)
+  {
+    mode = DECODE_BLOCKS;
+    isLastBlock = false;
+    dynHeader = null;
+    litlenTree = null;
+    distTree = null;
+    input.reset();
+    outputWindow.restore(cp.window, cp.windowEnd);
+    totalOut = cp.out;
+    totalIn = cp.bitPosition >> 3;
+    skipBits = (int) (cp.bitPosition & 7);
+    checkpoint = null;
+  }
+
   /**
    * Decodes the deflate header.
    * @return false if more input is needed. 
@@ -657,6 +715,25 @@ public class Inflater
 	      }
 	  }
 
+	if (skipBits > 0)
+	  {
+	    if (input.peekBits(skipBits) < 0)
+	      return false;
+	    input.dropBits(skipBits);
+	    skipBits = 0;
+	  }
+
+	if (checkpointAt >= 0
+	    && totalOut + outputWindow.getAvailable() >= checkpointAt)
+	  {
+	    checkpoint = new InflaterCheckpoint(
+		totalOut + outputWindow.getAvailable(),
+		(totalIn << 3) - input.getRemainingBits(),
+		outputWindow.copyWindow(),
+		outputWindow.getEnd());
+	    checkpointAt = -1;
+	  }
+
 	int type = input.peekBits(3);
 	if (type < 0)
 	  return false;
@@ -0,0 +1,29 @@
+package gnu.zip;
+
+/**
+ * The state of an Inflater at a block boundary: how much has been
+ * inflated, where in the compressed data the next block starts and the
+ * last 32K of output, which the next blocks may refer back to.
+ * Inflation may be resumed from it, instead of from the very beginning.
+ *
+ * @author albus
+ */
+final class InflaterCheckpoint
+{
+  /** The number of bytes inflated before the block */
+  final long out;
+
+  /** The position of the block in the compressed data, in bits */
+  final long bitPosition;
+
+  final byte[] window;
+  final int windowEnd;
+
+  InflaterCheckpoint(long out, long bitPosition, byte[] window, int windowEnd)
+  {
+    this.out = out;
+    this.bitPosition = bitPosition;
+    this.window = window;
+    this.windowEnd = windowEnd;
+  }
+}
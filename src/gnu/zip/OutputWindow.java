@@ -169,6 +169,32 @@ class OutputWindow
     return copied;
   }
 
+  /**
+   * Copies the window, so that inflation could be resumed from here.
+   */
+  public byte[] copyWindow()
+  {
+    byte[] copy = new byte[WINDOW_SIZE];
+    System.arraycopy(window, 0, copy, 0, WINDOW_SIZE);
+    return copy;
+  }
+
+  public int getEnd()
+  {
+    return window_end;
+  }
+
+  /**
+   * Restores a window copied with copyWindow().  Any output
+   * that hasn't been copied out yet is dropped.
+   */
+  public void restore(byte[] copy, int end)
+  {
+    System.arraycopy(copy, 0, window, 0, WINDOW_SIZE);
+    window_end = end;
+    window_filled = 0;
+  }
+
   public void reset() {
     window_filled = window_end = 0;
   }
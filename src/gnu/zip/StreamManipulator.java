@@ -122,6 +122,16 @@ class StreamManipulator
     return window_end - window_start + (bits_in_buffer >> 3);
   }
 
+  /**
+   * Gets the number of bits that have been set as input, but not
+   * dropped yet.
+   * @return the number of bits not processed.
+   */
+  public final int getRemainingBits()
+  {
+    return ((window_end - window_start) << 3) + bits_in_buffer;
+  }
+
   /**
    * Skips to the next byte boundary.
    */
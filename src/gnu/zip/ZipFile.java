@@ -46,6 +46,7 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.Hashtable;
+import java.util.Vector;
 import org.albite.io.RandomReadingFile;
 import org.albite.io.decoders.AlbiteStreamReader;
 import org.albite.io.decoders.Encodings;
@@ -90,6 +91,32 @@ public class ZipFile implements ZipConstants
 
   private boolean closed = false;
 
+  /**
+   * How much output is inflated between two checkpoints.
+   */
+  private static final int CHECKPOINT_INTERVAL = 128 * 1024;
+
+  /**
+   * How much memory a checkpoint takes, i.e. its copy of the window.
+   */
+  public static final int CHECKPOINT_SIZE = 32 * 1024;
+
+  /**
+   * If there is less free memory than that, no more checkpoints are
+   * recorded and the ones there are get dropped.
+   */
+  private static final int LOW_MEMORY = 4 * CHECKPOINT_SIZE;
+
+  /**
+   * As each checkpoint holds a copy of the window, only that many of them
+   * are kept.
+   */
+  private int maxCheckpoints = 8;
+
+  // Maps entry names to a Vector of their checkpoints, sorted by position.
+  private final Hashtable checkpoints = new Hashtable();
+  private int checkpointCount = 0;
+
 
 //  /**
 //   * Helper function to open RandomAccessFile and throw the proper
@@ -308,6 +335,7 @@ public class ZipFile implements ZipConstants
       {
 	closed = true;
 	entries = null;
+	dropCheckpoints();
 	rrf.close();
       }
   }
@@ -445,24 +473,213 @@ public class ZipFile implements ZipConstants
 	return inp;
       case ZipEntry.DEFLATED:
         inp.addDummyByte();
-        final Inflater inf = new Inflater(true);
-        final int sz = (int) entry.getSize();
-        return new InflaterInputStream(inp, inf)
-        {
-          public int available() throws IOException
-          {
-            if (sz == -1)
-              return super.available();
-            if (super.available() != 0)
-              return sz - inf.getTotalOut();
-            return 0;
-          }
-        };
+        return new EntryInflaterInputStream(inp, name, (int) entry.getSize());
       default:
 	throw new ZipException("Unknown compression method " + method);
       }
   }
   
+  /**
+   * Sets how many checkpoints may be kept for all of the entries
+   * together, dropping them all, if there are more than that.
+   * The checkpoints are kept only while the file is open.
+   *
+   * @param max the number of checkpoints; 0 for none at all
+   */
+  public void setMaxCheckpoints(int max)
+  {
+    synchronized (checkpoints)
+      {
+        maxCheckpoints = max;
+        if (checkpointCount > max)
+          dropCheckpoints();
+      }
+  }
+
+  /**
+   * Drops all of the checkpoints, e.g. when memory is running out.
+   */
+  public void dropCheckpoints()
+  {
+    synchronized (checkpoints)
+      {
+        checkpoints.clear();
+        checkpointCount = 0;
+      }
+  }
+
+  /**
+   * Keeps a checkpoint for the given entry.
+   */
+  private void addCheckpoint(String entryName, InflaterCheckpoint cp)
+  {
+    synchronized (checkpoints)
+      {
+        if (maxCheckpoints == 0)
+          return;
+
+        if (Runtime.getRuntime().freeMemory() < LOW_MEMORY)
+          {
+            dropCheckpoints();
+            return;
+          }
+
+        if (checkpointCount >= maxCheckpoints)
+          {
+            /* Make room by dropping the checkpoints of the other entries */
+            Vector own = (Vector) checkpoints.get(entryName);
+            checkpoints.clear();
+            checkpointCount = 0;
+
+            if (own != null)
+              {
+                checkpoints.put(entryName, own);
+                checkpointCount = own.size();
+              }
+
+            if (checkpointCount >= maxCheckpoints)
+              {
+                /*
+                 * The entry is too big for all of its checkpoints to be
+                 * kept, so keep every other one.
+                 */
+                for (int i = own.size() - 2; i >= 0; i -= 2)
+                  own.removeElementAt(i);
+                if (own.size() >= maxCheckpoints)
+                  own.removeAllElements();
+                checkpointCount = own.size();
+              }
+          }
+
+        Vector list = (Vector) checkpoints.get(entryName);
+        if (list == null)
+          {
+            list = new Vector();
+            checkpoints.put(entryName, list);
+          }
+
+        if (!list.isEmpty()
+            && ((InflaterCheckpoint) list.lastElement()).out >= cp.out)
+          return;
+
+        list.addElement(cp);
+        checkpointCount++;
+      }
+  }
+
+  /**
+   * Finds the last checkpoint of the entry in the range (from, to].
+   */
+  private InflaterCheckpoint findCheckpoint(String entryName,
+                                            long from, long to)
+  {
+    synchronized (checkpoints)
+      {
+        Vector list = (Vector) checkpoints.get(entryName);
+        if (list == null)
+          return null;
+
+        InflaterCheckpoint found = null;
+        for (int i = 0; i < list.size(); i++)
+          {
+            InflaterCheckpoint cp = (InflaterCheckpoint) list.elementAt(i);
+            if (cp.out > to)
+              break;
+            if (cp.out > from)
+              found = cp;
+          }
+        return found;
+      }
+  }
+
+  /**
+   * Returns the output position where the next checkpoint of the entry
+   * is to be recorded, or -1, if none are to be recorded.
+   */
+  private long nextCheckpoint(String entryName)
+  {
+    synchronized (checkpoints)
+      {
+        if (maxCheckpoints == 0)
+          return -1;
+
+        Vector list = (Vector) checkpoints.get(entryName);
+        if (list == null || list.isEmpty())
+          return CHECKPOINT_INTERVAL;
+        return ((InflaterCheckpoint) list.lastElement()).out
+          + CHECKPOINT_INTERVAL;
+      }
+  }
+
+  /**
+   * Inflates an entry, recording checkpoints on the way, so that
+   * skipping into the entry later on doesn't need to inflate everything
+   * before the target position.
+   */
+  private final class EntryInflaterInputStream extends InflaterInputStream
+  {
+    private final PartialInputStream inp;
+    private final String entryName;
+    private final int size;
+
+    // Where the compressed data starts in the zip file.
+    private final long dataStart;
+
+    EntryInflaterInputStream(PartialInputStream inp, String entryName,
+                             int size)
+    {
+      super(inp, new Inflater(true));
+      this.inp = inp;
+      this.entryName = entryName;
+      this.size = size;
+      dataStart = inp.getPosition();
+      inf.setCheckpointAt(nextCheckpoint(entryName));
+    }
+
+    public int available() throws IOException
+    {
+      if (size == -1)
+        return super.available();
+      if (super.available() != 0)
+        return size - inf.getTotalOut();
+      return 0;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+      int count = super.read(b, off, len);
+
+      InflaterCheckpoint cp = inf.getCheckpoint();
+      if (cp != null)
+        {
+          addCheckpoint(entryName, cp);
+          inf.setCheckpointAt(nextCheckpoint(entryName));
+        }
+
+      return count;
+    }
+
+    public long skip(long n) throws IOException
+    {
+      if (inf == null)
+        throw new IOException("stream closed");
+
+      long start = inf.getBytesWritten();
+      long target = start + n;
+
+      InflaterCheckpoint cp = findCheckpoint(entryName, start, target);
+      if (cp != null)
+        {
+          inp.seek(dataStart + (cp.bitPosition >> 3));
+          inf.restore(cp);
+          inf.setCheckpointAt(nextCheckpoint(entryName));
+        }
+
+      long skipped = inf.getBytesWritten() - start;
+      return skipped + super.skip(target - inf.getBytesWritten());
+    }
+  }
+
   /**
    * Returns the (path) name of this zip file.
    */
@@ -546,6 +763,11 @@ public class ZipFile implements ZipConstants
       end = rrf.length();
     }
 
+    long getPosition()
+    {
+      return bufferOffset + pos;
+    }
+
     void setLength(long length)
     {
       end = bufferOffset + pos + length;
@@ -118,6 +118,11 @@ class BufferedInputStream extends FilterInputStream {
      */
     protected int marklimit;
 
+    /**
+     * The number of bytes read or skipped from the underlying stream.
+     */
+    private long consumed;
+
     /**
      * Check to make sure that this stream has not been closed
      */
@@ -187,8 +192,10 @@ class BufferedInputStream extends FilterInputStream {
 	    }
         count = pos;
 	int n = in.read(buf, pos, buf.length - pos);
-        if (n > 0)
+        if (n > 0) {
             count = n + pos;
+            consumed += n;
+        }
     }
 
     /**
@@ -223,7 +230,10 @@ class BufferedInputStream extends FilterInputStream {
 	       bytes into the local buffer.  In this way buffered streams will
 	       cascade harmlessly. */
 	    if (len >= buf.length && markpos < 0) {
-		return in.read(b, off, len);
+		int n = in.read(b, off, len);
+		if (n > 0)
+		    consumed += n;
+		return n;
 	    }
 	    fill();
 	    avail = count - pos;
@@ -307,8 +317,12 @@ class BufferedInputStream extends FilterInputStream {
      
         if (avail <= 0) {
             // If no mark position set then don't keep in buffer
-            if (markpos <0) 
-                return in.skip(n);
+            if (markpos <0) {
+                long skipped = in.skip(n);
+                if (skipped > 0)
+                    consumed += skipped;
+                return skipped;
+            }
             
             // Fill in buffer to save bytes for reset
             fill();
@@ -377,6 +391,15 @@ class BufferedInputStream extends FilterInputStream {
 	pos = markpos;
     }
 
+    /**
+     * Returns the number of bytes read or skipped from this stream so far,
+     * taking <code>reset</code> into account. It is the position in the
+     * underlying stream of the next byte to be returned.
+     */
+    public synchronized long getPosition() {
+        return consumed - (count - pos);
+    }
+
     /**
      * Tests if this input stream supports the <code>mark</code> 
      * and <code>reset</code> methods. The <code>markSupported</code> 
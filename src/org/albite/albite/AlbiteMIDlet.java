@@ -2862,7 +2862,8 @@ public class AlbiteMIDlet extends MIDlet
             // write pre-init user code here
             reloadImages = new ChoiceGroup("", Choice.MULTIPLE);//GEN-BEGIN:|881-getter|1|881-postInit
             reloadImages.append("Render images in books", null);
-            reloadImages.setSelectedFlags(new boolean[] { bookCanvas.rendersImages() });//GEN-END:|881-getter|1|881-postInit
+            reloadImages.append("Cache decoded chapters on disk", null);
+            reloadImages.setSelectedFlags(new boolean[] { bookCanvas.rendersImages(), bookCanvas.cachesChapterText() });//GEN-END:|881-getter|1|881-postInit
             // write post-init user code here
         }//GEN-BEGIN:|881-getter|2|
         return reloadImages;
@@ -3651,7 +3652,8 @@ public class AlbiteMIDlet extends MIDlet
                     bookCanvas.updatePageSettings(
                             getPageMargins().getValue(),
                             getLineSpacing().getValue(),
-                            getReloadImages().isSelected(0)
+                            getReloadImages().isSelected(0),
+                            getReloadImages().isSelected(1)
                     );
                 }//GEN-BEGIN:|1064-getter|2|1064-postInit
             });//GEN-END:|1064-getter|2|1064-postInit
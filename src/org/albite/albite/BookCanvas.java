@@ -25,6 +25,7 @@ import org.albite.book.model.book.BookException;
 import org.albite.book.model.book.Bookmark;
 import org.albite.book.model.book.Chapter;
 import org.albite.book.view.Booklet;
+import org.albite.book.view.BookletPrefetcher;
 import org.albite.book.view.Page;
 import org.albite.font.AlbiteFont;
 import org.albite.book.view.DummyPage;
@@ -66,6 +67,11 @@ public class BookCanvas extends Canvas {
     private              int    currentLineSpacing      = LINE_SPACING;
     private boolean             renderImages;
 
+    /*
+     * Whether to keep the decoded chapters in a file next to the book
+     */
+    private boolean             cacheChapterText        = false;
+
     private static final int    DRAG_TRESHOLD           = 40;
     private static final int    MARGIN_CLICK_TRESHOLD   = 60;
     private static final int    HOLDING_TIME_MIN        = 250;
@@ -178,7 +184,6 @@ public class BookCanvas extends Canvas {
     private volatile boolean    repaintClock            = false;
     
     private char[]              chapterNoChars          = {'#', '0', '0', '0'};
-    private int                 pagesCount;
     private final char[]        clockChars = {'0', '0', ':', '0', '0'};
 
     private int                 statusBarHeight;
@@ -225,6 +230,22 @@ public class BookCanvas extends Canvas {
     private ZLTextTeXHyphenator hyphenator;
     //#endif
     private Booklet             chapterBooklet;
+
+    /*
+     * Lay out the next and the previous chapter in the background,
+     * when the reader gets close to the end (or the beginning) of the
+     * current one, or when their adjoining pages are to be shown
+     */
+    private BookletPrefetcher   nextPrefetcher;
+    private BookletPrefetcher   prevPrefetcher;
+
+    /*
+     * The booklet of the chapter the reader has just left, if it's
+     * the other piece of the same file. Its adjoining page is shown
+     * next to the current one, and it's read on, if the reader goes back.
+     */
+    private Booklet             leftBooklet;
+    private static final int    PREFETCH_DISTANCE       = 3;
     private PageCanvas          prevPageCanvas;
     private PageCanvas          currentPageCanvas;
     private PageCanvas          nextPageCanvas;
@@ -563,19 +584,8 @@ public class BookCanvas extends Canvas {
                 progressBarX, h - ((statusBarHeight + progressBarHeight) / 2),
                 progressBarWidth - 1, progressBarHeight);
 
-        final int barFilledWidth;
-
-        if (pagesCount > 0) {
-            barFilledWidth =
-                    (int) (progressBarWidth
-                    * (((float) chapterBooklet.getCurrentPageIndex() - 1)
-                    / pagesCount));
-        } else {
-            /*
-             * This should never happen, how could there be 0 pages?!
-             */
-            barFilledWidth = progressBarWidth;
-        }
+        final int barFilledWidth =
+                (int) (progressBarWidth * chapterBooklet.getProgress());
 
         g.fillRect(
                 progressBarX, h - ((statusBarHeight + progressBarHeight) / 2),
@@ -1093,6 +1103,7 @@ public class BookCanvas extends Canvas {
         switch(mode) {
 //            case MODE_PAGE_SCROLLING:
             case MODE_PAGE_READING:
+                updateAdjacentPages();
                 mode = MODE_PAGE_DRAGGING;
                 /* FALLING THROUGH */
                 
@@ -1203,6 +1214,7 @@ public class BookCanvas extends Canvas {
         closeBook();
 
         currentBook = newBook;
+        currentBook.setTextCacheEnabled(cacheChapterText);
 
         //#if !(TinyMode || TinyModeExport || LightMode || LightModeExport)
         /*
@@ -1228,6 +1240,8 @@ public class BookCanvas extends Canvas {
 
     private void closeBook() {
         if (isBookOpen()) {
+            cancelPrefetching();
+            stopPaginating();
             saveAllOptions();
             try {
                 //#debug
@@ -1280,6 +1294,8 @@ public class BookCanvas extends Canvas {
          */
         holdingValid = false;
 
+        updateAdjacentPages();
+
         if (scrollingTimerTask == null) {
             scrollingTimerTask = new TimerTask() {
                 private int dx;
@@ -1454,12 +1470,10 @@ public class BookCanvas extends Canvas {
 
         switch (type) {
             case DummyPage.TYPE_CHAPTER_PREV:
-                renderWaitCursor();
                 goToLastPage(currentBook.getCurrentChapter().getPrevChapter());
                 break;
 
             case DummyPage.TYPE_CHAPTER_NEXT:
-                renderWaitCursor();
                 goToFirstPage(currentBook.getCurrentChapter().getNextChapter());
                 break;
 
@@ -1476,7 +1490,7 @@ public class BookCanvas extends Canvas {
     private void loadPrevPage() {
         chapterBooklet.goToPrevPage();
 
-        Page prev = chapterBooklet.getPrevPage();
+        Page prev = getSeamlessPage(chapterBooklet.getPrevPage());
 
         if (prev.hasImage()) {
             mode = MODE_PAGE_LOADING;
@@ -1500,12 +1514,14 @@ public class BookCanvas extends Canvas {
 
         repaint();
         serviceRepaints();
+
+        prefetchAdjacentChapter(inverted);
     }
 
     private void loadNextPage() {
         chapterBooklet.goToNextPage();
 
-        Page next = chapterBooklet.getNextPage();
+        Page next = getSeamlessPage(chapterBooklet.getNextPage());
 
         if (next.hasImage()) {
             mode = MODE_PAGE_LOADING;
@@ -1531,6 +1547,228 @@ public class BookCanvas extends Canvas {
 
         repaint();
         serviceRepaints();
+
+        prefetchAdjacentChapter(!inverted);
+    }
+
+    /**
+     * Starts laying out the chapter the reader is heading to, if the
+     * current page is close enough to the end of the current chapter.
+     *
+     * @param forward if the reader is going towards the chapter's end
+     */
+    private void prefetchAdjacentChapter(final boolean forward) {
+        final Chapter current = currentBook.getCurrentChapter();
+        final Chapter chapter;
+
+        if (forward) {
+            if (!chapterBooklet.isNearLastPage(PREFETCH_DISTANCE)) {
+                return;
+            }
+            chapter = current.getNextChapter();
+        } else {
+            if (!chapterBooklet.isNearFirstPage(PREFETCH_DISTANCE)) {
+                return;
+            }
+            chapter = current.getPrevChapter();
+        }
+
+        if (chapter == null
+                || (leftBooklet != null && leftBooklet.getChapter() == chapter)) {
+            return;
+        }
+
+        if (forward) {
+            nextPrefetcher = prefetch(nextPrefetcher, chapter, false);
+        } else {
+            prevPrefetcher = prefetch(prevPrefetcher, chapter, true);
+        }
+    }
+
+    /**
+     * Starts laying out the chapter in the background, unless the
+     * prefetcher is already doing so. If it's laying out another
+     * chapter, it's cancelled.
+     *
+     * @param p the prefetcher in use or null
+     * @param chapter the chapter to lay out
+     * @param fromEnd if the chapter is to be read from its end
+     * @return the prefetcher laying out the chapter
+     */
+    private BookletPrefetcher prefetch(
+            final BookletPrefetcher p,
+            final Chapter chapter,
+            final boolean fromEnd) {
+
+        if (p != null) {
+            if (p.getChapter() == chapter) {
+                return p;
+            }
+            p.cancel();
+        }
+
+        final BookletPrefetcher n = new BookletPrefetcher(
+                currentBook, chapterBooklet, chapter, fromEnd);
+        n.start();
+        return n;
+    }
+
+    /**
+     * If the chapter the dummy page leads to is the continuation of
+     * the current one (or the other way round), returns its adjoining
+     * page instead, so that the text is read through without a break.
+     * Landing on the page still goes through the dummy page, switching
+     * the chapters.
+     *
+     * The first page of the next piece is waited for, if it hasn't been
+     * laid out in the background yet, as only a few pages are needed.
+     * The last page of the previous one needs all of its pages, so the
+     * dummy page is shown, until they have been laid out in the
+     * background.
+     *
+     * @param page the page next to the current one
+     * @return the page to be shown next to the current one
+     */
+    private Page getSeamlessPage(final Page page) {
+        if (!(page instanceof DummyPage)) {
+            return page;
+        }
+
+        final Chapter current = currentBook.getCurrentChapter();
+        final Chapter chapter;
+        Booklet booklet;
+
+        switch (((DummyPage) page).getType()) {
+            case DummyPage.TYPE_CHAPTER_NEXT:
+                chapter = current.getNextChapter();
+                if (chapter == null || !chapter.isContinuation()) {
+                    return page;
+                }
+
+                if (leftBooklet != null && leftBooklet.getChapter() == chapter) {
+                    return leftBooklet.getFirstPage();
+                }
+
+                nextPrefetcher = prefetch(nextPrefetcher, chapter, false);
+
+                if (nextPrefetcher.isDone()) {
+                    booklet = nextPrefetcher.getBooklet();
+                } else {
+                    /*
+                     * The page is needed before the reader can go on
+                     */
+                    final int m = mode;
+                    renderWaitCursor();
+                    booklet = nextPrefetcher.finish();
+                    mode = m;
+                }
+
+                /*
+                 * If null, there's not enough memory for both chapters
+                 */
+                return (booklet == null ? page : booklet.getFirstPage());
+
+            case DummyPage.TYPE_CHAPTER_PREV:
+                chapter = current.getPrevChapter();
+                if (chapter == null || !current.isContinuation()) {
+                    return page;
+                }
+
+                if (leftBooklet != null
+                        && leftBooklet.getChapter() == chapter
+                        && leftBooklet.isPaginatedToEnd()) {
+                    return leftBooklet.getLastPage();
+                }
+
+                prevPrefetcher = prefetch(prevPrefetcher, chapter, true);
+
+                if (!prevPrefetcher.isDone()) {
+                    /*
+                     * Swapped in by updateAdjacentPages(), when ready
+                     */
+                    return page;
+                }
+
+                booklet = prevPrefetcher.getBooklet();
+                return (booklet == null ? page : booklet.getLastPage());
+
+            default:
+                return page;
+        }
+    }
+
+    /**
+     * Takes the booklet of the chapter just left or the one laid out in
+     * the background, if it's for the given chapter. If it's still being
+     * laid out, waits for it. The other ones are dropped.
+     *
+     * @param chapter
+     * @return false, if there is no booklet for this chapter
+     */
+    private boolean usePrefetchedBooklet(final Chapter chapter) {
+        Booklet booklet = null;
+
+        if (leftBooklet != null && leftBooklet.getChapter() == chapter) {
+            booklet = leftBooklet;
+        }
+        leftBooklet = null;
+
+        booklet = takeBooklet(nextPrefetcher, chapter, booklet);
+        nextPrefetcher = null;
+
+        booklet = takeBooklet(prevPrefetcher, chapter, booklet);
+        prevPrefetcher = null;
+
+        if (booklet == null) {
+            return false;
+        }
+
+        booklet.setInverted(inverted);
+        chapterBooklet = booklet;
+        return true;
+    }
+
+    /**
+     * @param p the prefetcher or null
+     * @param chapter the chapter a booklet is needed for
+     * @param booklet the booklet found so far or null
+     * @return the booklet found so far or the one of the prefetcher,
+     * if it's for the given chapter. Otherwise, the prefetcher is
+     * cancelled.
+     */
+    private Booklet takeBooklet(
+            final BookletPrefetcher p,
+            final Chapter chapter,
+            final Booklet booklet) {
+
+        if (p == null) {
+            return booklet;
+        }
+
+        if (booklet != null || p.getChapter() != chapter) {
+            p.cancel();
+            return booklet;
+        }
+
+        if (!p.isDone()) {
+            renderWaitCursor();
+        }
+
+        return p.finish();
+    }
+
+    private void cancelPrefetching() {
+        if (nextPrefetcher != null) {
+            nextPrefetcher.cancel();
+            nextPrefetcher = null;
+        }
+
+        if (prevPrefetcher != null) {
+            prevPrefetcher.cancel();
+            prevPrefetcher = null;
+        }
+
+        leftBooklet = null;
     }
 
     private void loadChapter(final Chapter chapter) {
@@ -1538,16 +1776,39 @@ public class BookCanvas extends Canvas {
         if (chapter != currentBook.getCurrentChapter()
                 || chapterBooklet == null) {
 
-            /* chapter changed or book not loaded at all */
-            currentBook.unloadChaptersBuffers();
+            /*
+             * chapter changed or book not loaded at all. Setting the
+             * current chapter unloads the least recently read chapters,
+             * if there's not enough memory for all of them
+             */
+            stopPaginating();
+            final Booklet left = chapterBooklet;
+            final boolean prefetched = usePrefetchedBooklet(chapter);
+
             currentBook.setCurrentChapter(chapter);
             updateChapterNum(chapter.getNumber() + 1);
-            renderWaitCursor();
-            reflowPages();
+
+            if (!prefetched) {
+                renderWaitCursor();
+                reflowPages();
+            }
+
+            if (left != null && isOtherPiece(left.getChapter(), chapter)) {
+                leftBooklet = left;
+            }
             mode = MODE_PAGE_READING;
         }
     }
 
+    /**
+     * @return true, if one of the chapters is the continuation of
+     * the other
+     */
+    private static boolean isOtherPiece(final Chapter a, final Chapter b) {
+        return (b.isContinuation() && a.getNextChapter() == b)
+                || (a.isContinuation() && b.getNextChapter() == a);
+    }
+
     public final void goToFirstPage(final int chapterNumber) {
         final Chapter c = currentBook.getChapter(chapterNumber);
         goToFirstPage(c);
@@ -1619,8 +1880,8 @@ public class BookCanvas extends Canvas {
     private void renderPages() {
 
         currentPageCanvas.setPage(chapterBooklet.getCurrentPage());
-        prevPageCanvas.setPage(chapterBooklet.getPrevPage());
-        nextPageCanvas.setPage(chapterBooklet.getNextPage());
+        prevPageCanvas.setPage(getSeamlessPage(chapterBooklet.getPrevPage()));
+        nextPageCanvas.setPage(getSeamlessPage(chapterBooklet.getNextPage()));
 
         prevPageCanvas.renderPage(currentScheme);
         currentPageCanvas.renderPage(currentScheme);
@@ -1634,6 +1895,45 @@ public class BookCanvas extends Canvas {
 
         repaint();
         serviceRepaints();
+
+        /*
+         * The pages that are not needed yet are laid out
+         * after the current one has been shown
+         */
+        chapterBooklet.startPaginating();
+    }
+
+    /**
+     * The pages around the one the chapter was opened at are laid out
+     * first and the ones before them are laid out after that. Makes sure
+     * the pages shown next to the current one are still the right ones,
+     * before they are scrolled into view.
+     */
+    private void updateAdjacentPages() {
+        if (chapterBooklet == null) {
+            return;
+        }
+
+        chapterBooklet.paginateBeforeCurrentPage();
+
+        final Page prev = getSeamlessPage(chapterBooklet.getPrevPage());
+        final Page next = getSeamlessPage(chapterBooklet.getNextPage());
+
+        if (prevPageCanvas.getPage() != prev) {
+            prevPageCanvas.setPage(prev);
+            prevPageCanvas.renderPage(currentScheme);
+        }
+
+        if (nextPageCanvas.getPage() != next) {
+            nextPageCanvas.setPage(next);
+            nextPageCanvas.renderPage(currentScheme);
+        }
+    }
+
+    private void stopPaginating() {
+        if (chapterBooklet != null) {
+            chapterBooklet.stopPaginating();
+        }
     }
 
     private void renderWaitCursor() {
@@ -1644,6 +1944,12 @@ public class BookCanvas extends Canvas {
     }
 
     private void reflowPages() {
+        /*
+         * The chapter laid out in advance won't fit the new layout
+         */
+        cancelPrefetching();
+        stopPaginating();
+
         /*
          * Free memory before claiming it!
          */
@@ -1671,8 +1977,6 @@ public class BookCanvas extends Canvas {
                 hyphenator,
                 //#endif
                 currentBook.getParser());
-
-        pagesCount = chapterBooklet.getPagesCount() - 3;
     }
 
     public final void cycleColorSchemes() {
@@ -1880,6 +2184,7 @@ public class BookCanvas extends Canvas {
                     currentMarginWidth = din.readInt();
                     currentLineSpacing = din.readInt();
                     renderImages = din.readBoolean();
+                    cacheChapterText = din.readBoolean();
 
                 } catch (IOException ioe) {
                     //#debug
@@ -1936,6 +2241,7 @@ public class BookCanvas extends Canvas {
                     dout.writeInt(currentMarginWidth);
                     dout.writeInt(currentLineSpacing);
                     dout.writeBoolean(renderImages);
+                    dout.writeBoolean(cacheChapterText);
 
                 } catch (IOException ioe) {
                     //#debug
@@ -2306,7 +2612,15 @@ public class BookCanvas extends Canvas {
     public final void updatePageSettings(
             final int margin,
             final int lineSpacing,
-            final boolean images) {
+            final boolean images,
+            final boolean cacheText) {
+
+        if (cacheText != cacheChapterText) {
+            cacheChapterText = cacheText;
+            if (isBookOpen()) {
+                currentBook.setTextCacheEnabled(cacheText);
+            }
+        }
 
         if (margin == currentMarginWidth
                 && lineSpacing == currentLineSpacing
@@ -2349,6 +2663,10 @@ public class BookCanvas extends Canvas {
         return renderImages;
     }
 
+    public final boolean cachesChapterText() {
+        return cacheChapterText;
+    }
+
     public final Book getCurrentBook() {
         return currentBook;
     }
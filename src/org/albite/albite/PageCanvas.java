@@ -125,6 +125,10 @@ public class PageCanvas {
         return (BUFFER == null ? canvas.getHeight() : BUFFER.getHeight());
     }
 
+    public final Page getPage() {
+        return page;
+    }
+
     public final void setPage(final Page page) {
         this.page = page;
     }
@@ -3,6 +3,7 @@ package org.albite.book.model.book;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -16,9 +17,11 @@ import javax.microedition.lcdui.StringItem;
 import org.albite.albite.AlbiteMIDlet;
 import org.albite.book.model.parser.HTMLTextParser;
 import org.albite.book.model.parser.PlainTextParser;
+import org.albite.book.model.parser.StyleSheet;
 import org.albite.book.model.parser.TextParser;
 import org.albite.io.PartitionedConnection;
 import org.albite.io.RandomReadingFile;
+import org.albite.io.decoders.EncodingDetector;
 import org.albite.util.archive.Archive;
 import org.albite.util.archive.File;
 import org.albite.util.archive.folder.ArchiveFolder;
@@ -90,6 +93,42 @@ public abstract class Book
     protected FileConnection        bookmarksFile            = null;
     protected String                bookURL                  = null;
 
+    /*
+     * .alc cache of the decoded chapters, used only if enabled
+     */
+    protected ChapterTextCache      textCache                = null;
+
+    /*
+     * .ali index of the files split into several chapters. It's used only
+     * while the chapters are being loaded.
+     */
+    private ChapterSplitIndex       splitIndex               = null;
+
+    /*
+     * The parser for the XML files of the book, i.e. the bookmarks and
+     * the files in an EPUB, so that it's made only once. It's used only
+     * while the book is being opened.
+     */
+    private KXmlParser              xmlParser                = null;
+
+    /*
+     * Buffers of the recently read chapters
+     */
+    protected final ChapterBufferCache bufferCache =
+            new ChapterBufferCache(MAXIMUM_CHAPTER_BUFFERS_SIZE);
+
+    /*
+     * The encoding detected for one of the chapters is used for the rest
+     */
+    protected final EncodingDetector encodingDetector =
+            new EncodingDetector();
+
+    /*
+     * The styles read from the stylesheets of the book, or null,
+     * if it has none
+     */
+    protected StyleSheet            styleSheet               = null;
+
     /*
      * Chapters
      */
@@ -108,6 +147,11 @@ public abstract class Book
         if (bookmarksFile != null) {
             bookmarksFile.close();
         }
+
+        if (textCache != null) {
+            textCache.close();
+            textCache = null;
+        }
     }
 
     //#if !(TinyMode || TinyModeExport || LightMode || LightModeExport)
@@ -159,29 +203,110 @@ public abstract class Book
     }
 
     /**
-     * unload all chapters from memory
+     * Sets how much memory the text buffers of the recently read chapters
+     * may take. The current chapter is always kept loaded.
+     *
+     * @param budget the budget in bytes
+     */
+    public final void setChapterBuffersBudget(final int budget) {
+        bufferCache.setBudget(budget);
+    }
+
+    public final int getChapterBuffersBudget() {
+        return bufferCache.getBudget();
+    }
+
+    /**
+     * Makes room for a chapter that is about to be loaded in advance,
+     * e.g. while the user is still reading the current one.
+     *
+     * @param chapter the chapter to be loaded
+     * @return false, if there is not enough memory for it
      */
-    public final void unloadChaptersBuffers() {
-        Chapter chap = chapters[0];
-        while (chap != null) {
-            chap.unload();
-            chap = chap.getNextChapter();
+    public final boolean reserveChapterBuffer(final Chapter chapter) {
+        return bufferCache.reserve(chapter);
+    }
+
+    /**
+     * Enables or disables keeping the decoded text of the chapters in a
+     * .alc file next to the book, so that they could be loaded faster
+     * the next time.
+     *
+     * @param enabled whether the cache should be used
+     */
+    public final void setTextCacheEnabled(final boolean enabled) {
+        if (enabled == (textCache != null)) {
+            return;
+        }
+
+        if (enabled) {
+            textCache = ChapterTextCache.open(bookURL,
+                    RandomReadingFile.changeExtension(bookURL, ".alc"));
+
+            if (textCache == null) {
+                return;
+            }
+        } else {
+            try {
+                textCache.close();
+            } catch (IOException e) {}
+            textCache = null;
+        }
+
+        for (int i = 0; i < chapters.length; i++) {
+            chapters[i].setTextCache(textCache);
         }
     }
 
     protected void loadUserFiles(final String filename)
             throws BookException, IOException {
+        if (splitIndex != null) {
+            splitIndex.close();
+            splitIndex = null;
+        }
+
         /*
          * Set default chapter
          */
         currentChapter = chapters[0];
 
+        for (int i = 0; i < chapters.length; i++) {
+            chapters[i].setBufferCache(bufferCache);
+            chapters[i].setEncodingDetector(encodingDetector);
+            chapters[i].setStyleSheet(styleSheet);
+        }
+
         bookSettingsFile = loadUserFile(
                 RandomReadingFile.changeExtension(filename, ".alx"));
         bookmarksFile = loadUserFile(
                 RandomReadingFile.changeExtension(filename, ".alb"));
 
         loadUserData();
+
+        /*
+         * All the XML files have been read
+         */
+        xmlParser = null;
+    }
+
+    /**
+     * Returns the parser for the XML files of the book. It's the same one
+     * each time, while the book is being opened.
+     *
+     * @param processNamespaces if the parser is to process namespaces
+     * @return the parser, ready for setInput()
+     */
+    protected final KXmlParser getXmlParser(final boolean processNamespaces) {
+        if (xmlParser == null) {
+            xmlParser = new KXmlParser();
+        }
+
+        try {
+            xmlParser.setFeature(
+                    KXmlParser.FEATURE_PROCESS_NAMESPACES, processNamespaces);
+        } catch (XmlPullParserException e) {}
+
+        return xmlParser;
     }
 
     protected FileConnection loadUserFile(final String filename)
@@ -233,6 +358,14 @@ public abstract class Book
                     chapter.setCurrentPosition(in.readInt());
                     chapter.setEncoding(in.readUTF());
                 }
+
+                try {
+                    encodingDetector.setVerdict(in.readUTF());
+                } catch (EOFException e) {
+                    /*
+                     * Saved by a version without the detected encoding
+                     */
+                }
             } finally {
                 in.close();
             }
@@ -256,7 +389,7 @@ public abstract class Book
         Element kid;
 
         try {
-            parser = new KXmlParser();
+            parser = getXmlParser(false);
             parser.setInput(new InputStreamReader(in, "UTF-8"));
 
             doc = new Document();
@@ -363,6 +496,14 @@ public abstract class Book
                         out.writeInt(chapter.getCurrentPosition());
                         out.writeUTF(chapter.getEncoding());
                     }
+
+                    /*
+                     * The detected encoding goes last, so that it could be
+                     * ignored by older versions
+                     */
+                    final String verdict = encodingDetector.getVerdict();
+                    out.writeUTF(verdict == null ? "" : verdict);
+
                     writeData(baos.toByteArray(), bookSettingsFile);
                 } finally {
                     out.close();
@@ -538,6 +679,7 @@ public abstract class Book
 
     public final void setCurrentChapter(final Chapter bc) {
         currentChapter = bc;
+        bufferCache.use(bc);
     }
 
     public final int getCurrentChapterPosition() {
@@ -545,13 +687,27 @@ public abstract class Book
     }
 
     public final void setCurrentChapterPos(final int pos) {
-        if (pos < 0 || pos >= currentChapter.getTextBuffer().length) {
+        if (pos < 0 || pos >= currentChapter.getTextBuffer().length()) {
             throw new IllegalArgumentException("Position is wrong");
         }
 
         currentChapter.setCurrentPosition(pos);
     }
 
+    /**
+     * Creates a parser of the same kind as the book's own one, so that
+     * another chapter could be laid out at the same time.
+     *
+     * @return the new parser
+     */
+    public final TextParser createParser() {
+        if (parser instanceof HTMLTextParser) {
+            return new HTMLTextParser();
+        }
+
+        return new PlainTextParser();
+    }
+
     public final TextParser getParser() {
         return parser;
     }
@@ -606,48 +762,65 @@ public abstract class Book
             final Vector chapters
             ) throws IOException, BookException {
 
+        /*
+         * The pieces of a split file are listed under its title,
+         * so the files are counted rather than the chapters
+         */
+        int files = 0;
+        for (int i = 0; i < chapters.size(); i++) {
+            if (!((Chapter) chapters.elementAt(i)).isContinuation()) {
+                files++;
+            }
+        }
+
+        final String title = "Chapter #" + (files + 1);
+
         if (chapterFilesize <= maxChapterSize) {
             chapters.addElement(new Chapter(
                         chapterFile, chapterFilesize, pathReference,
-                        "Chapter #" + (chapterNumber + 1),
-                        processHtmlEntities, chapterNumber)
+                        title, processHtmlEntities, chapterNumber)
             );
 
             return;
 
         } else {
 
-            int kMax = chapterFilesize / maxChapterSize;
-            if (chapterFilesize % maxChapterSize > 0) {
-                kMax++;
+            if (splitIndex == null) {
+                splitIndex = ChapterSplitIndex.open(bookURL,
+                        RandomReadingFile.changeExtension(bookURL, ".ali"));
             }
 
-            int left = chapterFilesize;
+            final int[] splits = splitIndex.getSplits(chapterNumber,
+                    chapterFile, chapterFilesize, maxChapterSize,
+                    processHtmlEntities, encodingDetector);
+
             int chapSize;
 
-            for (int k = 0; k < kMax; k++) {
-                chapSize = (left > maxChapterSize ? maxChapterSize : left);
-                chapters.addElement(new Chapter(
+            for (int k = 0; k < splits.length; k++) {
+                chapSize = (k + 1 < splits.length
+                        ? splits[k + 1] : chapterFilesize) - splits[k];
+
+                final Chapter piece = new Chapter(
                         new PartitionedConnection(
-                            chapterFile, k * maxChapterSize, chapSize),
+                            chapterFile, splits[k], chapSize),
                         chapSize,
                         pathReference,
-                        "Chapter #" + (chapterNumber + k + 1),
+                        title + " (" + (k + 1) + "/" + splits.length + ")",
                         processHtmlEntities,
                         chapterNumber + k
-                        ));
-                left -= maxChapterSize;
+                        );
+
+                piece.setContinuation(k > 0);
+                chapters.addElement(piece);
             }
         }
     }
 
     /*
      * The maximum file size after which the Filebook is split
-     * forcefully into chapters. The split is a dumb one, for it splits
-     * on bytes, not characters or tags, i.e. it may split a utf-8 character
-     * in two halves, making it unreadable (so that it would be visible as a
-     * question mark) or it may split an HTML tag (so that it would become
-     * useless and be shown in the text of the chapter)
+     * forcefully into chapters. The pieces are cut at the end of a line,
+     * a tag or a word (see ChapterSplitIndex), so that no character or tag
+     * is split in two halves.
      */
     protected final int getMaximumTxtFilesize(final boolean lightMode) {
         return (lightMode ? 16 * 1024 : 64 * 1024);
@@ -672,6 +845,39 @@ public abstract class Book
         public static final int MAXIMUM_HTML_FILESIZE = 192 * 1024;
     //#endif
 
+    /*
+     * How much memory the buffers of the recently read chapters may take
+     * by default. The current chapter is always kept, so with no budget
+     * only it is held in memory. It should hold the text of at least two
+     * pieces of a split file, i.e. two chars for each of their bytes, so
+     * that the next one could be laid out while the current one is read.
+     */
+    //#if (TinyMode || TinyModeExport)
+//#         public static final int MAXIMUM_CHAPTER_BUFFERS_SIZE =
+//#                 2 * 2 * (MAXIMUM_HTML_FILESIZE + 1);
+    //#elif (LightMode || LightModeExport)
+//#         public static final int MAXIMUM_CHAPTER_BUFFERS_SIZE = 256 * 1024;
+    //#elif (HDMode || HDModeExport)
+//#         public static final int MAXIMUM_CHAPTER_BUFFERS_SIZE = 3 * 1024 * 1024;
+    //#else
+        public static final int MAXIMUM_CHAPTER_BUFFERS_SIZE = 1024 * 1024;
+    //#endif
+
+    /*
+     * How many checkpoints may be kept for skipping into the files of an
+     * EPUB. Each one holds a copy of the 32 KB window of the inflater,
+     * which is taken off the budget of the chapter buffers.
+     */
+    //#if (TinyMode || TinyModeExport)
+//#         public static final int MAXIMUM_ZIP_CHECKPOINTS = 0;
+    //#elif (LightMode || LightModeExport)
+//#         public static final int MAXIMUM_ZIP_CHECKPOINTS = 2;
+    //#elif (HDMode || HDModeExport)
+//#         public static final int MAXIMUM_ZIP_CHECKPOINTS = 16;
+    //#else
+        public static final int MAXIMUM_ZIP_CHECKPOINTS = 8;
+    //#endif
+
     protected final int getMaximumHtmlFilesize(final boolean lightMode) {
         return (lightMode ? 16 * 1024 : 192 * 1024);
     }
@@ -1,15 +1,22 @@
 package org.albite.book.model.book;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.Reader;
 import java13.io.BufferedInputStream;
 import javax.microedition.io.InputConnection;
 import org.albite.albite.AlbiteMIDlet;
+import org.albite.book.model.parser.HTMLTextParser;
+import org.albite.book.model.parser.PlainTextParser;
+import org.albite.book.model.parser.StyleSheet;
+import org.albite.book.model.parser.TextParser;
+import org.albite.book.model.parser.TokenStream;
 import org.albite.io.RandomReadingFile;
 import org.albite.io.decoders.AlbiteStreamReader;
+import org.albite.io.decoders.EncodingDetector;
 import org.albite.io.decoders.Encodings;
+import org.albite.io.html.HTMLSubstitues;
 import org.albite.io.html.XhtmlStreamReader;
+import org.albite.lang.TextBuffer;
 import org.albite.util.archive.File;
 
 public class Chapter {
@@ -33,7 +40,56 @@ public class Chapter {
     private Chapter                 prevChapter;
     private Chapter                 nextChapter;
 
-    private char[]                  textBuffer;
+    /*
+     * How many chars are decoded at a time, when the text
+     * is being streamed into the buffer
+     */
+    private static final int        TEXT_BLOCK_SIZE = 2048;
+
+    /*
+     * States of the scanner looking for safe places to stop parsing
+     */
+    private static final byte       SCAN_TEXT       = 0;
+    private static final byte       SCAN_TAG        = 1;
+    private static final byte       SCAN_COMMENT    = 2;
+
+    private TextBuffer              textBuffer;
+
+    /*
+     * The parsed text, so that it wouldn't be parsed again on reflow
+     */
+    private TokenStream             tokens;
+
+    /*
+     * The chars are decoded here, before being added to the buffer
+     */
+    private char[]                  textBlock;
+
+    /*
+     * Number of chars decoded into the buffer so far
+     */
+    private int                     textDecoded;
+
+    /*
+     * Number of chars that are ready to be parsed, i.e. the text up to
+     * this position doesn't end in the middle of a word, a tag
+     * or a comment.
+     */
+    private int                     textAvailable;
+    private boolean                 textLoaded;
+
+    private BufferedInputStream     textStream;
+    private Reader                  textReader;
+    private AlbiteStreamReader      textDecoder;
+
+    /*
+     * If the xml declaration was read for the encoding, when the file
+     * was opened, so that it's read the same way, if it's opened again
+     */
+    private boolean                 textXmlDecl;
+
+    private byte                    scanState;
+    private int                     scanPosition;
 
     private final boolean           processHtmlEntities;
 
@@ -41,6 +97,47 @@ public class Chapter {
 
     private final int               number;
 
+    /*
+     * Where the decoded text is kept between sessions, if enabled
+     */
+    private ChapterTextCache        textCache;
+
+    /*
+     * The chapters whose buffers are kept in memory
+     */
+    private ChapterBufferCache      bufferCache;
+
+    /*
+     * Guesses the encoding, if it's AUTO_ENCODING. It's shared by the
+     * chapters of the book.
+     */
+    private EncodingDetector        encodingDetector;
+
+    /*
+     * The styles of the tags and classes of the book, or null
+     */
+    private StyleSheet              styleSheet;
+
+    /*
+     * How many chars there are at least between two points of the
+     * position map
+     */
+    private static final int        POSITION_MAP_INTERVAL = 8192;
+
+    /*
+     * Pairs of byte offsets in the chapter's file and the offsets of the
+     * chars decoded from there. Decoding may be restarted from any of
+     * these points with the current encoding.
+     */
+    private int[]                   positionMap;
+    private int                     positionMapSize;
+
+    /*
+     * If the chapter is a piece of a file that was too big, other than
+     * the first one, i.e. its text goes on from the previous chapter
+     */
+    private boolean                 continuation    = false;
+
     public Chapter(
             final InputConnection file,
             final int fileSize,
@@ -69,6 +166,14 @@ public class Chapter {
         prevChapter = bc;
     }
 
+    public final boolean isContinuation() {
+        return continuation;
+    }
+
+    final void setContinuation(final boolean continuation) {
+        this.continuation = continuation;
+    }
+
     public final Chapter getNextChapter() {
         return nextChapter;
     }
@@ -77,77 +182,476 @@ public class Chapter {
         nextChapter = bc;
     }
 
-    public final char[] getTextBuffer() {
+    /**
+     * Returns the whole text of the chapter, decoding the part of it
+     * that hasn't been decoded yet.
+     *
+     * @return the text of the chapter
+     */
+    public final TextBuffer getTextBuffer() {
+        while (loadMoreText()) {}
+        return textBuffer;
+    }
+
+    /**
+     * Returns the tokens of the chapter's text. They are recorded as
+     * they are needed and are kept as long as the text is.
+     *
+     * @return the tokens parsed so far
+     */
+    public final synchronized TokenStream getTokens() {
+        if (tokens == null) {
+            tokens = new TokenStream(processHtmlEntities
+                    ? (TextParser) new HTMLTextParser(styleSheet)
+                    : new PlainTextParser());
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Returns the buffer holding the text decoded so far. Only the first
+     * {@link #getAvailableTextSize()} chars of it are ready for parsing.
+     *
+     * @return the (partially decoded) text buffer
+     */
+    public final TextBuffer getAvailableText() {
         if (textBuffer == null) {
-            try {
-                InputStream in = file.openInputStream();
-                Reader r = null;
-                AlbiteStreamReader asr = null;
+            loadMoreText();
+        }
+
+        return textBuffer;
+    }
 
-                final boolean auto =
-                        AUTO_ENCODING.equalsIgnoreCase(currentEncoding);
+    /**
+     * @return the number of chars that could be parsed right away
+     */
+    public final int getAvailableTextSize() {
+        if (textBuffer == null) {
+            loadMoreText();
+        }
 
-                if (auto) {
-                    currentEncoding = Encodings.DEFAULT;
-                }
+        return textAvailable;
+    }
 
-                if (processHtmlEntities) {
-                    if (!in.markSupported()) {
-                        in = new BufferedInputStream(in);
-                    }
+    public final boolean isTextLoaded() {
+        return textLoaded;
+    }
+
+    /**
+     * @return the size of the text, or an estimate for it, based on the
+     * size of the file, if the text hasn't been fully decoded yet
+     */
+    public final int getTextSizeEstimate() {
+        return (textLoaded ? textDecoded : fileSize);
+    }
+
+    /**
+     * Decodes another piece of the chapter, so that more text becomes
+     * available for parsing. The first call opens the chapter's file.
+     *
+     * @return false, if the whole chapter had already been decoded
+     */
+    public final boolean loadMoreText() {
+        if (bufferCache == null) {
+            return decodeMoreText();
+        }
+
+        /*
+         * Marked before the chapter is locked, so that the cache never
+         * waits for it, while the chapter is waiting for the cache
+         */
+        bufferCache.startDecoding(this);
+        try {
+            return decodeMoreText();
+        } finally {
+            bufferCache.stopDecoding(this);
+        }
+    }
+
+    /**
+     * Only one thread at a time decodes the chapter, and it's not
+     * parked or unloaded meanwhile.
+     */
+    private synchronized boolean decodeMoreText() {
+        if (textLoaded) {
+            return false;
+        }
 
+        if (textBuffer == null) {
+            openText();
+
+            if (textLoaded) {
+                return true;
+            }
+        } else if (textReader == null) {
+            resumeText();
+
+            if (textLoaded) {
+                return true;
+            }
+        }
+
+        final int available = textAvailable;
+
+        try {
+            do {
+                final int read =
+                        textReader.read(textBlock, 0, TEXT_BLOCK_SIZE);
+
+                if (read > 0) {
+                    appendText(read);
+                    textDecoded += read;
+                    mapPosition();
+                    scanText();
+                }
+
+                if (read < TEXT_BLOCK_SIZE) {
                     /*
-                     * Warning: if the XhtmlStreamReader is not used,
-                     * then the HtmlParser won't work, as
-                     * it relies on modified versions of '<' and '>'
+                     * EOF
                      */
-                    asr = new AlbiteStreamReader(in, currentEncoding);
-                    r = new XhtmlStreamReader(asr, auto, true);
+                    closeText();
 
-                } else {
-                    asr = new AlbiteStreamReader(in, currentEncoding);
-                    r = asr;
+                    if (textCache != null) {
+                        textCache.save(number, currentEncoding, textBuffer);
+                    }
+                    return true;
                 }
+            } while (textAvailable == available);
+        } catch (IOException e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+            closeText();
+        } catch (Exception e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+            closeText();
+        }
 
-                try {
-                    textBuffer = new char[fileSize];
-                    int read = r.read(textBuffer);
+        return true;
+    }
 
-                    if (read == -1) {
-                        return new char[0];
-                    }
+    /**
+     * Adds the decoded block to the buffer. The buffer grows a block at a
+     * time, so if memory runs out, the other chapters are unloaded to make
+     * room and the block is added again.
+     */
+    private void appendText(final int read) {
+        final int length = textBuffer.length();
+
+        try {
+            textBuffer.append(textBlock, 0, read);
+        } catch (OutOfMemoryError e) {
+            if (bufferCache == null) {
+                throw e;
+            }
 
-                    if (read < fileSize) {
-                        char[] res = new char[read];
-                        System.arraycopy(textBuffer, 0, res, 0, read);
-                        textBuffer = res;
-                    }
+            bufferCache.release(this);
 
-                    currentEncoding = asr.getEncoding();
+            /*
+             * Skip whatever had been added before running out of memory
+             */
+            final int added = textBuffer.length() - length;
+            textBuffer.append(textBlock, added, read - added);
+        }
+    }
+
+    private void openText() {
+        textDecoded = 0;
+        textAvailable = 0;
+        scanState = SCAN_TEXT;
+        scanPosition = 0;
+
+        if (textCache != null
+                && !AUTO_ENCODING.equalsIgnoreCase(currentEncoding)) {
+            final TextBuffer text = textCache.load(number, currentEncoding);
+
+            if (text != null) {
+                textBuffer = text;
+                textDecoded = text.length();
+                closeText();
+                return;
+            }
+        }
 
-                } catch (IOException e) {
-                    //#debug
-                    AlbiteMIDlet.LOGGER.log(e);
-                    textBuffer = new char[0];
-                } finally {
-                    in.close();
+        try {
+            /*
+             * The stream keeps count of the bytes decoded so far,
+             * which is needed for the position map
+             */
+            final BufferedInputStream in =
+                    new BufferedInputStream(file.openInputStream());
+
+            final boolean auto =
+                    AUTO_ENCODING.equalsIgnoreCase(currentEncoding);
+
+            if (auto) {
+                currentEncoding = Encodings.DEFAULT;
+
+                if (encodingDetector != null) {
+                    final String detected = encodingDetector.detect(in);
+
+                    if (detected != null) {
+                        currentEncoding = detected;
+                    }
                 }
-            } catch (Exception e) {
+            }
+
+            textStream = in;
+            textXmlDecl = auto;
+            positionMapSize = 0;
+
+            if (processHtmlEntities) {
                 /*
-                 * couldn't load the chapter,
-                 * it will be rendered as "empty chapter"
+                 * Warning: if the XhtmlStreamReader is not used,
+                 * then the HtmlParser won't work, as
+                 * it relies on modified versions of '<' and '>'
                  */
-                //#debug
-                AlbiteMIDlet.LOGGER.log(e);
-                textBuffer = new char[0];
+                textDecoder = new AlbiteStreamReader(in, currentEncoding);
+                textReader = new XhtmlStreamReader(textDecoder, auto, true);
+
+            } else {
+                textDecoder = new AlbiteStreamReader(in, currentEncoding);
+                textReader = textDecoder;
             }
+
+            /*
+             * The xml declaration has already been read, if there was one
+             */
+            currentEncoding = textDecoder.getEncoding();
+
+            textBuffer = new TextBuffer();
+            textBlock = new char[TEXT_BLOCK_SIZE];
+        } catch (Exception e) {
+            /*
+             * couldn't load the chapter,
+             * it will be rendered as "empty chapter"
+             */
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+            closeText();
         }
+    }
 
-        return textBuffer;
+    /**
+     * Closes the chapter's file, if its text hasn't been fully decoded,
+     * keeping the text decoded so far. The file is opened again, when
+     * more text is needed. Used for the chapters, which are kept in
+     * memory, but are not being read, so that they don't hold on to
+     * their streams, e.g. the inflater of a zip entry.
+     */
+    final synchronized void park() {
+        if (textStream == null) {
+            return;
+        }
+
+        try {
+            textStream.close();
+        } catch (IOException e) {}
+
+        textStream = null;
+        textReader = null;
+        textDecoder = null;
+        textBlock = null;
+    }
+
+    /**
+     * Opens the file of a parked chapter again and goes on decoding from
+     * the last point in the position map, dropping the chars after it,
+     * which have already been decoded. If there is no such point, the
+     * file is read from its start, as it was the first time.
+     */
+    private void resumeText() {
+        final int i = findMappedPosition(textDecoded);
+        final int bytePosition = (i < 0 ? 0 : positionMap[i * 2]);
+        int decoded = (i < 0 ? 0 : positionMap[i * 2 + 1]);
+
+        try {
+            final BufferedInputStream in =
+                    new BufferedInputStream(file.openInputStream());
+
+            textStream = in;
+
+            if (bytePosition > 0) {
+                skipBytes(in, bytePosition);
+            }
+
+            textDecoder = new AlbiteStreamReader(in, currentEncoding);
+
+            if (!processHtmlEntities) {
+                textReader = textDecoder;
+            } else if (bytePosition == 0) {
+                textReader = new XhtmlStreamReader(
+                        textDecoder, textXmlDecl, true);
+            } else {
+                final XhtmlStreamReader reader =
+                        new XhtmlStreamReader(textDecoder, false, false);
+                readEntities(reader);
+                textReader = reader;
+            }
+
+            textBlock = new char[TEXT_BLOCK_SIZE];
+
+            int read;
+            while (decoded < textDecoded) {
+                read = textReader.read(textBlock, 0,
+                        Math.min(TEXT_BLOCK_SIZE, textDecoded - decoded));
+
+                if (read <= 0) {
+                    throw new IOException("The file has changed");
+                }
+
+                decoded += read;
+            }
+        } catch (Exception e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+            closeText();
+        }
+    }
+
+    /**
+     * Reads the entities declared in the doctype of the file, for a
+     * reader that starts in the middle of it.
+     */
+    private void readEntities(final XhtmlStreamReader reader)
+            throws IOException {
+
+        final BufferedInputStream in =
+                new BufferedInputStream(file.openInputStream());
+
+        try {
+            reader.useEntitiesOf(new XhtmlStreamReader(
+                    new AlbiteStreamReader(in, currentEncoding),
+                    textXmlDecl, true));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void skipBytes(final BufferedInputStream in, int left)
+            throws IOException {
+
+        long skipped;
+
+        while (left > 0) {
+            skipped = in.skip(left);
+
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("The file has changed");
+                }
+                skipped = 1;
+            }
+
+            left -= skipped;
+        }
+    }
+
+    /**
+     * Finishes the decoding of the text and trims the buffer.
+     */
+    private void closeText() {
+        if (textStream != null) {
+            try {
+                textStream.close();
+            } catch (IOException e) {}
+        }
+
+        textStream = null;
+        textReader = null;
+        textDecoder = null;
+        textBlock = null;
+
+        if (textBuffer == null) {
+            textBuffer = new TextBuffer();
+            textDecoded = 0;
+        } else {
+            textBuffer.trim();
+        }
+
+        textAvailable = textDecoded;
+        textLoaded = true;
     }
 
-    public final void unload() {
+    /**
+     * Moves textAvailable to the last point in the decoded text, where
+     * the parser could safely stop, i.e. one that is not inside
+     * a word, a tag or a comment.
+     */
+    private void scanText() {
+        final TextBuffer buffer = textBuffer;
+        final int size = textDecoded;
+
+        int i = scanPosition;
+        char ch;
+
+        for (; i < size; i++) {
+            ch = buffer.charAt(i);
+
+            switch (scanState) {
+                case SCAN_TEXT:
+                    if (ch == ' ' || ch == '\t' || ch == '\n') {
+                        textAvailable = i + 1;
+                    } else if (ch == HTMLSubstitues.START_TAG_CHAR
+                            && processHtmlEntities) {
+
+                        if (i + 3 >= size) {
+                            /*
+                             * Can't tell if it's a comment yet
+                             */
+                            scanPosition = i;
+                            return;
+                        }
+
+                        textAvailable = i;
+
+                        if (       buffer.charAt(i + 1) == '!'
+                                && buffer.charAt(i + 2) == '-'
+                                && buffer.charAt(i + 3) == '-') {
+                            scanState = SCAN_COMMENT;
+                            i += 3;
+                        } else {
+                            scanState = SCAN_TAG;
+                        }
+                    }
+                    break;
+
+                case SCAN_TAG:
+                    if (ch == HTMLSubstitues.END_TAG_CHAR) {
+                        scanState = SCAN_TEXT;
+                    }
+                    break;
+
+                case SCAN_COMMENT:
+                    if (ch == HTMLSubstitues.END_TAG_CHAR
+                            && buffer.charAt(i - 1) == '-'
+                            && buffer.charAt(i - 2) == '-') {
+                        scanState = SCAN_TEXT;
+                    }
+                    break;
+            }
+        }
+
+        scanPosition = i;
+    }
+
+    public final synchronized void unload() {
+        if (textStream != null) {
+            try {
+                textStream.close();
+            } catch (IOException e) {}
+        }
+
+        textStream = null;
+        textReader = null;
+        textDecoder = null;
+        textBlock = null;
         textBuffer = null;
+        tokens = null;
+        textDecoded = 0;
+        textAvailable = 0;
+        textLoaded = false;
     }
 
     public final int getCurrentPosition() {
@@ -162,10 +666,108 @@ public class Chapter {
         currentPosition = pos;
     }
 
+    final void setTextCache(final ChapterTextCache textCache) {
+        this.textCache = textCache;
+    }
+
+    final void setBufferCache(final ChapterBufferCache bufferCache) {
+        this.bufferCache = bufferCache;
+    }
+
+    final void setEncodingDetector(final EncodingDetector detector) {
+        this.encodingDetector = detector;
+    }
+
+    final void setStyleSheet(final StyleSheet styleSheet) {
+        this.styleSheet = styleSheet;
+    }
+
+    /**
+     * @return the number of bytes taken by the text buffer and its tokens
+     */
+    final int getBufferSize() {
+        final TextBuffer buffer = textBuffer;
+        final TokenStream parsed = tokens;
+        return (buffer == null ? 0 : buffer.getMemorySize())
+                + (parsed == null ? 0 : parsed.getMemorySize());
+    }
+
+    /**
+     * @return the number of bytes the text buffer takes or will take,
+     * if the chapter hasn't been loaded yet
+     */
+    final int getBufferSizeEstimate() {
+        final TextBuffer buffer = textBuffer;
+        return (buffer == null ? (fileSize + 1) * 2 : buffer.getMemorySize());
+    }
+
     public final int getNumber() {
         return number;
     }
 
+    /**
+     * Adds a point to the position map, if enough text has been
+     * decoded since the last one.
+     */
+    private void mapPosition() {
+        final int last = (positionMapSize == 0
+                ? 0 : positionMap[positionMapSize - 1]);
+
+        if (textDecoded - last < POSITION_MAP_INTERVAL) {
+            return;
+        }
+
+        final int undecoded = textDecoder.getUndecodedBytes();
+
+        if (undecoded < 0
+                || (textReader instanceof XhtmlStreamReader
+                    && ((XhtmlStreamReader) textReader).isCharPending())) {
+            /*
+             * Stopped between the surrogates of a char, try after
+             * the next block
+             */
+            return;
+        }
+
+        if (positionMap == null) {
+            positionMap = new int[32];
+        } else if (positionMapSize == positionMap.length) {
+            final int[] map = new int[positionMap.length * 2];
+            System.arraycopy(positionMap, 0, map, 0, positionMapSize);
+            positionMap = map;
+        }
+
+        positionMap[positionMapSize++] =
+                (int) textStream.getPosition() - undecoded;
+        positionMap[positionMapSize++] = textDecoded;
+    }
+
+    /**
+     * Finds the nearest point in the position map at or before the
+     * given char position.
+     *
+     * @param position the char position
+     * @return the index of the point or -1, if it's the start of the file
+     */
+    private int findMappedPosition(final int position) {
+        int low = 0;
+        int high = positionMapSize / 2 - 1;
+        int res = -1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+
+            if (positionMap[mid * 2 + 1] <= position) {
+                res = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return res;
+    }
+
     public final String getEncoding() {
         return currentEncoding;
     }
@@ -185,9 +787,11 @@ public class Chapter {
             currentEncoding = encoding;
 
             /*
-             * Invalidate current buffer
+             * Invalidate current buffer and the position map,
+             * which is valid for a single encoding only
              */
-            textBuffer = null;
+            unload();
+            positionMapSize = 0;
 
             return true;
         }
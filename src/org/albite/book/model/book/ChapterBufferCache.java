@@ -0,0 +1,233 @@
+package org.albite.book.model.book;
+
+import java.util.Vector;
+
+/**
+ * Keeps the text buffers of the recently read chapters in memory, so that
+ * going back and forth between chapters doesn't decode them all over
+ * again. The buffers are kept as long as they fit in the budget, the least
+ * recently used ones being unloaded first. The chapters that are kept,
+ * but not read, are parked, i.e. their files are closed, even if they
+ * haven't been fully decoded.
+ *
+ * The current chapter, the ones reserved for being loaded in advance and
+ * the ones being decoded are never unloaded. The cache never waits for
+ * a chapter that is being decoded, so a chapter may call it while it
+ * holds its own lock, e.g. to make room, if memory runs out.
+ *
+ * @author albus
+ */
+class ChapterBufferCache {
+
+    /*
+     * Chapters in the order they were used, the most recent one being last
+     */
+    private final Vector    chapters = new Vector();
+
+    /*
+     * How many bytes the buffers may take altogether
+     */
+    private int             budget;
+
+    /*
+     * How much of the budget is taken by other things, which the book
+     * keeps in memory, e.g. the checkpoints of the zip entries
+     */
+    private int             otherMemory;
+
+    /*
+     * The chapter being read. It is never unloaded.
+     */
+    private Chapter         current;
+
+    /*
+     * The chapters being loaded in advance
+     */
+    private final Vector    reserved = new Vector();
+
+    /*
+     * The chapters being decoded, once for every thread decoding them
+     */
+    private final Vector    decoding = new Vector();
+
+    ChapterBufferCache(final int budget) {
+        this.budget = budget;
+    }
+
+    final synchronized int getBudget() {
+        return budget;
+    }
+
+    final synchronized void setBudget(final int budget) {
+        this.budget = budget;
+        trim(current, 0);
+    }
+
+    final synchronized void setOtherMemory(final int otherMemory) {
+        this.otherMemory = otherMemory;
+        trim(current, 0);
+    }
+
+    /**
+     * Marks the chapter as being decoded, so that it isn't unloaded
+     * or parked in the meantime. Called before the chapter is locked.
+     */
+    final synchronized void startDecoding(final Chapter chapter) {
+        decoding.addElement(chapter);
+    }
+
+    final synchronized void stopDecoding(final Chapter chapter) {
+        decoding.removeElement(chapter);
+    }
+
+    /**
+     * Marks the chapter as the most recently used one and unloads as many
+     * of the other chapters as needed for it to fit in the budget.
+     * If there doesn't seem to be enough free memory for the chapter,
+     * all other chapters are unloaded.
+     *
+     * @param chapter the chapter that is about to be read
+     */
+    final synchronized void use(final Chapter chapter) {
+        if (current != null && current != chapter
+                && !decoding.contains(current)) {
+            /*
+             * It stays in memory, but it's not read any more
+             */
+            current.park();
+        }
+
+        current = chapter;
+
+        /*
+         * The chapters loaded in advance are either read now
+         * or not needed any more
+         */
+        reserved.removeAllElements();
+
+        chapters.removeElement(chapter);
+        chapters.addElement(chapter);
+
+        final int needed = chapter.getBufferSizeEstimate();
+
+        trim(chapter, needed);
+
+        final Runtime runtime = Runtime.getRuntime();
+        if (runtime.freeMemory() < needed) {
+            System.gc();
+            if (runtime.freeMemory() < needed) {
+                release(chapter);
+            }
+        }
+    }
+
+    /**
+     * Makes room for a chapter that is going to be loaded in advance,
+     * without unloading the current one. Nothing is unloaded, if the
+     * chapters wouldn't fit in the budget together with the ones already
+     * reserved. The chapter is kept, until another one is read.
+     *
+     * @param chapter the chapter to be loaded
+     * @return true, if the chapter could be loaded
+     */
+    final synchronized boolean reserve(final Chapter chapter) {
+        final int needed = chapter.getBufferSizeEstimate()
+                + (current == null ? 0 : current.getBufferSizeEstimate());
+
+        int others = 0;
+        Chapter other;
+        for (int i = 0; i < reserved.size(); i++) {
+            other = (Chapter) reserved.elementAt(i);
+            if (other != chapter && other != current) {
+                others += other.getBufferSizeEstimate();
+            }
+        }
+
+        if (needed + others + otherMemory > budget) {
+            return false;
+        }
+
+        trim(chapter, needed);
+
+        if (Runtime.getRuntime().freeMemory() < needed) {
+            return false;
+        }
+
+        if (!reserved.contains(chapter)) {
+            reserved.addElement(chapter);
+        }
+
+        /*
+         * It goes right before the current chapter
+         */
+        chapters.removeElement(chapter);
+        if (current == null) {
+            chapters.addElement(chapter);
+        } else {
+            chapters.insertElementAt(
+                    chapter, chapters.indexOf(current));
+        }
+
+        return true;
+    }
+
+    /**
+     * Unloads the buffers of all chapters, but the given one and the
+     * ones that are never unloaded. Used when memory is running out.
+     *
+     * @param keep the chapter to keep or null
+     */
+    final synchronized void release(final Chapter keep) {
+        Chapter chapter;
+
+        for (int i = chapters.size() - 1; i >= 0; i--) {
+            chapter = (Chapter) chapters.elementAt(i);
+            if (chapter != keep && !isPinned(chapter)) {
+                chapter.unload();
+                chapters.removeElementAt(i);
+            }
+        }
+
+        System.gc();
+    }
+
+    /**
+     * @return true, if the chapter is current, reserved or being decoded
+     */
+    private boolean isPinned(final Chapter chapter) {
+        return chapter == current
+                || reserved.contains(chapter)
+                || decoding.contains(chapter);
+    }
+
+    /**
+     * Unloads the least recently used chapters, until the rest of them
+     * and the needed amount fit in the budget. The memory of the given
+     * chapter and of the current one is part of the needed amount.
+     */
+    private void trim(final Chapter keep, final int needed) {
+        Chapter chapter;
+        int used = needed + otherMemory;
+
+        for (int i = 0; i < chapters.size(); i++) {
+            chapter = (Chapter) chapters.elementAt(i);
+            if (chapter != keep && chapter != current) {
+                used += chapter.getBufferSize();
+            }
+        }
+
+        int i = 0;
+        while (used > budget && i < chapters.size()) {
+            chapter = (Chapter) chapters.elementAt(i);
+
+            if (chapter == keep || isPinned(chapter)) {
+                i++;
+                continue;
+            }
+
+            used -= chapter.getBufferSize();
+            chapter.unload();
+            chapters.removeElementAt(i);
+        }
+    }
+}
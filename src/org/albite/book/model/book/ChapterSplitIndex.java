@@ -0,0 +1,546 @@
+package org.albite.book.model.book;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import javax.microedition.io.Connector;
+import javax.microedition.io.InputConnection;
+import javax.microedition.io.file.FileConnection;
+import java13.io.BufferedInputStream;
+import org.albite.albite.AlbiteMIDlet;
+import org.albite.io.decoders.AlbiteStreamReader;
+import org.albite.io.decoders.EncodingDetector;
+import org.albite.io.decoders.Encodings;
+import org.albite.io.html.XhtmlStreamReader;
+
+/**
+ * Finds where files too big to be a single chapter are to be split and
+ * keeps the results in a .ali file next to the book, so that the files
+ * need to be scanned only the first time the book is opened.
+ *
+ * The pieces are cut at the end of a line, a tag or a word, whichever
+ * is found first, never in the middle of a char of the encoding, in
+ * which the file is going to be read. Files in UTF-16, whether they
+ * start with a byte order mark or it has been detected, are scanned a
+ * pair of bytes at a time.
+ *
+ * @author albus
+ */
+class ChapterSplitIndex {
+
+    private static final int    ALBI_MAGIC_NUMBER   = 0x616C6269;
+
+    /*
+     * Changed each time the splits are found in a different way, so that
+     * the old ones are found again
+     */
+    private static final int    VERSION             = 2;
+
+    /*
+     * States of the scanner
+     */
+    private static final byte   SCAN_TEXT           = 0;
+    private static final byte   SCAN_TAG            = 1;
+    private static final byte   SCAN_COMMENT        = 2;
+
+    /*
+     * How the chars of the encoding are made of bytes
+     */
+    private static final byte   CHARS_SINGLE_BYTE   = 0;
+    private static final byte   CHARS_UTF_8         = 1;
+    private static final byte   CHARS_UTF_16        = 2;
+    private static final byte   CHARS_BIG5          = 3;
+    private static final byte   CHARS_GB18030       = 4;
+    private static final byte   CHARS_SHIFT_JIS     = 5;
+
+    /*
+     * The file may be missing, if it couldn't be opened
+     */
+    private final FileConnection    file;
+    private final int               bookSize;
+    private final long              bookDate;
+
+    /*
+     * Maps the number of the first piece to an int[] holding the size of
+     * the split file, the maximum size of a piece and the offsets where
+     * the pieces start
+     */
+    private final Hashtable         entries = new Hashtable();
+    private boolean                 changed = false;
+
+    private ChapterSplitIndex(
+            final FileConnection file,
+            final int bookSize,
+            final long bookDate) {
+
+        this.file = file;
+        this.bookSize = bookSize;
+        this.bookDate = bookDate;
+    }
+
+    /**
+     * Opens the split index of the given book. If the index file can't
+     * be opened, the splits are still found, but not saved.
+     *
+     * @param bookURL the URL of the book file
+     * @param indexURL the URL of the index file
+     * @return the index
+     */
+    static ChapterSplitIndex open(
+            final String bookURL, final String indexURL) {
+
+        int bookSize = 0;
+        long bookDate = 0;
+        FileConnection file = null;
+
+        try {
+            final FileConnection bookFile =
+                    (FileConnection) Connector.open(bookURL, Connector.READ);
+            try {
+                bookSize = (int) bookFile.fileSize();
+                bookDate = bookFile.lastModified();
+            } finally {
+                bookFile.close();
+            }
+
+            file = (FileConnection)
+                    Connector.open(indexURL, Connector.READ_WRITE);
+
+        } catch (SecurityException e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+        } catch (IOException e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+        }
+
+        final ChapterSplitIndex index =
+                new ChapterSplitIndex(file, bookSize, bookDate);
+
+        if (file != null) {
+            try {
+                index.loadEntries();
+            } catch (IOException e) {
+                //#debug
+                AlbiteMIDlet.LOGGER.log(e);
+                index.entries.clear();
+                index.changed = true;
+            }
+        }
+
+        return index;
+    }
+
+    private void loadEntries() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        final DataInputStream in = file.openDataInputStream();
+        try {
+            if (in.readInt() != ALBI_MAGIC_NUMBER
+                    || in.readInt() != VERSION
+                    || in.readInt() != bookSize
+                    || in.readLong() != bookDate) {
+                /*
+                 * Made for another version of the book
+                 */
+                changed = true;
+                return;
+            }
+
+            final int count = in.readShort();
+
+            for (int i = 0; i < count; i++) {
+                final int number = in.readShort();
+                final int[] entry = new int[in.readShort()];
+
+                for (int k = 0; k < entry.length; k++) {
+                    entry[k] = in.readInt();
+                }
+
+                entries.put(new Integer(number), entry);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the index, if new files have been split since it was loaded.
+     */
+    final void close() {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            if (changed) {
+                if (!file.exists()) {
+                    file.create();
+                } else {
+                    file.truncate(0);
+                }
+
+                final DataOutputStream out = file.openDataOutputStream();
+                try {
+                    out.writeInt(ALBI_MAGIC_NUMBER);
+                    out.writeInt(VERSION);
+                    out.writeInt(bookSize);
+                    out.writeLong(bookDate);
+                    out.writeShort(entries.size());
+
+                    final Enumeration keys = entries.keys();
+                    while (keys.hasMoreElements()) {
+                        final Integer number = (Integer) keys.nextElement();
+                        final int[] entry = (int[]) entries.get(number);
+
+                        out.writeShort(number.intValue());
+                        out.writeShort(entry.length);
+
+                        for (int k = 0; k < entry.length; k++) {
+                            out.writeInt(entry[k]);
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+
+                changed = false;
+            }
+        } catch (SecurityException e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+        } catch (IOException e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+        }
+
+        try {
+            file.close();
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Returns the offsets where the pieces of the file start.
+     * The first offset is always 0.
+     *
+     * @param number the number the first piece is going to have
+     * @param in the file to split
+     * @param fileSize its size
+     * @param maxSize the maximum size of a piece
+     * @param html if the file is to be parsed as HTML
+     * @param detector guesses the encoding of the file, the same way it
+     * would do it for its pieces; may be null
+     * @return the offsets
+     * @throws IOException
+     */
+    final int[] getSplits(
+            final int number,
+            final InputConnection in,
+            final int fileSize,
+            final int maxSize,
+            final boolean html,
+            final EncodingDetector detector) throws IOException {
+
+        final Integer key = new Integer(number);
+        int[] entry = (int[]) entries.get(key);
+
+        if (entry != null
+                && entry[0] == fileSize
+                && entry[1] == maxSize) {
+            final int[] res = new int[entry.length - 2];
+            System.arraycopy(entry, 2, res, 0, res.length);
+            return res;
+        }
+
+        final int[] res = findSplits(in, fileSize, maxSize, html,
+                findEncoding(in, detector, html));
+
+        entry = new int[res.length + 2];
+        entry[0] = fileSize;
+        entry[1] = maxSize;
+        System.arraycopy(res, 0, entry, 2, res.length);
+
+        entries.put(key, entry);
+        changed = true;
+
+        return res;
+    }
+
+    /**
+     * Finds the encoding, in which the pieces are going to be read, the
+     * way Chapter does it, if their encoding is automatic: the detector
+     * makes a guess, which the xml declaration may then override.
+     */
+    private static String findEncoding(
+            final InputConnection in,
+            final EncodingDetector detector,
+            final boolean html) throws IOException {
+
+        final BufferedInputStream stream =
+                new BufferedInputStream(in.openInputStream());
+
+        try {
+            String encoding = null;
+
+            if (detector != null) {
+                encoding = detector.detect(stream);
+            }
+
+            if (encoding == null) {
+                encoding = Encodings.DEFAULT;
+            }
+
+            final AlbiteStreamReader decoder =
+                    new AlbiteStreamReader(stream, encoding);
+
+            if (html) {
+                new XhtmlStreamReader(decoder, true, false);
+            }
+
+            return decoder.getEncoding();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads through the file, cutting a piece off each time maxSize bytes
+     * have been read since the last cut. The cut is made after the last
+     * new line in the second half of the piece. If there is none, after
+     * the last tag, and failing that after the last word. As a last resort
+     * the piece is cut before the last byte that starts a char: in UTF-8
+     * it's any byte, but a continuation one, and in the CJK encodings the
+     * chars are followed from the start of the file, as a trail byte may
+     * look like a lead one. A byte below 0x30 can't be in the middle of a
+     * char, so the count starts anew at it, if the text is broken.
+     *
+     * New lines, tags and spaces are ASCII, so cutting after them is safe
+     * for all of the supported encodings, but UTF-16. Files in it are
+     * read by code units instead, cutting only at even offsets and never
+     * between the two surrogates of a char. A byte order mark tells the
+     * byte order, even if the encoding says otherwise.
+     */
+    private static int[] findSplits(
+            final InputConnection in,
+            final int fileSize,
+            final int maxSize,
+            final boolean html,
+            final String encoding) throws IOException {
+
+        /*
+         * Every piece is at least half of maxSize long, but the last one
+         */
+        int[] splits = new int[fileSize / (maxSize / 2) + 2];
+        int count = 1;
+
+        int start = 0;
+        int lastLine = -1;
+        int lastTag = -1;
+        int lastWord = -1;
+        int lastChar = -1;
+
+        byte state = SCAN_TEXT;
+        int tagLength = 0;
+        int prev1 = 0;
+        int prev2 = 0;
+
+        final byte chars = charsOf(encoding);
+        boolean bigEndian = Encodings.UTF_16BE.equals(encoding);
+        boolean utf16 = (chars == CHARS_UTF_16);
+        int firstByte = 0;
+        int c;
+
+        /*
+         * The bytes left of the current multibyte char
+         */
+        int trailBytes = 0;
+        boolean afterLead = false;
+
+        final byte[] buffer = new byte[4096];
+        final InputStream stream = in.openInputStream();
+
+        try {
+            int pos = 0;
+            int read;
+            int b;
+
+            while (pos < fileSize
+                    && (read = stream.read(buffer)) >= 0) {
+
+                if (pos == 0 && read >= 2) {
+                    if (buffer[0] == (byte) 0xFE
+                            && buffer[1] == (byte) 0xFF) {
+                        utf16 = true;
+                        bigEndian = true;
+                    } else if (buffer[0] == (byte) 0xFF
+                            && buffer[1] == (byte) 0xFE) {
+                        utf16 = true;
+                        bigEndian = false;
+                    }
+                }
+
+                for (int i = 0; i < read && pos < fileSize; i++, pos++) {
+                    b = buffer[i] & 0xFF;
+
+                    if (!utf16) {
+                        c = b;
+
+                        if (chars == CHARS_SINGLE_BYTE) {
+                            lastChar = pos;
+                        } else if (chars == CHARS_UTF_8) {
+                            if ((b & 0xC0) != 0x80) {
+                                lastChar = pos;
+                            }
+                        } else if (trailBytes > 0 && b >= 0x30) {
+                            if (afterLead && chars == CHARS_GB18030
+                                    && b <= 0x39) {
+                                /*
+                                 * A char of four bytes
+                                 */
+                                trailBytes = 2;
+                            } else {
+                                trailBytes--;
+                            }
+
+                            afterLead = false;
+                        } else {
+                            lastChar = pos;
+                            afterLead = (b >= 0x80 && isLeadByte(chars, b));
+                            trailBytes = (afterLead ? 1 : 0);
+                        }
+                    } else if ((pos & 1) == 0) {
+                        /*
+                         * Wait for the other byte of the code unit
+                         */
+                        firstByte = b;
+                        c = -1;
+                    } else {
+                        c = (bigEndian
+                                ? (firstByte << 8) | b
+                                : (b << 8) | firstByte);
+
+                        if ((c & 0xFC00) != 0xDC00) {
+                            lastChar = pos - 1;
+                        }
+                    }
+
+                    if (pos - start == maxSize) {
+                        final int half = start + maxSize / 2;
+
+                        if (lastLine > half) {
+                            start = lastLine;
+                        } else if (lastTag > half) {
+                            start = lastTag;
+                        } else if (lastWord > half) {
+                            start = lastWord;
+                        } else if (lastChar > half) {
+                            start = lastChar;
+                        } else if (utf16) {
+                            /*
+                             * Only if maxSize is too small to hold even
+                             * a single char
+                             */
+                            start = pos & ~1;
+                        } else {
+                            start = pos;
+                        }
+
+                        splits[count++] = start;
+                    }
+
+                    if (c < 0) {
+                        continue;
+                    }
+
+                    switch (state) {
+                        case SCAN_TEXT:
+                            if (c == '\n') {
+                                lastLine = pos + 1;
+                            } else if (c == ' ' || c == '\t') {
+                                lastWord = pos + 1;
+                            } else if (c == '<' && html) {
+                                state = SCAN_TAG;
+                                tagLength = 0;
+                            }
+                            break;
+
+                        case SCAN_TAG:
+                            tagLength++;
+
+                            if (c == '>') {
+                                state = SCAN_TEXT;
+                                lastTag = pos + 1;
+                            } else if (tagLength == 3
+                                    && c == '-' && prev1 == '-'
+                                    && prev2 == '!') {
+                                state = SCAN_COMMENT;
+                            }
+                            break;
+
+                        case SCAN_COMMENT:
+                            if (c == '>' && prev1 == '-' && prev2 == '-') {
+                                state = SCAN_TEXT;
+                                lastTag = pos + 1;
+                            }
+                            break;
+                    }
+
+                    prev2 = prev1;
+                    prev1 = c;
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        final int[] res = new int[count];
+        System.arraycopy(splits, 0, res, 0, count);
+        return res;
+    }
+
+    private static byte charsOf(final String encoding) {
+        if (Encodings.UTF_8.equals(encoding)) {
+            return CHARS_UTF_8;
+        }
+
+        if (Encodings.UTF_16LE.equals(encoding)
+                || Encodings.UTF_16BE.equals(encoding)) {
+            return CHARS_UTF_16;
+        }
+
+        //#if !(TinyMode || TinyModeExport)
+        if (Encodings.BIG5.equals(encoding)) {
+            return CHARS_BIG5;
+        }
+
+        if (Encodings.GB18030.equals(encoding)) {
+            return CHARS_GB18030;
+        }
+
+        if (Encodings.SHIFT_JIS.equals(encoding)) {
+            return CHARS_SHIFT_JIS;
+        }
+        //#endif
+
+        return CHARS_SINGLE_BYTE;
+    }
+
+    /**
+     * @param chars one of the CJK encodings
+     * @param b a byte above 0x7F
+     * @return true, if <code>b</code> starts a char of more than one byte,
+     * the same way the decoder of the encoding tells it
+     */
+    private static boolean isLeadByte(final byte chars, final int b) {
+        if (chars == CHARS_SHIFT_JIS) {
+            return (b >= 0x81 && b <= 0x9F) || (b >= 0xE0 && b <= 0xFC);
+        }
+
+        return b >= 0x81 && b <= 0xFE;
+    }
+}
@@ -0,0 +1,332 @@
+package org.albite.book.model.book;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+import org.albite.albite.AlbiteMIDlet;
+import org.albite.lang.TextBuffer;
+
+/**
+ * An optional on-disk cache of the decoded text of the chapters, kept in a
+ * .alc file next to the book. Loading a chapter from it is a plain
+ * sequential read, instead of inflating and decoding the chapter's file
+ * all over again.
+ *
+ * The file starts with a header identifying the book file it was made for.
+ * It is followed by entries, each holding the text of a chapter for a given
+ * encoding. New entries are always appended at the end of the file. If the
+ * book file has changed, or the cache has grown too big, it is emptied.
+ *
+ * The chapters are decoded by the reading thread as well as by the ones
+ * laying them out in the background, so the file and the entries are
+ * accessed by one thread at a time.
+ *
+ * @author albus
+ */
+class ChapterTextCache {
+
+    private static final int    ALBC_MAGIC_NUMBER   = 0x616C6263;
+
+    /*
+     * magic number, book file size and book file date
+     */
+    private static final int    HEADER_SIZE         = 4 + 4 + 8;
+
+    /*
+     * The cache is emptied rather than let grow beyond that size
+     */
+    private static final int    MAXIMUM_CACHE_SIZE  = 8 * 1024 * 1024;
+
+    private final FileConnection    file;
+    private final int               bookSize;
+    private final long              bookDate;
+
+    /*
+     * Maps a chapter number and an encoding to the offset of the
+     * entry's text in the file, its length in chars and whether
+     * it's stored one byte per char
+     */
+    private Hashtable               entries;
+
+    /*
+     * Offsets are kept as ints, so the size of the file is too
+     */
+    private int                     size;
+
+    private ChapterTextCache(
+            final FileConnection file,
+            final int bookSize,
+            final long bookDate) {
+
+        this.file = file;
+        this.bookSize = bookSize;
+        this.bookDate = bookDate;
+    }
+
+    /**
+     * Opens the text cache for the given book.
+     *
+     * @param bookURL the URL of the book file
+     * @param cacheURL the URL of the cache file
+     * @return the cache or null, if it couldn't be opened
+     */
+    static ChapterTextCache open(
+            final String bookURL, final String cacheURL) {
+
+        FileConnection file = null;
+
+        try {
+            int bookSize;
+            long bookDate;
+
+            final FileConnection bookFile =
+                    (FileConnection) Connector.open(bookURL, Connector.READ);
+            try {
+                bookSize = (int) bookFile.fileSize();
+                bookDate = bookFile.lastModified();
+            } finally {
+                bookFile.close();
+            }
+
+            file = (FileConnection)
+                    Connector.open(cacheURL, Connector.READ_WRITE);
+
+            final ChapterTextCache cache =
+                    new ChapterTextCache(file, bookSize, bookDate);
+            cache.loadEntries();
+            return cache;
+
+        } catch (SecurityException e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+        } catch (IOException e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+        }
+
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {}
+        }
+
+        return null;
+    }
+
+    final synchronized void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads the header and the entries' descriptions. If the header is
+     * wrong or missing, the file is emptied. A damaged entry at the end
+     * of the file, e.g. one that hasn't been fully written, is cut off.
+     */
+    private void loadEntries() throws IOException {
+        entries = new Hashtable();
+
+        if (!file.exists()) {
+            file.create();
+            reset();
+            return;
+        }
+
+        final int fileSize = (int) file.fileSize();
+        int pos = 0;
+
+        final DataInputStream in = file.openDataInputStream();
+        try {
+            if (fileSize < HEADER_SIZE
+                    || in.readInt() != ALBC_MAGIC_NUMBER
+                    || in.readInt() != bookSize
+                    || in.readLong() != bookDate) {
+                pos = -1;
+            } else {
+                pos = HEADER_SIZE;
+
+                while (pos < fileSize) {
+                    final int number = in.readShort();
+                    final String encoding = in.readUTF();
+                    final int length = in.readInt();
+                    final boolean compact = in.readBoolean();
+                    final int textSize = (compact ? length : length * 2);
+
+                    /*
+                     * Encoding names are always ASCII
+                     */
+                    final int textPos =
+                            pos + 2 + 2 + encoding.length() + 4 + 1;
+
+                    if (length < 0 || textPos + textSize > fileSize) {
+                        break;
+                    }
+
+                    skip(in, textSize);
+
+                    entries.put(getKey(number, encoding), new int[] {
+                        textPos, length, (compact ? 1 : 0)
+                    });
+
+                    pos = textPos + textSize;
+                }
+            }
+        } catch (IOException e) {
+            /*
+             * Cut off the entry that couldn't be read
+             */
+        } finally {
+            in.close();
+        }
+
+        if (pos < 0) {
+            reset();
+        } else {
+            if (pos < fileSize) {
+                file.truncate(pos);
+            }
+            size = pos;
+        }
+    }
+
+    /**
+     * Empties the cache and writes a new header.
+     */
+    private void reset() throws IOException {
+        entries.clear();
+        file.truncate(0);
+
+        final DataOutputStream out = file.openDataOutputStream();
+        try {
+            out.writeInt(ALBC_MAGIC_NUMBER);
+            out.writeInt(bookSize);
+            out.writeLong(bookDate);
+        } finally {
+            out.close();
+        }
+
+        size = HEADER_SIZE;
+    }
+
+    /**
+     * Returns the cached text for the chapter.
+     *
+     * @param number the number of the chapter
+     * @param encoding the encoding the text was decoded with
+     * @return the text or null, if it is not in the cache
+     */
+    final synchronized TextBuffer load(
+            final int number, final String encoding) {
+        final int[] entry = (int[]) entries.get(getKey(number, encoding));
+
+        if (entry == null) {
+            return null;
+        }
+
+        try {
+            final DataInputStream in = file.openDataInputStream();
+            try {
+                skip(in, entry[0]);
+                return TextBuffer.read(in, entry[1], entry[2] == 1);
+            } finally {
+                in.close();
+            }
+        } catch (OutOfMemoryError e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+        } catch (IOException e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+            entries.remove(getKey(number, encoding));
+        }
+
+        return null;
+    }
+
+    /**
+     * Appends the text of the chapter to the cache, unless it's
+     * already there.
+     *
+     * @param number the number of the chapter
+     * @param encoding the encoding the text was decoded with
+     * @param text the text of the chapter
+     */
+    final synchronized void save(
+            final int number,
+            final String encoding,
+            final TextBuffer text) {
+
+        final String key = getKey(number, encoding);
+
+        if (entries.containsKey(key)) {
+            return;
+        }
+
+        final int textSize = text.getWrittenSize();
+
+        try {
+            if (size + textSize > MAXIMUM_CACHE_SIZE) {
+                reset();
+            }
+
+            final int textPos = size + 2 + 2 + encoding.length() + 4 + 1;
+
+            if (textPos + textSize > MAXIMUM_CACHE_SIZE) {
+                return;
+            }
+
+            final DataOutputStream out =
+                    new DataOutputStream(file.openOutputStream(size));
+            try {
+                out.writeShort(number);
+                out.writeUTF(encoding);
+                out.writeInt(text.length());
+                out.writeBoolean(text.isCompact());
+                text.write(out);
+            } finally {
+                out.close();
+            }
+
+            entries.put(key, new int[] {
+                textPos, text.length(), (text.isCompact() ? 1 : 0)
+            });
+
+            size = textPos + textSize;
+
+        } catch (IOException e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+
+            /*
+             * Drop whatever has been written of the entry
+             */
+            try {
+                file.truncate(size);
+            } catch (IOException ioe) {}
+        }
+    }
+
+    private static String getKey(final int number, final String encoding) {
+        return number + ":" + encoding.toLowerCase();
+    }
+
+    private static void skip(final InputStream in, final int n)
+            throws IOException {
+
+        long left = n;
+        while (left > 0) {
+            final long skipped = in.skip(left);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                left--;
+            } else {
+                left -= skipped;
+            }
+        }
+    }
+}
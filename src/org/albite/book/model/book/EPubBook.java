@@ -5,12 +5,14 @@
 
 package org.albite.book.model.book;
 
+import gnu.zip.ZipFile;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Hashtable;
 import java.util.Vector;
 import org.albite.albite.AlbiteMIDlet;
 import org.albite.book.model.parser.HTMLTextParser;
+import org.albite.book.model.parser.StyleSheet;
 import org.albite.io.RandomReadingFile;
 import org.albite.io.decoders.AlbiteStreamReader;
 import org.albite.io.decoders.Encodings;
@@ -18,9 +20,7 @@ import org.albite.util.archive.Archive;
 import org.albite.util.archive.ArchiveEntry;
 import org.albite.util.archive.zip.ArchiveZip;
 import org.kxml2.io.KXmlParser;
-import org.kxml2.kdom.Document;
-import org.kxml2.kdom.Element;
-import org.kxml2.kdom.Node;
+import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 /**
@@ -29,6 +29,11 @@ import org.xmlpull.v1.XmlPullParserException;
  */
 public class EPubBook extends Book {
 
+    /*
+     * Stylesheets bigger than that are not read
+     */
+    private static final int MAXIMUM_STYLESHEET_SIZE = 64 * 1024;
+
     /*
      * Book file
      */
@@ -40,6 +45,9 @@ public class EPubBook extends Book {
         this.bookURL = filename;
         this.parser = new HTMLTextParser();
         bookArchive = new ArchiveZip(filename);
+        bookArchive.setMaxCheckpoints(MAXIMUM_ZIP_CHECKPOINTS);
+        bufferCache.setOtherMemory(
+                MAXIMUM_ZIP_CHECKPOINTS * ZipFile.CHECKPOINT_SIZE);
         language = null;
 
         try {
@@ -57,34 +65,19 @@ public class EPubBook extends Book {
         }
     }
 
-    private String text(final Element kid) {
-
-        String res = null;
-
-        try {
-            res = kid.getText(0);
-        } catch (Exception e) {}
-
-        if (res == null) {
-            return "";
-        }
-
-        return res;
-    }
-
-    private Element getElement(final Node node, final String name) {
-        for (int i = 0; i < node.getChildCount(); i++) {
-            if (node.getType(i) != Node.ELEMENT) {
-                continue;
-            }
+    /**
+     * Reads the text of the element, whose start tag the parser is at.
+     *
+     * @return the text before the first child element or the end tag
+     */
+    private String text(final KXmlParser parser)
+            throws XmlPullParserException, IOException {
 
-            Element element = node.getElement(i);
-            if (name.equalsIgnoreCase(element.getName())) {
-                return element;
-            }
+        if (parser.next() == XmlPullParser.TEXT) {
+            return parser.getText();
         }
 
-        return null;
+        return "";
     }
 
     private void loadChaptersAndBookDescriptor()
@@ -107,27 +100,35 @@ public class EPubBook extends Book {
         in = container.openInputStream();
 
         try {
-            KXmlParser parser = null;
-            Document doc = null;
-            Element root;
-            Element kid;
+            final KXmlParser parser = getXmlParser(false);
+
             try {
-                parser = new KXmlParser();
                 parser.setInput(new AlbiteStreamReader(
                         in, Encodings.DEFAULT));
 
-                doc = new Document();
-                doc.parse(parser);
-                parser = null;
+                /*
+                 * Only the path in the first rootfile is needed
+                 */
+                boolean rootfiles = false;
+                int type;
 
-                root = doc.getRootElement();
+                while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                    if (type != XmlPullParser.START_TAG) {
+                        continue;
+                    }
 
-                Element rfile = root
-                        .getElement(parser.NO_NAMESPACE, "rootfiles")
-                        .getElement(parser.NO_NAMESPACE, "rootfile");
+                    final int depth = parser.getDepth();
+                    final String name = parser.getName();
 
-                opfFileName = rfile.getAttributeValue(
-                        parser.NO_NAMESPACE, "full-path");
+                    if (depth == 2) {
+                        rootfiles = "rootfiles".equals(name);
+                    } else if (depth == 3 && rootfiles
+                            && "rootfile".equals(name)) {
+                        opfFileName = parser.getAttributeValue(
+                                KXmlParser.NO_NAMESPACE, "full-path");
+                        break;
+                    }
+                }
 
                 if (opfFileName == null) {
                     throw new BookException("Missing opf file");
@@ -139,8 +140,6 @@ public class EPubBook extends Book {
                 AlbiteMIDlet.LOGGER.log(opfFilePath);
 
             } catch (XmlPullParserException xppe) {
-                parser = null;
-                doc = null;
                 throw new BookException(
                     "container.xml is invalid");
             }
@@ -157,237 +156,258 @@ public class EPubBook extends Book {
             throw new BookException("Missing opf");
         }
 
+        /*
+         * The OPF is read in a single pass, keeping only the hrefs of the
+         * manifest items and the idrefs of the spine, as the spine
+         * may refer to items that come after it.
+         */
+        final Hashtable manifest = new Hashtable(200);
+        final Vector spine = new Vector(40);
+        final Vector styleSheets = new Vector();
+
+        boolean manifestFound = false;
+        boolean spineFound = false;
+
         in = opfFile.openInputStream();
 
         try {
-            KXmlParser parser = null;
-            Document doc = null;
-            Element root;
-            Element kid;
+            final KXmlParser parser = getXmlParser(true);
 
             try {
-                parser = new KXmlParser();
-
-                try {
-                    parser.setFeature(
-                            KXmlParser.FEATURE_PROCESS_NAMESPACES, true);
-                } catch (XmlPullParserException e) {}
-
                 parser.setInput(new AlbiteStreamReader(
                         in, Encodings.DEFAULT));
 
-                doc = new Document();
-                doc.parse(parser);
-                parser = null;
+                /*
+                 * The element at depth 2, that is being read
+                 */
+                String section = null;
+                int type;
 
-                root = doc.getRootElement();
-
-                try {
-                    /*
-                     * try to get the metadata
-                     */
-//                    meta = new Hashtable(10);
-
-                    Element metadata = getElement(root, "metadata");
-                    
-                    Element dcmetadata = getElement(metadata, "dc-metadata");
-                    
-                    if (dcmetadata != null) {
-                        metadata = dcmetadata;
+                while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                    if (type != XmlPullParser.START_TAG) {
+                        continue;
                     }
 
-                    if (metadata != null) {
-                        for (int i = 0; i < metadata.getChildCount(); i++) {
-                            if (metadata.getType(i) != Node.ELEMENT) {
-                                continue;
-                            }
+                    final int depth = parser.getDepth();
+                    final String name = parser.getName();
 
-                            kid = metadata.getElement(i);
+                    if (depth == 2) {
+                        section = name.toLowerCase();
 
-                            if (kid.getName().equalsIgnoreCase("title")) {
-                                title = text(kid);
-                                continue;
-                            }
+                        if ("manifest".equals(section)) {
+                            manifestFound = true;
+                        } else if ("spine".equals(section)) {
+                            spineFound = true;
+                        }
 
-                            if (kid.getName().equalsIgnoreCase("creator")) {
-                                author = text(kid);
-                                continue;
-                            }
+                        continue;
+                    }
 
-                            if (kid.getName().equalsIgnoreCase("language")) {
-                                language = text(kid);
-                                /*
-                                 * squash it to a 2-letter tag
-                                 */
-                                if (language.length() > 2) {
-                                    language = language.substring(0, 2);
-                                }
+                    if ("manifest".equals(section)) {
+                        if (depth == 3 && name.equalsIgnoreCase("item")) {
+                            String id = parser.getAttributeValue(
+                                    KXmlParser.NO_NAMESPACE, "id");
+                            String href = parser.getAttributeValue(
+                                    KXmlParser.NO_NAMESPACE, "href");
 
+                            if (id != null && href != null) {
                                 /*
-                                 * set currentLanguage to the default value
-                                 * afterward (in loadUserFile) it will
-                                 * be overwritten
+                                 * Item is OK
                                  */
-                                currentLanguage = language;
+                                manifest.put(id, href);
 
-                                continue;
+                                if ("text/css".equalsIgnoreCase(
+                                        parser.getAttributeValue(
+                                        KXmlParser.NO_NAMESPACE,
+                                        "media-type"))) {
+                                    styleSheets.addElement(href);
+                                }
                             }
+                        }
+                    } else if ("spine".equals(section)) {
+                        if (depth == 3 && name.equalsIgnoreCase("itemref")) {
+                            String idref = parser.getAttributeValue(
+                                    KXmlParser.NO_NAMESPACE, "idref");
 
-//                            if (kid.getName().equalsIgnoreCase("meta")) {
-//                                String metaname = kid.getAttributeValue(parser.NO_NAMESPACE, "name");
-//                                String metavalue = kid.getAttributeValue(parser.NO_NAMESPACE, "content");
-//                                if (metaname != null && metavalue != null
-//                                        && !metaname.startsWith("calibre")) {
-//                                    /*
-//                                     * Ignore Calibre-specific tags,
-//                                     * as they are not informative for the
-//                                     * reader, but only for Calibre
-//                                     */
-//                                    meta.put(metaname, metavalue);
-//                                }
-//
-//                                continue;
-//                            }
-//
-//                            /*
-//                             * It's a metadata then
-//                             */
-//                            {
-//                                String metaname = kid.getName();
-//                                String metavalue = text(kid);
-//
-//                                if (metaname != null && metavalue != null
-//                                        && !metaname.startsWith("calibre")) {
-//                                    meta.put(metaname, metavalue);
-//                                }
-//                            }
+                            if (idref != null) {
+                                spine.addElement(idref);
+                            }
+                        }
+                    } else if ("metadata".equals(section)) {
+                        /*
+                         * The metadata may be inside a dc-metadata element
+                         */
+                        if (depth == 3 || depth == 4) {
+                            readMetadata(parser, name);
                         }
                     }
-                } catch (Exception e) {
-                    /*
-                     * If there is a problem with the metadata,
-                     * it's not worth bothering
-                     */
-                    //#debug
-                    AlbiteMIDlet.LOGGER.log(e);
                 }
+            } catch (XmlPullParserException xppe) {
+                //#debug
+                AlbiteMIDlet.LOGGER.log(xppe);
+                throw new BookException(
+                    "the opf file is invalid");
+            }
+        } finally {
+            in.close();
+        }
 
-                Hashtable manifest = new Hashtable(200);
+        if (!manifestFound) {
+            throw new BookException("No manifest tag in OPF");
+        }
 
-                try {
-                    /*
-                     * Parse the manifest list
-                     */
-                    Element manifestEl = getElement(root, "manifest");
+        if (!spineFound) {
+            throw new BookException("No spine tag in OPF");
+        }
 
-                    if (manifestEl == null) {
-                        throw new BookException("No manifest tag in OPF");
+        try {
+            /*
+             * Create the chapters in the order of the spine
+             */
+            Vector chaps = new Vector(40);
+
+            for (int i = 0; i < spine.size(); i++) {
+                String href = (String) manifest.get(spine.elementAt(i));
+
+                if (href != null) {
+                    ArchiveEntry entry =
+                            bookArchive.getEntry(
+                            RandomReadingFile
+                            .relativeToAbsoluteURL(
+                            opfFilePath + href));
+
+                    if (entry != null) {
+                        /*
+                         * chapter is OK
+                         */
+                        splitChapterIntoPieces(
+                                entry,
+                                entry.fileSize(),
+                                entry,
+                                MAXIMUM_HTML_FILESIZE,
+                                chaps.size(),
+                                true,
+                                chaps
+                                );
                     }
-                    
-                    for (int i = 0; i < manifestEl.getChildCount(); i++) {
-                        if (manifestEl.getType(i) != Node.ELEMENT) {
-                            continue;
-                        }
+                }
+            }
 
-                        kid = manifestEl.getElement(i);
+            if (chaps.isEmpty()) {
+                throw new BookException("no chaps found in opf");
+            }
 
-                        if (kid.getName().equalsIgnoreCase("item")) {
-                            String id = kid.getAttributeValue(
-                                    parser.NO_NAMESPACE, "id");
-                            String href = kid.getAttributeValue(
-                                    parser.NO_NAMESPACE, "href");
+            /*
+             * all chaps loaded
+             */
+            chapters = new Chapter[chaps.size()];
+            chaps.copyInto(chapters);
+        } catch (Exception e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+            throw new BookException("couldn't load chapters");
+        }
 
-                            if (id != null && href != null) {
-                                /*
-                                 * Item is OK
-                                 */
-                                manifest.put(id, href);
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    //#debug
-                    AlbiteMIDlet.LOGGER.log(e);
-                    throw new BookException("couldn't parse manifest");
+        //#if !(TinyMode || TinyModeExport)
+        loadStyleSheets(styleSheets, opfFilePath);
+        //#endif
+    }
+
+    /**
+     * Reads the stylesheets in the manifest into a single style sheet.
+     * Those that can't be read are left out.
+     */
+    private void loadStyleSheets(
+            final Vector hrefs, final String opfFilePath) {
+
+        final StyleSheet sheet = new StyleSheet();
+
+        for (int i = 0; i < hrefs.size(); i++) {
+            final ArchiveEntry entry = bookArchive.getEntry(
+                    RandomReadingFile.relativeToAbsoluteURL(
+                    opfFilePath + hrefs.elementAt(i)));
+
+            if (entry == null) {
+                continue;
+            }
+
+            try {
+                final int size = entry.fileSize();
+
+                if (size > MAXIMUM_STYLESHEET_SIZE) {
+                    continue;
                 }
 
+                final InputStream in = entry.openInputStream();
+
                 try {
+                    final AlbiteStreamReader reader =
+                            new AlbiteStreamReader(in, Encodings.DEFAULT);
+
                     /*
-                     * Parse the spine and create the chapters
+                     * There are never more chars than bytes
                      */
-                    Vector chaps = new Vector(40);
-
-                    Element spine = getElement(root, "spine");
+                    final char[] css = new char[size];
+                    int length = 0;
+                    int read;
 
-                    if (spine == null) {
-                        throw new BookException("No spine tag in OPF");
+                    while (length < size && (read =
+                            reader.read(css, length, size - length)) > 0) {
+                        length += read;
                     }
 
-                    for (int i = 0; i < spine.getChildCount(); i++) {
-                        if (spine.getType(i) != Node.ELEMENT) {
-                            continue;
-                        }
+                    sheet.parse(css, length);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                //#debug
+                AlbiteMIDlet.LOGGER.log(e);
+            }
+        }
 
-                        kid = spine.getElement(i);
+        styleSheet = (sheet.isEmpty() ? null : sheet);
+    }
 
-                        if (kid.getName().equalsIgnoreCase("itemref")) {
-                            String idref = kid.getAttributeValue(
-                                    parser.NO_NAMESPACE, "idref");
-                            if (idref != null) {
-                                String href = (String) manifest.get(idref);
-
-                                if (href != null) {
-                                    ArchiveEntry entry =
-                                            bookArchive.getEntry(
-                                            RandomReadingFile
-                                            .relativeToAbsoluteURL(
-                                            opfFilePath + href));
-
-                                    if (entry != null) {
-                                        /*
-                                         * chapter is OK
-                                         */
-//                                        final Chapter cur = loadChapter(
-//                                                entry, chaps.size());
-                                        splitChapterIntoPieces(
-                                                entry,
-                                                entry.fileSize(),
-                                                entry,
-                                                MAXIMUM_HTML_FILESIZE,
-                                                chaps.size(),
-                                                true,
-                                                chaps
-                                                );
-                                    }
-                                }
-                            }
-                        }
-                    }
+    /**
+     * Reads the title, the author or the language of the book, if the
+     * parser is at the start of one of them.
+     */
+    private void readMetadata(final KXmlParser parser, final String name) {
+        try {
+            if (name.equalsIgnoreCase("title")) {
+                title = text(parser);
+                return;
+            }
 
-                    if (chaps.isEmpty()) {
-                        throw new BookException("no chaps found in opf");
-                    }
+            if (name.equalsIgnoreCase("creator")) {
+                author = text(parser);
+                return;
+            }
 
-                    /*
-                     * all chaps loaded
-                     */
-                    chapters = new Chapter[chaps.size()];
-                    chaps.copyInto(chapters);
-                } catch (Exception e) {
-                    //#debug
-                    AlbiteMIDlet.LOGGER.log(e);
-                    throw new BookException("couldn't load chapters");
+            if (name.equalsIgnoreCase("language")) {
+                language = text(parser);
+                /*
+                 * squash it to a 2-letter tag
+                 */
+                if (language.length() > 2) {
+                    language = language.substring(0, 2);
                 }
-            } catch (XmlPullParserException xppe) {
-                parser = null;
-                doc = null;
-                //#debug
-                AlbiteMIDlet.LOGGER.log(xppe);
-                throw new BookException(
-                    "the opf file is invalid");
+
+                /*
+                 * set currentLanguage to the default value
+                 * afterward (in loadUserFile) it will
+                 * be overwritten
+                 */
+                currentLanguage = language;
             }
-        } finally {
-            in.close();
+        } catch (Exception e) {
+            /*
+             * If there is a problem with the metadata,
+             * it's not worth bothering
+             */
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
         }
     }
 
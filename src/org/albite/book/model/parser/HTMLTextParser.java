@@ -5,11 +5,10 @@
 
 package org.albite.book.model.parser;
 
-import java.util.Vector;
 import org.albite.albite.AlbiteMIDlet;
 import org.albite.book.view.StylingConstants;
 import org.albite.io.html.HTMLSubstitues;
-import org.albite.io.html.XhtmlStreamReader;
+import org.albite.lang.TextBuffer;
 
 ///#define DEBUG_PARSER
 
@@ -31,31 +30,51 @@ import org.albite.io.html.XhtmlStreamReader;
 public class HTMLTextParser extends TextParser
         implements HTMLSubstitues, StylingConstants {
 
-    private static final String TAG_P       = "p";
-    private static final String TAG_BR      = "br";
-    private static final String TAG_DIV     = "div";
-    private static final String TAG_TR      = "tr";
-    private static final String TAG_LI      = "li";
+    /*
+     * The tags that are told apart. Tags that are handled the same way
+     * share one of them.
+     */
+    private static final byte TAG_UNKNOWN   = 0;
 
-    private static final String TAG_IMG     = "img";
+    /*
+     * p, div, tr and li
+     */
+    private static final byte TAG_BLOCK     = 1;
+    private static final byte TAG_BR        = 2;
 
-    private static final String TAG_B       = "b";
-    private static final String TAG_STRONG  = "strong";
-    private static final String TAG_I       = "i";
-    private static final String TAG_EM      = "em";
+    private static final byte TAG_IMG       = 3;
 
-    private static final String TAG_H1      = "h1";
-    private static final String TAG_H2      = "h2";
-    private static final String TAG_H3      = "h3";
-    private static final String TAG_H4      = "h4";
-    private static final String TAG_H5      = "h5";
-    private static final String TAG_H6      = "h6";
+    /*
+     * b and strong
+     */
+    private static final byte TAG_BOLD      = 4;
 
-    private static final String TAG_CENTER  = "center";
+    /*
+     * i and em
+     */
+    private static final byte TAG_ITALIC    = 5;
 
-    private static final String TAG_HR      = "hr";
+    /*
+     * h1 - h6
+     */
+    private static final byte TAG_HEADING   = 6;
 
-    private static final String TAG_PRE     = "pre";
+    private static final byte TAG_CENTER    = 7;
+
+    private static final byte TAG_HR        = 8;
+
+    private static final byte TAG_PRE       = 9;
+
+    /*
+     * The tags whose content is skipped, see getTag()
+     */
+    private static final byte TAG_IGNORE    = 10;
+
+    /*
+     * head, style and script, whose content is skipped in one go,
+     * see skipElement()
+     */
+    private static final byte TAG_SKIP      = 11;
 
     private int ignoreTag = 0;
 
@@ -69,9 +88,48 @@ public class HTMLTextParser extends TextParser
 
     private boolean hr = false;
 
-    private Vector instructions = new Vector(20);
+    /*
+     * A stack of states, that are to be returned before parsing on
+     */
+    private byte[] instructions = new byte[8];
+    private int instructionsSize = 0;
+
+    /*
+     * Where the value of the last attribute found is
+     */
+    private int attributePosition;
+    private int attributeLength;
+
+    /*
+     * The styles of the tags and classes, or null, if there are none
+     */
+    private final StyleSheet styleSheet;
+
+    /*
+     * The elements that are open, while there is one with a style.
+     * Each one has the hash of its name and the parts of its style that
+     * were applied, so that they could be undone when it's closed.
+     */
+    private int[] elementNames = new int[16];
+    private byte[] elementStyles = new byte[16];
+    private int elementsSize = 0;
+
+    /*
+     * Where the tag and the classes of an element are put to look up
+     * its style
+     */
+    private char[] styleKey = new char[32];
 
     public HTMLTextParser() {
+        this(null);
+    }
+
+    /**
+     * @param styleSheet the styles from the stylesheets of the book
+     * or null
+     */
+    public HTMLTextParser(final StyleSheet styleSheet) {
+        this.styleSheet = styleSheet;
         processBreaks = false;
     }
 
@@ -83,23 +141,21 @@ public class HTMLTextParser extends TextParser
         heading = 0;
         center = 0;
         hr = false;
-        
-        if (instructions != null) {
-            instructions.removeAllElements();
-        }
+        instructionsSize = 0;
+        elementsSize = 0;
 
         super.reset();
     }
 
     public final boolean parseNext(
-            final char[] text,
+            final TextBuffer text,
             final int textSize) {
 
         //#ifdef DEBUG_PARSER
-//#         AlbiteMIDlet.LOGGER.log("---------------\nParsing: " + text.length + " / " + textSize);
+//#         AlbiteMIDlet.LOGGER.log("---------------\nParsing: " + text.length() + " / " + textSize);
         //#endif
 
-        if (!instructions.isEmpty()) {
+        if (instructionsSize > 0) {
             /*
              * Execute instructions before continuing;
              */
@@ -107,8 +163,7 @@ public class HTMLTextParser extends TextParser
 //#             AlbiteMIDlet.LOGGER.log("Executing pareser instructions");
             //#endif
 
-            state = ((Integer) instructions.lastElement()).byteValue();
-            instructions.removeElementAt(instructions.size() - 1);
+            state = instructions[--instructionsSize];
             return true;
         }
 
@@ -134,7 +189,7 @@ public class HTMLTextParser extends TextParser
          */
         state = (ignoreTag > 0 ? STATE_PASS : STATE_TEXT);
         for (int i = position; i < textSize; i++) {
-            ch = text[i];
+            ch = text.charAt(i);
             if (isWhiteSpace(ch) || isNewLine(ch) || ch == START_TAG_CHAR) {
                 length = i - position;
                 
@@ -155,7 +210,7 @@ public class HTMLTextParser extends TextParser
         return true;
     }
 
-    private boolean parseMarkup(final char[] text, final int textSize) {
+    private boolean parseMarkup(final TextBuffer text, final int textSize) {
 
         int pos = position;
         boolean terminatingTag = false;
@@ -167,7 +222,7 @@ public class HTMLTextParser extends TextParser
 //#         AlbiteMIDlet.LOGGER.log("Trying markup: " + textSize + ", " + pos);
         //#endif
 
-        if (textSize > pos && text[pos] == START_TAG_CHAR) {
+        if (textSize > pos && text.charAt(pos) == START_TAG_CHAR) {
 
             //#ifdef DEBUG_PARSER
 //#             AlbiteMIDlet.LOGGER.log("parsing markup...");
@@ -180,18 +235,18 @@ public class HTMLTextParser extends TextParser
              */
             if (pos + 3 < textSize) {
                 if (
-                           text[pos + 1] == '!'
-                        && text[pos + 2] == '-'
-                        && text[pos + 3] == '-') {
+                           text.charAt(pos + 1) == '!'
+                        && text.charAt(pos + 2) == '-'
+                        && text.charAt(pos + 3) == '-') {
                     /*
                      * It's indeed a comment tag
                      */
                     position = pos + 4;
                     length = 0;
                     while (position < textSize) {
-                        if (text[position] == END_TAG_CHAR
-                                && text[position - 1] == '-'
-                                && text[position - 2] == '-') {
+                        if (text.charAt(position) == END_TAG_CHAR
+                                && text.charAt(position - 1) == '-'
+                                && text.charAt(position - 2) == '-') {
                             /*
                              * End of comment
                              */
@@ -220,7 +275,7 @@ public class HTMLTextParser extends TextParser
                 return true;
             }
 
-            if (text[pos] == '/') {
+            if (text.charAt(pos) == '/') {
                 terminatingTag = true;
                 pos++;
             }
@@ -230,13 +285,13 @@ public class HTMLTextParser extends TextParser
              */
             position = pos;
             
-            if (text.length <= pos) {
+            if (text.length() <= pos) {
                 return false;
             }
 
             for (int i = pos; i < textSize; i++) {
 
-                ch = text[i];
+                ch = text.charAt(i);
 
                 if (ch == END_TAG_CHAR) {
                     length = i - position + 1;
@@ -247,7 +302,7 @@ public class HTMLTextParser extends TextParser
                     int len = length - 1;
                     int max = position + length - 1;
                     for (int k = position; k < max; k++) {
-                        ch = text[k];
+                        ch = text.charAt(k);
 
                         if (isWhiteSpace(ch) || isNewLine(ch) || ch == '/') {
                             len = k - position;
@@ -255,270 +310,795 @@ public class HTMLTextParser extends TextParser
                         }
                     }
 
-                    final String name = new String(text, position, len);
+                    final int tag = getTag(text, position, len);
 
                     //#ifdef DEBUG_PARSER
-//#                     AlbiteMIDlet.LOGGER.log("tag: _" + new String(text, position, length) + "_");
-//#                     AlbiteMIDlet.LOGGER.log("tag name: _" + name + "_");
+//#                     AlbiteMIDlet.LOGGER.log("tag: _" + text.getString(position, length) + "_");
+//#                     AlbiteMIDlet.LOGGER.log("tag name: _" + text.getString(position, len) + "_");
 //# 
 //#                     if (length + position < textSize) {
-//#                         AlbiteMIDlet.LOGGER.log("next char to read after this: _" + text[length + position] + "_, " + ((int) text[length + position]));
+//#                         AlbiteMIDlet.LOGGER.log("next char to read after this: _" + text.charAt(length + position) + "_, " + ((int) text.charAt(length + position)));
 //#                     }
                     //#endif
 
-                    if (TAG_IMG.equalsIgnoreCase(name)) {
+                    if (tag == TAG_IMG) {
                         /*
                          * Image
                          */
-                        final String attributes = new String(
-                                text, position + len, length - 1 - len);
-
-                        final int[] srcPositions =
-                                XhtmlStreamReader.readAttribute(
-                                attributes, "src");
+                        final int attributes = position + len;
+                        final int attributesEnd = position + length - 1;
 
-                        if (srcPositions == null) {
+                        if (findAttribute(
+                                text, attributes, attributesEnd, "src")) {
+                            imageURLPosition = attributePosition;
+                            imageURLLength = attributeLength;
+                        } else {
                             imageURLPosition = 0;
                             imageURLLength = 0;
-                        } else {
-                            imageURLPosition = position + len + srcPositions[0];
-                            imageURLLength = srcPositions[1];
                         }
 
-                        final int[] altPositions =
-                                XhtmlStreamReader.readAttribute(
-                                attributes, "alt");
-
-                        if (altPositions == null) {
+                        if (findAttribute(
+                                text, attributes, attributesEnd, "alt")) {
+                            imageTextPosition = attributePosition;
+                            imageTextLength = attributeLength;
+                        } else {
                             imageTextPosition = 0;
                             imageTextLength = 0;
-                        } else {
-                            imageTextPosition =
-                                    position + len + altPositions[0];
-                            imageTextLength = altPositions[1];
                         }
 
                         state = STATE_IMAGE;
                         return true;
                     }
 
-                    /*
-                     * Obviously, the image tag won't affect the `hr` variable
-                     */
-                    final boolean hrOld = hr;
-                    hr = false;
-
-                    if (TAG_BR.equalsIgnoreCase(name)) {
-                        /*
-                         * New line
-                         */
-                        state = STATE_NEW_LINE;
-                        return true;
+                    if (styleSheet == null) {
+                        parseTag(text, textSize, tag, len, terminatingTag);
+                    } else if (terminatingTag) {
+                        closeElement(text, textSize, tag, len);
+                    } else {
+                        openElement(text, textSize, tag, len);
                     }
+                    return true;
+                }
+            }
 
-                    if (TAG_P.equalsIgnoreCase(name)
-                            || TAG_DIV.equalsIgnoreCase(name)
-                            || TAG_TR.equalsIgnoreCase(name)
-                            || TAG_LI.equalsIgnoreCase(name)) {
-                        /*
-                         * New line
-                         */
-                        //#ifdef DEBUG_PARSER
-//#                         AlbiteMIDlet.LOGGER.log("executed: <P>");
-                        //#endif
-                        state = STATE_NEW_SOFT_LINE;
-                        return true;
+            /*
+             * TODO: Do not know if next line is OK.
+             */
+            position = textSize;
+            length = 1;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Handles a tag, other than an image, setting the state and pushing
+     * the instructions that are to follow it.
+     */
+    private void parseTag(
+            final TextBuffer text,
+            final int textSize,
+            final int tag,
+            final int len,
+            final boolean terminatingTag) {
+
+        /*
+         * Obviously, the image tag won't affect the `hr` variable
+         */
+        final boolean hrOld = hr;
+        hr = false;
+
+        switch (tag) {
+            case TAG_BR:
+                /*
+                 * New line
+                 */
+                state = STATE_NEW_LINE;
+                return;
+
+            case TAG_BLOCK:
+                /*
+                 * New line
+                 */
+                //#ifdef DEBUG_PARSER
+//#                 AlbiteMIDlet.LOGGER.log("executed: <P>");
+                //#endif
+                state = STATE_NEW_SOFT_LINE;
+                return;
+
+            case TAG_HR:
+                /*
+                 * Horizontal ruler
+                 */
+                hr = true;
+
+                if (!hrOld) {
+                    pushInstruction(STATE_NEW_SOFT_LINE);
+                    pushInstruction(STATE_RULER);
+                    pushInstruction(STATE_NEW_SOFT_LINE);
+                }
+                state = STATE_PASS;
+                return;
+        }
+
+        if (terminatingTag) {
+            switch (tag) {
+                case TAG_BOLD:
+                    bold--;
+
+                    if (bold <= 0) {
+                        bold = 0;
+                        disableBold = true;
+                        state = STATE_STYLING;
+                    } else {
+                        state = STATE_PASS;
                     }
+                    return;
 
-                    if (TAG_HR.equalsIgnoreCase(name)) {
-                        /*
-                         * Horizontal ruler
-                         */
-                        hr = true;
+                case TAG_ITALIC:
+                    italic--;
 
-                        if (!hrOld) {
-                            instructions.addElement(new Integer(STATE_NEW_SOFT_LINE));
-                            instructions.addElement(new Integer(STATE_RULER));
-                            instructions.addElement(new Integer(STATE_NEW_SOFT_LINE));
-                        }
+                    if (italic <= 0) {
+                        italic = 0;
+                        disableItalic = true;
+                        state = STATE_STYLING;
+                    } else {
                         state = STATE_PASS;
-                        return true;
                     }
+                    return;
 
-                    if (terminatingTag) {
-                        if (TAG_B.equalsIgnoreCase(name)
-                                || TAG_STRONG.equalsIgnoreCase(name)) {
-                            bold--;
-
-                            if (bold <= 0) {
-                                bold = 0;
-                                disableBold = true;
-                                state = STATE_STYLING;
-                            } else {
-                                state = STATE_PASS;
-                            }
-                            return true;
-                        }
+                case TAG_HEADING:
+                    heading--;
 
-                        if (TAG_I.equalsIgnoreCase(name)
-                                || TAG_EM.equalsIgnoreCase(name)) {
-                            italic--;
+                    if (heading <= 0) {
+                        heading = 0;
+                        disableHeading = true;
+                        pushInstruction(STATE_STYLING);
+                    }
 
-                            if (italic <= 0) {
-                                italic = 0;
-                                disableItalic = true;
-                                state = STATE_STYLING;
-                            } else {
-                                state = STATE_PASS;
-                            }
-                            return true;
-                        }
+                    state = STATE_NEW_SOFT_LINE;
+                    return;
 
-                        if (TAG_H1.equalsIgnoreCase(name)
-                                || TAG_H2.equalsIgnoreCase(name)
-                                || TAG_H3.equalsIgnoreCase(name)
-                                || TAG_H4.equalsIgnoreCase(name)
-                                || TAG_H5.equalsIgnoreCase(name)
-                                || TAG_H6.equalsIgnoreCase(name)) {
-                            heading--;
-
-                            if (heading <= 0) {
-                                heading = 0;
-                                disableHeading = true;
-                                instructions.addElement(new Integer(STATE_STYLING));
-                            }
-                            
-                            state = STATE_NEW_SOFT_LINE;
-                            return true;
-                        }
+                case TAG_CENTER:
+                    center--;
 
-                        if (TAG_CENTER.equalsIgnoreCase(name)) {
-                            center--;
+                    if (center <= 0) {
+                        center = 0;
+                        disableCenterAlign = true;
+                        pushInstruction(STATE_STYLING);
+                    }
 
-                            if (center <= 0) {
-                                center = 0;
-                                disableCenterAlign = true;
-                                instructions.addElement(new Integer(STATE_STYLING));
-                            }
-                            
-                            state = STATE_NEW_SOFT_LINE;
-                            return true;
-                        }
+                    state = STATE_NEW_SOFT_LINE;
+                    return;
 
-                        if (TAG_PRE.equalsIgnoreCase(name)) {
-                            pre--;
+                case TAG_PRE:
+                    pre--;
 
-                            if (pre <= 0) {
-                                pre = 0;
-                                processBreaks = false;
-                            }
+                    if (pre <= 0) {
+                        pre = 0;
+                        processBreaks = false;
+                    }
 
-                            state = STATE_PASS;
-                            return true;
-                        }
+                    state = STATE_PASS;
+                    return;
 
-                        if (isIgnoreTag(name)) {
-                            ignoreTag--;
+                case TAG_IGNORE:
+                case TAG_SKIP:
+                    ignoreTag--;
 
-                            if (ignoreTag < 0) {
-                                ignoreTag = 0;
+                    if (ignoreTag < 0) {
+                        ignoreTag = 0;
+                    }
+                    return;
+            }
+        } else {
+            switch (tag) {
+                case TAG_BOLD:
+                    bold++;
+
+                    enableBold = true;
+                    state = STATE_STYLING;
+                    return;
+
+                case TAG_ITALIC:
+                    italic++;
+
+                    enableItalic = true;
+                    state = STATE_STYLING;
+                    return;
+
+                case TAG_HEADING:
+                    heading++;
+
+                    enableHeading = true;
+                    pushInstruction(STATE_NEW_SOFT_LINE);
+                    state = STATE_STYLING;
+                    return;
+
+                case TAG_CENTER:
+                    center++;
+
+                    enableCenterAlign = true;
+                    pushInstruction(STATE_NEW_SOFT_LINE);
+                    state = STATE_STYLING;
+                    return;
+
+                case TAG_PRE:
+                    int k = position + length + 1;
+
+                    if (k < textSize) {
+                        if (text.charAt(k) == '\n') {
+                            length += 2;
+                        } else if (text.charAt(k) == '\r') {
+                            length += 2;
+                            k++;
+                            if (k < textSize && text.charAt(k) == '\n') {
+                                length++;
                             }
-                            return true;
                         }
+                    }
+                    pre++;
+                    processBreaks = true;
+                    state = STATE_PASS;
+                    return;
+
+                case TAG_IGNORE:
+                    if (!isEmptyTag(text)) {
+                        ignoreTag++;
+                    }
+                    return;
+
+                case TAG_SKIP:
+                    if (isEmptyTag(text)) {
+                        return;
+                    }
+
+                    final int end = skipElement(
+                            text, textSize, position, len,
+                            position + length);
+
+                    if (end >= 0) {
+                        length = end - position;
                     } else {
-                        if (TAG_B.equalsIgnoreCase(name)
-                                || TAG_STRONG.equalsIgnoreCase(name)) {
-                            bold++;
+                        /*
+                         * Its end hasn't been read yet, so
+                         * its content is passed a word
+                         * at a time
+                         */
+                        ignoreTag++;
+                    }
+                    return;
+            }
+        }
+    }
 
-                            enableBold = true;
-                            state = STATE_STYLING;
-                            return true;
-                        }
+    /**
+     * Handles the start tag of an element, when there is a stylesheet.
+     * Hidden elements are passed at once. Otherwise, the tag is handled
+     * as usual and its style is applied after it.
+     */
+    private void openElement(
+            final TextBuffer text,
+            final int textSize,
+            final int tag,
+            final int len) {
 
-                        if (TAG_I.equalsIgnoreCase(name)
-                                || TAG_EM.equalsIgnoreCase(name)) {
-                            italic++;
+        /*
+         * The style is looked up by the name of the tag and its classes
+         */
+        int keyLength = len;
 
-                            enableItalic = true;
-                            state = STATE_STYLING;
-                            return true;
-                        }
+        if (findAttribute(
+                text, position + len, position + length - 1, "class")) {
+            keyLength += 1 + attributeLength;
+        }
 
-                        if (TAG_H1.equalsIgnoreCase(name)
-                                || TAG_H2.equalsIgnoreCase(name)
-                                || TAG_H3.equalsIgnoreCase(name)
-                                || TAG_H4.equalsIgnoreCase(name)
-                                || TAG_H5.equalsIgnoreCase(name)
-                                || TAG_H6.equalsIgnoreCase(name)) {
-                            heading++;
-
-                            enableHeading = true;
-                            instructions.addElement(new Integer(STATE_NEW_SOFT_LINE));
-                            state = STATE_STYLING;
-                            return true;
-                        }
+        if (styleKey.length < keyLength) {
+            styleKey = new char[keyLength];
+        }
 
-                        if (TAG_CENTER.equalsIgnoreCase(name)) {
-                            center++;
+        final char[] key = styleKey;
+        text.getChars(position, len, key, 0);
 
-                            enableCenterAlign = true;
-                            instructions.addElement(new Integer(STATE_NEW_SOFT_LINE));
-                            state = STATE_STYLING;
-                            return true;
-                        }
+        for (int i = 0; i < len; i++) {
+            if (key[i] >= 'A' && key[i] <= 'Z') {
+                key[i] += 'a' - 'A';
+            }
+        }
 
-                        if (TAG_PRE.equalsIgnoreCase(name)) {
-                            int k = position + length + 1;
-
-                            if (k < textSize) {
-                                if (text[k] == '\n') {
-                                    length += 2;
-                                } else if (text[k] == '\r') {
-                                    length += 2;
-                                    k++;
-                                    if (k < textSize && text[k] == '\n') {
-                                        length++;
-                                    }
-                                }
-                            }
-                            pre++;
-                            processBreaks = true;
-                            state = STATE_PASS;
-                            return true;
-                        }
+        if (keyLength > len) {
+            key[len] = ' ';
+            text.getChars(attributePosition, attributeLength, key, len + 1);
+        }
 
-                        if (isIgnoreTag(name)) {
-                            ignoreTag++;
-                            return true;
-                        }
-                    }
+        final int style = styleSheet.getStyle(key, keyLength);
 
-                    return true;
-                }
+        final boolean empty = (tag == TAG_BR || tag == TAG_HR
+                || tag == TAG_SKIP || isEmptyTag(text));
+
+        if ((style & StyleSheet.HIDDEN) != 0) {
+            state = STATE_PASS;
+
+            if (empty) {
+                return;
+            }
+
+            final int end = skipElement(
+                    text, textSize, position, len, position + length);
+
+            if (end >= 0) {
+                length = end - position;
+            } else {
+                /*
+                 * Its end hasn't been read yet
+                 */
+                ignoreTag++;
+                pushElement(text, len, StyleSheet.HIDDEN);
+            }
+            return;
+        }
+
+        parseTag(text, textSize, tag, len, false);
+
+        if (!empty && (style != 0 || elementsSize > 0)) {
+            int applied = 0;
+
+            if ((style & StyleSheet.ITALIC) != 0) {
+                italic++;
+                enableItalic = true;
+                applied |= StyleSheet.ITALIC;
             }
 
+            if ((style & StyleSheet.BOLD) != 0) {
+                bold++;
+                enableBold = true;
+                applied |= StyleSheet.BOLD;
+            }
+
+            if ((style & StyleSheet.CENTER) != 0) {
+                center++;
+                enableCenterAlign = true;
+                applied |= StyleSheet.CENTER;
+            }
+
+            pushElement(text, len, applied);
+
+            if (applied != 0) {
+                addStyling();
+            }
+        }
+
+        if ((style & StyleSheet.PAGE_BREAK) != 0) {
             /*
-             * TODO: Do not know if next line is OK.
+             * The page is broken before the tag is handled
              */
-            position = textSize;
-            length = 1;
-            return true;
+            pushInstruction(state);
+            state = STATE_PAGE_BREAK;
         }
+    }
 
-        return false;
+    /**
+     * Handles the end tag of an element, when there is a stylesheet,
+     * undoing the style of the element and of the ones in it, that were
+     * left open. Nothing is done for the end of a hidden element.
+     */
+    private void closeElement(
+            final TextBuffer text,
+            final int textSize,
+            final int tag,
+            final int len) {
+
+        int i = elementsSize - 1;
+
+        if (i >= 0) {
+            final int name = hashName(text, position, len);
+
+            while (i >= 0 && elementNames[i] != name) {
+                i--;
+            }
+        }
+
+        if (i < 0 || (elementStyles[i] & StyleSheet.HIDDEN) == 0) {
+            parseTag(text, textSize, tag, len, true);
+        }
+
+        if (i < 0) {
+            /*
+             * Not an element that was opened
+             */
+            return;
+        }
+
+        boolean disabled = false;
+
+        while (elementsSize > i) {
+            final int style = elementStyles[--elementsSize];
+
+            if ((style & StyleSheet.ITALIC) != 0) {
+                italic--;
+
+                if (italic <= 0) {
+                    italic = 0;
+                    disableItalic = true;
+                    disabled = true;
+                }
+            }
+
+            if ((style & StyleSheet.BOLD) != 0) {
+                bold--;
+
+                if (bold <= 0) {
+                    bold = 0;
+                    disableBold = true;
+                    disabled = true;
+                }
+            }
+
+            if ((style & StyleSheet.CENTER) != 0) {
+                center--;
+
+                if (center <= 0) {
+                    center = 0;
+                    disableCenterAlign = true;
+                    disabled = true;
+                }
+            }
+
+            if ((style & StyleSheet.HIDDEN) != 0 && ignoreTag > 0) {
+                ignoreTag--;
+            }
+        }
+
+        if (disabled) {
+            addStyling();
+        }
+    }
+
+    /**
+     * Makes sure that the styling flags that were set are used, i.e.
+     * that the tag is followed by STATE_STYLING, if it's not
+     * of that state already.
+     */
+    private void addStyling() {
+        if (state == STATE_PASS) {
+            state = STATE_STYLING;
+        } else if (state != STATE_STYLING) {
+            pushInstruction(STATE_STYLING);
+        }
+    }
+
+    private void pushElement(
+            final TextBuffer text, final int len, final int style) {
+
+        if (elementsSize == elementNames.length) {
+            final int[] names = new int[elementsSize * 2];
+            final byte[] styles = new byte[elementsSize * 2];
+            System.arraycopy(elementNames, 0, names, 0, elementsSize);
+            System.arraycopy(elementStyles, 0, styles, 0, elementsSize);
+            elementNames = names;
+            elementStyles = styles;
+        }
+
+        elementNames[elementsSize] = hashName(text, position, len);
+        elementStyles[elementsSize] = (byte) style;
+        elementsSize++;
+    }
+
+    private static int hashName(
+            final TextBuffer text, final int position, final int len) {
+
+        int hash = 0;
+
+        for (int i = 0; i < len; i++) {
+            hash = 31 * hash + toLowerCase(text.charAt(position + i));
+        }
+
+        return hash;
+    }
+
+    /**
+     * @return true, if the tag that was just found closes itself,
+     * like &lt;script src="a.js"/&gt;
+     */
+    private boolean isEmptyTag(final TextBuffer text) {
+        return length > 1 && text.charAt(position + length - 2) == '/';
+    }
+
+    /**
+     * Finds the end of an element, whose content is of no use, so that
+     * it could be passed at once, instead of a word at a time. Only the
+     * tags with the same name count, and the text between the tags
+     * is not looked at at all.
+     *
+     * @param name where the name of the element is in the text
+     * @param nameLength the length of the name
+     * @param from where the content of the element starts
+     * @return the position right after the tag that closes the element,
+     * or -1, if it isn't in the first <code>textSize</code> chars
+     */
+    private int skipElement(
+            final TextBuffer text,
+            final int textSize,
+            final int name,
+            final int nameLength,
+            int from) {
+
+        int depth = 1;
+
+        while (true) {
+            int pos = text.indexOf(START_TAG_CHAR, from, textSize);
+
+            if (pos < 0) {
+                return -1;
+            }
+
+            pos++;
+
+            final boolean terminating =
+                    pos < textSize && text.charAt(pos) == '/';
+
+            if (terminating) {
+                pos++;
+            }
+
+            from = pos;
+
+            if (pos + nameLength >= textSize) {
+                return -1;
+            }
+
+            if (!sameName(text, pos, name, nameLength)) {
+                continue;
+            }
+
+            final char c = text.charAt(pos + nameLength);
+
+            if (c != END_TAG_CHAR && c != '/'
+                    && !isWhiteSpace(c) && !isNewLine(c)) {
+                continue;
+            }
+
+            final int end = text.indexOf(END_TAG_CHAR, pos, textSize);
+
+            if (end < 0) {
+                return -1;
+            }
+
+            from = end + 1;
+
+            if (terminating) {
+                depth--;
+
+                if (depth == 0) {
+                    return from;
+                }
+            } else if (text.charAt(end - 1) != '/') {
+                depth++;
+            }
+        }
+    }
+
+    private static boolean sameName(
+            final TextBuffer text,
+            final int position,
+            final int name,
+            final int nameLength) {
+
+        for (int i = 0; i < nameLength; i++) {
+            if (toLowerCase(text.charAt(position + i))
+                    != toLowerCase(text.charAt(name + i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void pushInstruction(final byte instruction) {
+        if (instructionsSize == instructions.length) {
+            final byte[] res = new byte[instructionsSize * 2];
+            System.arraycopy(instructions, 0, res, 0, instructionsSize);
+            instructions = res;
+        }
+
+        instructions[instructionsSize++] = instruction;
+    }
+
+    /**
+     * Finds which tag the name in the text is without making a String of
+     * it. The names are told apart by their length first.
+     */
+    private static int getTag(
+            final TextBuffer text, final int position, final int len) {
+
+        switch (len) {
+            case 1:
+                switch (toLowerCase(text.charAt(position))) {
+                    case 'p':
+                        return TAG_BLOCK;
+
+                    case 'b':
+                        return TAG_BOLD;
+
+                    case 'i':
+                        return TAG_ITALIC;
+                }
+                break;
+
+            case 2:
+                final char c = toLowerCase(text.charAt(position + 1));
+
+                switch (toLowerCase(text.charAt(position))) {
+                    case 'b':
+                        return (c == 'r' ? TAG_BR : TAG_UNKNOWN);
+
+                    case 't':
+                        return (c == 'r' ? TAG_BLOCK : TAG_UNKNOWN);
+
+                    case 'l':
+                        return (c == 'i' ? TAG_BLOCK : TAG_UNKNOWN);
+
+                    case 'e':
+                        return (c == 'm' ? TAG_ITALIC : TAG_UNKNOWN);
+
+                    case 'h':
+                        if (c == 'r') {
+                            return TAG_HR;
+                        }
+
+                        return (c >= '1' && c <= '6'
+                                ? TAG_HEADING : TAG_UNKNOWN);
+                }
+                break;
+
+            case 3:
+                if (matches(text, position, "div")) {
+                    return TAG_BLOCK;
+                }
+
+                if (matches(text, position, "img")) {
+                    return TAG_IMG;
+                }
+
+                if (matches(text, position, "pre")) {
+                    return TAG_PRE;
+                }
+
+                if (matches(text, position, "map")) {
+                    return TAG_IGNORE;
+                }
+                break;
+
+            case 4:
+                if (matches(text, position, "head")) {
+                    return TAG_SKIP;
+                }
+
+                if (matches(text, position, "form")) {
+                    return TAG_IGNORE;
+                }
+                break;
+
+            case 5:
+                if (matches(text, position, "style")) {
+                    return TAG_SKIP;
+                }
+                break;
+
+            case 6:
+                if (matches(text, position, "strong")) {
+                    return TAG_BOLD;
+                }
+
+                if (matches(text, position, "center")) {
+                    return TAG_CENTER;
+                }
+
+                if (matches(text, position, "script")) {
+                    return TAG_SKIP;
+                }
+
+                if (matches(text, position, "object")
+                        || matches(text, position, "applet")) {
+                    return TAG_IGNORE;
+                }
+                break;
+
+            case 8:
+                if (matches(text, position, "frameset")
+                        || matches(text, position, "noscript")) {
+                    return TAG_IGNORE;
+                }
+                break;
+        }
+
+        return TAG_UNKNOWN;
     }
 
-    private static boolean isIgnoreTag(final String s) {
-        return
-                   "head".equalsIgnoreCase(s)
-                || "style".equalsIgnoreCase(s)
-                || "form".equalsIgnoreCase(s)
-                || "frameset".equalsIgnoreCase(s)
-                || "map".equalsIgnoreCase(s)
-                || "script".equalsIgnoreCase(s)
-                || "object".equalsIgnoreCase(s)
-                || "applet".equalsIgnoreCase(s)
-                || "noscript".equalsIgnoreCase(s)
-                ;
+    /**
+     * @param name in lower case
+     * @return true, if the text at position starts with name, ignoring
+     * the case
+     */
+    private static boolean matches(
+            final TextBuffer text, final int position, final String name) {
+
+        final int len = name.length();
+
+        for (int i = 0; i < len; i++) {
+            if (toLowerCase(text.charAt(position + i)) != name.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static char toLowerCase(final char c) {
+        return (c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+    }
+
+    /**
+     * Finds the value of an attribute of a tag, like
+     * XhtmlStreamReader.readAttribute(), but in place. Its position and
+     * length are put in attributePosition and attributeLength.
+     *
+     * @param start where the attributes of the tag start
+     * @param end where they end
+     * @return false, if the attribute couldn't be found
+     */
+    private boolean findAttribute(
+            final TextBuffer text,
+            final int start,
+            final int end,
+            final String attribute) {
+
+        final int len = attribute.length();
+
+        /*
+         * The name can only be right before an equals sign
+         */
+        int equals = text.indexOf('=', start + len, end);
+
+        while (equals >= 0) {
+            final int i = equals - len;
+            int k = 0;
+
+            while (k < len && text.charAt(i + k) == attribute.charAt(k)) {
+                k++;
+            }
+
+            if (k < len) {
+                equals = text.indexOf('=', equals + 1, end);
+                continue;
+            }
+
+            int valueStart = equals + 1;
+
+            if (valueStart >= end) {
+                return false;
+            }
+
+            final char quote = text.charAt(valueStart);
+
+            if (quote != '"' && quote != '\'') {
+                return false;
+            }
+
+            valueStart++;
+
+            final int valueEnd = text.indexOf(quote, valueStart, end);
+
+            if (valueEnd < 0) {
+                return false;
+            }
+
+            attributePosition = valueStart;
+            attributeLength = valueEnd - valueStart;
+            return true;
+        }
+
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -5,6 +5,8 @@
 
 package org.albite.book.model.parser;
 
+import org.albite.lang.TextBuffer;
+
 /**
  *
  * @author albus
@@ -12,7 +14,7 @@ package org.albite.book.model.parser;
 public class PlainTextParser extends TextParser {
 
     public boolean parseNext(
-            final char[] text,
+            final TextBuffer text,
             final int textSize) {
 
         if (!proceed(textSize)) {
@@ -27,7 +29,7 @@ public class PlainTextParser extends TextParser {
          * parsing normal text; stopping at stop-chars or end of textbuffer
          */
         for (int i = position; i < textSize; i++) {
-            if (isWhiteSpace(text[i]) || isNewLine(text[i])) {
+            if (isWhiteSpace(text.charAt(i)) || isNewLine(text.charAt(i))) {
                 length = i - position;
                 return true;
             }
@@ -0,0 +1,563 @@
+package org.albite.book.model.parser;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+ * The styles that the stylesheets of a book give to its tags and classes.
+ * Only a small subset of CSS is understood:
+ * - font-style: italic or oblique
+ * - font-weight: bold, bolder or 600 and above
+ * - text-align: center
+ * - display: none
+ * - page-break-before: always, left or right
+ *
+ * Any other value of these properties, e.g. font-weight: normal, only
+ * overrides the rules with a lower specificity. The selectors may be
+ * a tag, a class or a tag with a class, like <code>p</code>,
+ * <code>.calibre3</code> or <code>p.note</code>. Rules with other
+ * selectors are left out.
+ *
+ * The style of an element is worked out from its tag and its class
+ * attribute the first time they are met and then kept, so that finding
+ * it takes a single lookup, with nothing allocated.
+ *
+ * @author albus
+ */
+public class StyleSheet {
+
+    public static final int     ITALIC          = 0x01;
+    public static final int     BOLD            = 0x02;
+    public static final int     CENTER          = 0x04;
+    public static final int     HIDDEN          = 0x08;
+    public static final int     PAGE_BREAK      = 0x10;
+
+    /*
+     * The number of the properties above. The bit of each one
+     * is 1 shifted left by its index.
+     */
+    private static final int    PROPERTIES      = 5;
+
+    /*
+     * How many styles of elements are kept, at most
+     */
+    private static final int    CACHE_SIZE      = 256;
+    private static final int    CACHE_LIMIT     = CACHE_SIZE * 3 / 4;
+
+    /*
+     * The indices of the values of a rule. The order of each property
+     * goes at RULE_ORDER plus the index of the property.
+     */
+    private static final int    RULE_MASK       = 0;
+    private static final int    RULE_VALUES     = 1;
+    private static final int    RULE_ORDER      = 2;
+
+    /*
+     * Rules by their selector: the tag, the class with a dot before it
+     * or both. Each one has the properties it sets, their values and
+     * when each of them was last declared, as a later rule for the same
+     * selector overrides only the properties it sets.
+     */
+    private final Hashtable     rules           = new Hashtable();
+    private int                 order           = 0;
+
+    /*
+     * The styles of the elements met, by their tag in lower case,
+     * a space and their class attribute
+     */
+    private final char[][]      cacheKeys       = new char[CACHE_SIZE][];
+    private final int[]         cacheHashes     = new int[CACHE_SIZE];
+    private final int[]         cacheStyles     = new int[CACHE_SIZE];
+    private int                 cacheCount      = 0;
+
+    /**
+     * @return true, if no rules were found, that could be used
+     */
+    public final boolean isEmpty() {
+        return order == 0;
+    }
+
+    /**
+     * Adds the rules of a stylesheet.
+     *
+     * @param css the text of the stylesheet. The comments in it are
+     * blanked out.
+     * @param length the number of chars in it
+     */
+    public final synchronized void parse(final char[] css, final int length) {
+        removeComments(css, length);
+
+        int pos = 0;
+
+        while (pos < length) {
+            final char c = css[pos];
+
+            if (c <= ' ' || c == '}' || c == ';') {
+                pos++;
+                continue;
+            }
+
+            if (c == '@') {
+                /*
+                 * @import, @charset, @media, @font-face, etc.
+                 */
+                final int end = find(css, pos, length, ';', '{');
+
+                pos = (end < length && css[end] == '{'
+                        ? skipBlock(css, end, length)
+                        : end + 1);
+                continue;
+            }
+
+            final int open = find(css, pos, length, '{', '{');
+
+            if (open == length) {
+                break;
+            }
+
+            final int close = find(css, open + 1, length, '}', '{');
+
+            if (close < length && css[close] == '{') {
+                /*
+                 * Not a rule that could be told
+                 */
+                pos = skipBlock(css, close, length);
+                continue;
+            }
+
+            parseRule(css, pos, open, open + 1, close);
+            pos = close + 1;
+        }
+
+        /*
+         * The styles worked out before may have changed
+         */
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            cacheKeys[i] = null;
+        }
+        cacheCount = 0;
+    }
+
+    /**
+     * Finds the style of an element.
+     *
+     * @param key the name of the tag in lower case, a space and the
+     * value of the class attribute of the element
+     * @param length the length of the key
+     * @return the style as a combination of ITALIC, BOLD, CENTER,
+     * HIDDEN and PAGE_BREAK
+     */
+    public final int getStyle(final char[] key, final int length) {
+        if (order == 0) {
+            return 0;
+        }
+
+        int hash = 0;
+
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + key[i];
+        }
+
+        final int mask = CACHE_SIZE - 1;
+        int index = (hash ^ (hash >>> 8)) & mask;
+        char[] k;
+
+        while ((k = cacheKeys[index]) != null) {
+            if (cacheHashes[index] == hash && k.length == length) {
+                int i = 0;
+
+                while (i < length && k[i] == key[i]) {
+                    i++;
+                }
+
+                if (i == length) {
+                    return cacheStyles[index];
+                }
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        return addStyle(key, length, hash);
+    }
+
+    private synchronized int addStyle(
+            final char[] chars, final int length, final int hash) {
+
+        final char[] key = new char[length];
+        System.arraycopy(chars, 0, key, 0, length);
+
+        int space = 0;
+
+        while (space < length && key[space] != ' ') {
+            space++;
+        }
+
+        final int style = computeStyle(
+                new String(key, 0, space),
+                (space < length
+                    ? new String(key, space + 1, length - space - 1) : ""));
+
+        if (cacheCount < CACHE_LIMIT) {
+            final int mask = CACHE_SIZE - 1;
+            int index = (hash ^ (hash >>> 8)) & mask;
+
+            while (cacheKeys[index] != null) {
+                index = (index + 1) & mask;
+            }
+
+            /*
+             * The key goes in last, as the cache is read unsynchronized
+             */
+            cacheHashes[index] = hash;
+            cacheStyles[index] = style;
+            cacheKeys[index] = key;
+            cacheCount++;
+        }
+
+        return style;
+    }
+
+    /**
+     * Works out the style of an element from the rules for its tag,
+     * its classes and its tag with each of its classes, in that order.
+     * Among the rules of the same kind, each property is taken from
+     * the rule that declared it last.
+     */
+    private int computeStyle(final String tag, final String classes) {
+        int style = apply(0, (int[]) rules.get(tag));
+
+        final Vector classRules = new Vector();
+        final Vector tagClassRules = new Vector();
+
+        final int length = classes.length();
+        int pos = 0;
+
+        while (pos < length) {
+            while (pos < length && classes.charAt(pos) <= ' ') {
+                pos++;
+            }
+
+            int end = pos;
+
+            while (end < length && classes.charAt(end) > ' ') {
+                end++;
+            }
+
+            if (end > pos) {
+                final String c = classes.substring(pos, end);
+                addRule(classRules, (int[]) rules.get("." + c));
+                addRule(tagClassRules, (int[]) rules.get(tag + "." + c));
+            }
+
+            pos = end;
+        }
+
+        style = apply(style, classRules);
+        style = apply(style, tagClassRules);
+
+        return style;
+    }
+
+    private static void addRule(final Vector list, final int[] rule) {
+        if (rule != null) {
+            list.addElement(rule);
+        }
+    }
+
+    /**
+     * Applies rules of the same kind, taking each property from the rule
+     * that declared it last.
+     */
+    private static int apply(int style, final Vector list) {
+        final int size = list.size();
+
+        for (int p = 0; p < PROPERTIES; p++) {
+            final int bit = 1 << p;
+            int[] last = null;
+            int[] rule;
+
+            for (int i = 0; i < size; i++) {
+                rule = (int[]) list.elementAt(i);
+
+                if ((rule[RULE_MASK] & bit) != 0 && (last == null
+                        || rule[RULE_ORDER + p] > last[RULE_ORDER + p])) {
+                    last = rule;
+                }
+            }
+
+            if (last != null) {
+                style = (style & ~bit) | (last[RULE_VALUES] & bit);
+            }
+        }
+
+        return style;
+    }
+
+    private static int apply(final int style, final int[] rule) {
+        if (rule == null) {
+            return style;
+        }
+
+        final int mask = rule[RULE_MASK];
+        return (style & ~mask) | (rule[RULE_VALUES] & mask);
+    }
+
+    private void parseRule(
+            final char[] css,
+            final int selectorsStart,
+            final int selectorsEnd,
+            final int declarationsStart,
+            final int declarationsEnd) {
+
+        int mask = 0;
+        int values = 0;
+
+        /*
+         * The declarations
+         */
+        int pos = declarationsStart;
+
+        while (pos < declarationsEnd) {
+            final int end = find(css, pos, declarationsEnd, ';', ';');
+            final int colon = find(css, pos, end, ':', ':');
+
+            if (colon < end) {
+                final String property =
+                        trim(css, pos, colon).toLowerCase();
+                String value = trim(css, colon + 1, end).toLowerCase();
+
+                final int important = value.indexOf('!');
+
+                if (important >= 0) {
+                    value = value.substring(0, important).trim();
+                }
+
+                final int bit = getProperty(property);
+
+                if (bit != 0) {
+                    mask |= bit;
+
+                    if (isSet(bit, value)) {
+                        values |= bit;
+                    } else {
+                        values &= ~bit;
+                    }
+                }
+            }
+
+            pos = end + 1;
+        }
+
+        if (mask == 0) {
+            return;
+        }
+
+        /*
+         * The selectors
+         */
+        pos = selectorsStart;
+
+        while (pos < selectorsEnd) {
+            final int end = find(css, pos, selectorsEnd, ',', ',');
+            final String selector = getSelector(trim(css, pos, end));
+
+            if (selector != null) {
+                int[] rule = (int[]) rules.get(selector);
+
+                if (rule == null) {
+                    rule = new int[RULE_ORDER + PROPERTIES];
+                    rules.put(selector, rule);
+                }
+
+                rule[RULE_MASK] |= mask;
+                rule[RULE_VALUES] =
+                        (rule[RULE_VALUES] & ~mask) | (values & mask);
+
+                order++;
+                for (int p = 0; p < PROPERTIES; p++) {
+                    if ((mask & (1 << p)) != 0) {
+                        rule[RULE_ORDER + p] = order;
+                    }
+                }
+            }
+
+            pos = end + 1;
+        }
+    }
+
+    private static int getProperty(final String property) {
+        if (property.equals("font-style")) {
+            return ITALIC;
+        }
+
+        if (property.equals("font-weight")) {
+            return BOLD;
+        }
+
+        if (property.equals("text-align")) {
+            return CENTER;
+        }
+
+        if (property.equals("display")) {
+            return HIDDEN;
+        }
+
+        if (property.equals("page-break-before")
+                || property.equals("break-before")) {
+            return PAGE_BREAK;
+        }
+
+        return 0;
+    }
+
+    private static boolean isSet(final int property, final String value) {
+        switch (property) {
+            case ITALIC:
+                return value.equals("italic") || value.equals("oblique");
+
+            case BOLD:
+                if (value.equals("bold") || value.equals("bolder")) {
+                    return true;
+                }
+
+                try {
+                    return Integer.parseInt(value) >= 600;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+
+            case CENTER:
+                return value.equals("center");
+
+            case HIDDEN:
+                return value.equals("none");
+
+            case PAGE_BREAK:
+                return value.equals("always") || value.equals("page")
+                        || value.equals("left") || value.equals("right");
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the selector as it's kept in the rules, i.e. the tag in
+     * lower case and the class, or null, if it's not one of
+     * the supported ones
+     */
+    private static String getSelector(final String selector) {
+        final int length = selector.length();
+        final int dot = selector.indexOf('.');
+
+        if (length == 0 || dot == length - 1
+                || (dot >= 0 && selector.indexOf('.', dot + 1) >= 0)) {
+            return null;
+        }
+
+        for (int i = 0; i < length; i++) {
+            final char c = selector.charAt(i);
+
+            if (!((c >= 'a' && c <= 'z')
+                    || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c >= 0x80)) {
+                return null;
+            }
+        }
+
+        if (dot < 0) {
+            return selector.toLowerCase();
+        }
+
+        return selector.substring(0, dot).toLowerCase()
+                + selector.substring(dot);
+    }
+
+    private static void removeComments(final char[] css, final int length) {
+        for (int i = 0; i + 1 < length; i++) {
+            if (css[i] == '/' && css[i + 1] == '*') {
+                int k = i + 2;
+
+                while (k + 1 < length
+                        && !(css[k] == '*' && css[k + 1] == '/')) {
+                    k++;
+                }
+
+                final int end = Math.min(k + 2, length);
+
+                for (int j = i; j < end; j++) {
+                    css[j] = ' ';
+                }
+
+                i = end - 1;
+            }
+        }
+    }
+
+    /**
+     * @return the position of the first of the two chars, outside
+     * of quotes, or <code>end</code>, if there is none
+     */
+    private static int find(final char[] css, int pos, final int end,
+            final char c1, final char c2) {
+
+        char quote = 0;
+
+        for (; pos < end; pos++) {
+            final char c = css[pos];
+
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == c1 || c == c2) {
+                return pos;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * @param pos where the block opens
+     * @return the position after the end of the block
+     */
+    private static int skipBlock(
+            final char[] css, int pos, final int length) {
+
+        int depth = 0;
+
+        while (pos < length) {
+            pos = find(css, pos, length, '{', '}');
+
+            if (pos == length) {
+                break;
+            }
+
+            if (css[pos] == '{') {
+                depth++;
+            } else if (--depth == 0) {
+                return pos + 1;
+            }
+
+            pos++;
+        }
+
+        return length;
+    }
+
+    private static String trim(final char[] css, int start, int end) {
+        while (start < end && css[start] <= ' ') {
+            start++;
+        }
+
+        while (end > start && css[end - 1] <= ' ') {
+            end--;
+        }
+
+        return new String(css, start, end - start);
+    }
+}
@@ -5,6 +5,8 @@
 
 package org.albite.book.model.parser;
 
+import org.albite.lang.TextBuffer;
+
 /**
  *
  * @author Albus Dumbledore
@@ -47,6 +49,11 @@ public abstract class TextParser {
      */
     public static final byte    STATE_RULER             = 6;
 
+    /**
+     * Start a new page, unless the page is empty
+     */
+    public static final byte    STATE_PAGE_BREAK        = 7;
+
     public int                  position;
     public int                  length;
 
@@ -125,17 +132,17 @@ public abstract class TextParser {
 
     protected boolean processWhiteSpace(
             final int newPosition,
-            final char[] text,
+            final TextBuffer text,
             final int textSize) {
 
         if (processBreaks) {
-            ch = text[newPosition];
+            ch = text.charAt(newPosition);
             if (ch == '\r') {
                 //catch CR or CR+LF sequences
                 state = TextParser.STATE_NEW_LINE;
                 length = 1;
                 if (newPosition + 1 < textSize
-                        && text[newPosition + 1] == '\n') {
+                        && text.charAt(newPosition + 1) == '\n') {
                     length = 2;
                 }
                 return true;
@@ -150,7 +157,7 @@ public abstract class TextParser {
         }
         //skip the blank space
         for (int i = newPosition; i < textSize; i++) {
-            ch = text[i];
+            ch = text.charAt(i);
             if (isWhiteSpace(ch) || isNewLine(ch)) {
                 continue;
             }
@@ -180,5 +187,5 @@ public abstract class TextParser {
      * If a 'normal' word is found, then it returns starting position of word
      * and its length
      */
-    public abstract boolean parseNext(char[] text, int textSize);
+    public abstract boolean parseNext(TextBuffer text, int textSize);
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+package org.albite.book.model.parser;
+
+import org.albite.lang.TextBuffer;
+
+/**
+ * Replays the tokens of a {@link TokenStream}, as if they were coming from
+ * the parser that recorded them. The stream is parsed on, only when all
+ * of its tokens have been replayed.
+ *
+ * The tokens are replayed in order, unless the position or the length
+ * have been changed from outside, e.g. to go back to the start of a word
+ * that didn't fit on the line. Then the replay goes on from the first token
+ * at or after the new position. If the new position is inside a word,
+ * only the rest of the word is returned, i.e. what the parser would
+ * have found there.
+ *
+ * @author albus
+ */
+public class TokenParser extends TextParser {
+
+    private final TokenStream   stream;
+
+    private int[]               tokens;
+    private int                 size;
+
+    /*
+     * The index of the token that was returned last, or -1
+     */
+    private int                 current;
+
+    /*
+     * The index of the token that is to be returned next
+     */
+    private int                 next;
+
+    /*
+     * What the position and the length were set to last,
+     * so that one could tell if they were changed from outside
+     */
+    private int                 lastPosition;
+    private int                 lastLength;
+
+    public TokenParser(final TokenStream stream) {
+        this.stream = stream;
+        tokens = stream.getTokens();
+        size = stream.getSize();
+        reset();
+    }
+
+    public final void reset() {
+        super.reset();
+        current = -1;
+        next = 0;
+        lastPosition = 0;
+        lastLength = 0;
+    }
+
+    public final boolean parseNext(
+            final TextBuffer text, final int textSize) {
+
+        final int start = position + length;
+
+        if (start >= textSize) {
+            return stop(start);
+        }
+
+        int i = next;
+        int partial = -1;
+
+        if (position != lastPosition || length != lastLength) {
+            /*
+             * Find the token at the new position
+             */
+            i = (current >= 0 && tokens[current] <= start ? current : 0);
+
+            while (true) {
+                if (i == size && !fill(text, textSize)) {
+                    return stop(textSize);
+                }
+
+                final int tokenPosition = tokens[i];
+
+                if (tokenPosition >= start) {
+                    break;
+                }
+
+                final int header = tokens[i + 1];
+
+                if ((header & TokenStream.STATE_MASK) == STATE_TEXT
+                        && tokenPosition
+                            + (header >>> TokenStream.LENGTH_SHIFT) > start) {
+                    partial = start;
+                    break;
+                }
+
+                i += tokenSize(i);
+            }
+        } else if (i == size && !fill(text, textSize)) {
+            return stop(textSize);
+        }
+
+        final int[] t = tokens;
+        final int header = t[i + 1];
+
+        position = t[i];
+        length = header >>> TokenStream.LENGTH_SHIFT;
+
+        if (position + length > textSize) {
+            /*
+             * The text is being decoded again and hasn't got that far yet
+             */
+            next = i;
+            return stop(start);
+        }
+
+        if (partial >= 0) {
+            length -= partial - position;
+            position = partial;
+        }
+
+        state = (byte) (header & TokenStream.STATE_MASK);
+
+        enableItalic        = (header & TokenStream.ENABLE_ITALIC) != 0;
+        disableItalic       = (header & TokenStream.DISABLE_ITALIC) != 0;
+        enableBold          = (header & TokenStream.ENABLE_BOLD) != 0;
+        disableBold         = (header & TokenStream.DISABLE_BOLD) != 0;
+        enableHeading       = (header & TokenStream.ENABLE_HEADING) != 0;
+        disableHeading      = (header & TokenStream.DISABLE_HEADING) != 0;
+        enableCenterAlign   = (header & TokenStream.ENABLE_CENTER_ALIGN) != 0;
+        disableCenterAlign  =
+                (header & TokenStream.DISABLE_CENTER_ALIGN) != 0;
+
+        if (state == STATE_IMAGE) {
+            imageURLPosition    = t[i + 2];
+            imageURLLength      = t[i + 3];
+            imageTextPosition   = t[i + 4];
+            imageTextLength     = t[i + 5];
+        }
+
+        current = i;
+        next = i + tokenSize(i);
+        lastPosition = position;
+        lastLength = length;
+
+        return true;
+    }
+
+    /**
+     * Gets the tokens recorded since, parsing on if there are none.
+     *
+     * @return false, if there are no more tokens
+     */
+    private boolean fill(final TextBuffer text, final int textSize) {
+        if (!stream.tokenize(text, textSize, size)) {
+            return false;
+        }
+
+        tokens = stream.getTokens();
+        size = stream.getSize();
+        return true;
+    }
+
+    private boolean stop(final int end) {
+        position = lastPosition = end;
+        length = lastLength = 0;
+        return false;
+    }
+
+    private int tokenSize(final int i) {
+        return ((tokens[i + 1] & TokenStream.STATE_MASK) == STATE_IMAGE
+                ? TokenStream.IMAGE_SIZE : TokenStream.TOKEN_SIZE);
+    }
+}
@@ -0,0 +1,143 @@
+package org.albite.book.model.parser;
+
+import org.albite.lang.TextBuffer;
+
+/**
+ * Keeps the output of a parser for the text of a chapter, so that
+ * the chapter is parsed only once, no matter how many times it is laid out.
+ * Reflowing it (i.e. changing the font, the orientation or the margins)
+ * needs only to replay the tokens through a {@link TokenParser}.
+ *
+ * The tokens are recorded as the text is being decoded, a few at a time,
+ * as far as they are needed. Each one takes two ints in a single array:
+ * its position in the text buffer and a header with its state, the styling
+ * flags and its length. The images take four more ints for the positions
+ * of their URL and alt text.
+ *
+ * Tokens that are to be discarded are not kept at all.
+ *
+ * @author albus
+ */
+public class TokenStream {
+
+    /*
+     * How many tokens are recorded at a time, at most
+     */
+    private static final int    TOKENS_BLOCK    = 256;
+
+    static final int            TOKEN_SIZE      = 2;
+    static final int            IMAGE_SIZE      = TOKEN_SIZE + 4;
+
+    /*
+     * The state takes the lowest three bits of the header, the styling
+     * flags are above it and the length takes the rest
+     */
+    static final int            STATE_MASK              = 0x07;
+
+    static final int            ENABLE_ITALIC           = 0x08;
+    static final int            DISABLE_ITALIC          = 0x10;
+    static final int            ENABLE_BOLD             = 0x20;
+    static final int            DISABLE_BOLD            = 0x40;
+    static final int            ENABLE_HEADING          = 0x80;
+    static final int            DISABLE_HEADING         = 0x100;
+    static final int            ENABLE_CENTER_ALIGN     = 0x200;
+    static final int            DISABLE_CENTER_ALIGN    = 0x400;
+
+    static final int            LENGTH_SHIFT            = 11;
+
+    private final TextParser    parser;
+
+    private int[]               tokens = new int[TOKENS_BLOCK * TOKEN_SIZE];
+    private int                 size = 0;
+
+    /**
+     * @param parser a parser that is used by this stream only
+     */
+    public TokenStream(final TextParser parser) {
+        this.parser = parser;
+        parser.reset();
+    }
+
+    /**
+     * Parses on, recording the next few tokens, unless there are tokens
+     * after the ones that the caller knows of.
+     *
+     * @param text the text buffer of the chapter
+     * @param textSize the number of chars in it that could be parsed
+     * @param known the size of the tokens that the caller has got
+     * @return false, if there are no more tokens in the first
+     * <code>textSize</code> chars
+     */
+    final synchronized boolean tokenize(
+            final TextBuffer text, final int textSize, final int known) {
+
+        if (size > known) {
+            return true;
+        }
+
+        final TextParser p = parser;
+        final int first = size;
+        final int max = size + TOKENS_BLOCK * TOKEN_SIZE;
+
+        while (size < max && p.parseNext(text, textSize)) {
+            final byte state = p.state;
+
+            if (state == TextParser.STATE_PASS
+                    || (state == TextParser.STATE_TEXT && p.length == 0)) {
+                continue;
+            }
+
+            if (size + IMAGE_SIZE > tokens.length) {
+                final int[] res = new int[tokens.length * 2];
+                System.arraycopy(tokens, 0, res, 0, size);
+                tokens = res;
+            }
+
+            final int[] t = tokens;
+            final int i = size;
+
+            t[i] = p.position;
+            t[i + 1] = state
+                    | (p.enableItalic       ? ENABLE_ITALIC         : 0)
+                    | (p.disableItalic      ? DISABLE_ITALIC        : 0)
+                    | (p.enableBold         ? ENABLE_BOLD           : 0)
+                    | (p.disableBold        ? DISABLE_BOLD          : 0)
+                    | (p.enableHeading      ? ENABLE_HEADING        : 0)
+                    | (p.disableHeading     ? DISABLE_HEADING       : 0)
+                    | (p.enableCenterAlign  ? ENABLE_CENTER_ALIGN   : 0)
+                    | (p.disableCenterAlign ? DISABLE_CENTER_ALIGN  : 0)
+                    | (p.length << LENGTH_SHIFT);
+
+            if (state == TextParser.STATE_IMAGE) {
+                t[i + 2] = p.imageURLPosition;
+                t[i + 3] = p.imageURLLength;
+                t[i + 4] = p.imageTextPosition;
+                t[i + 5] = p.imageTextLength;
+                size += IMAGE_SIZE;
+            } else {
+                size += TOKEN_SIZE;
+            }
+        }
+
+        return size > first;
+    }
+
+    /**
+     * The array may be replaced when the stream grows, but the tokens
+     * already in it never change.
+     */
+    final synchronized int[] getTokens() {
+        return tokens;
+    }
+
+    final synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes taken by the tokens
+     */
+    public final synchronized int getMemorySize() {
+        return tokens.length * 4;
+    }
+}
@@ -9,15 +9,35 @@ import java.util.Vector;
 import org.albite.albite.AlbiteMIDlet;
 import org.albite.book.model.book.Chapter;
 import org.albite.book.model.parser.TextParser;
+import org.albite.book.model.parser.TokenParser;
 import org.albite.font.AlbiteFont;
+import org.albite.lang.TextBuffer;
 import org.albite.util.archive.Archive;
 //#if !(TinyMode || TinyModeExport || LightMode || LightModeExport)
 import org.geometerplus.zlibrary.text.hyphenation.ZLTextTeXHyphenator;
 //#endif
 /**
- * This class is non-mutable with the exception that the ColorProfile can be
- * changed if desired for no reflow is required when changing colours.
- * 
+ * The pages of a chapter, laid out for a given page size, fonts and
+ * line spacing, which don't change afterwards.
+ *
+ * The pages are laid out lazily, only when they are needed. The pages
+ * up to the end of the chapter are laid out one by one from
+ * <code>pageState</code>, until <code>paginated</code> is set. If the
+ * chapter was opened at a position, the pages around it are laid out
+ * first and the ones before them are laid out from
+ * <code>frontState</code> later on, being inserted at
+ * <code>frontIndex</code>. The rest of the pages may be laid out by a
+ * worker thread in the background, while the reader turns the pages, or
+ * by a prefetcher, before the chapter is read.
+ *
+ * So the pages, the pagination states and the current page are shared
+ * between threads. All of the methods that read or change them are
+ * synchronized on the booklet, so that a page is laid out by one thread
+ * at a time and the current page never moves while a page is being
+ * inserted. {@link #stopPaginating()} is not synchronized, as it waits
+ * for the worker thread, which needs the lock to finish the page it's
+ * laying out.
+ *
  * @author albus
  */
 public class Booklet {
@@ -42,8 +62,44 @@ public class Booklet {
 
     final byte                  defaultAlign = StylingConstants.JUSTIFY;
 
+    /*
+     * Pages are laid out from the position they are needed at, only if
+     * it's at least that many chars after the pages laid out so far.
+     * If it's closer than that, laying out the pages in between takes
+     * about as long.
+     */
+    private static final int    ANCHOR_DISTANCE     = 4096;
+
+    /*
+     * If the paragraph starts further than that many chars before the
+     * position the pages are needed at, they are laid out from the word
+     * at the position instead
+     */
+    private static final int    PARAGRAPH_DISTANCE  = 2048;
+
     private final Vector        pages; //Page elements
 
+    /*
+     * The state of the pagination, as pages are laid out
+     * only when they are needed
+     */
+    private PageState           pageState;
+    private boolean             paginated = false;
+
+    /*
+     * If the pages around a position were laid out first, the state of
+     * the pagination of the pages before them, or null. Those pages are
+     * inserted at frontIndex, i.e. before the ones laid out first.
+     */
+    private PageState           frontState;
+    private int                 frontIndex;
+
+    /*
+     * Lays out the rest of the pages in the background
+     */
+    private Thread              worker;
+    private volatile boolean    stopped = false;
+
     private Page                currentPage;
     private int                 currentPageIndex;
     private Page                prevPage;
@@ -86,95 +142,384 @@ public class Booklet {
         /*
          * Typically ~60-100 pages per chapter, so 200 is quite enough
          */
-        Vector pagesTemp = new Vector(200);
-        
+        pages = new Vector(200);
+
         /*
-         * Reserve the position of the first dummy page
+         * First dummy page (transition to prev chapter or opening of book)
          */
-        pagesTemp.addElement(null);
+        if (chapter.getPrevChapter() == null) {
+            pages.addElement(new DummyPage(this, DummyPage.TYPE_BOOK_START));
+        } else {
+            pages.addElement(new DummyPage(this, DummyPage.TYPE_CHAPTER_PREV));
+        }
 
-        PageState ps = new PageState(parser);
-        //#debug
-        int i = 0;
+        /*
+         * The text pages are laid out while the chapter is being decoded,
+         * and only as far as they are needed, so the first page could
+         * be shown before the whole chapter has been read. The text is
+         * parsed only the first time the chapter is laid out, after that
+         * its tokens are replayed.
+         */
+        pageState = new PageState(parser, chapter.getTokens());
 
-        try {
-            /*
-             * Real pages
-             */
-            TextPage current;
+        goToFirstPage();
+    }
+
+    /**
+     * Lays out pages, until the one at <code>index</code> is ready, or
+     * there are no more pages.
+     *
+     * @param index
+     * @return true, if there is a page at <code>index</code>
+     */
+    private boolean paginate(final int index) {
+        /*
+         * The page that comes after the pages laid out before the
+         * position is still to be laid out
+         */
+        while (frontState != null && index == frontIndex) {
+            paginateFrontPage();
+        }
+
+        while (!paginated && index >= pages.size()) {
+            paginateNextPage();
+        }
+
+        return index < pages.size();
+    }
+
+    /**
+     * Lays out one more page.
+     *
+     * @return false, if there are no more pages to lay out
+     */
+    public final synchronized boolean paginateNext() {
+        if (frontState != null) {
+            paginateFrontPage();
+            return true;
+        }
+
+        if (!paginated) {
+            paginateNextPage();
+        }
+
+        return !paginated;
+    }
+
+    private void paginateAll() {
+        finishFront();
+
+        while (!paginated) {
+            paginateNextPage();
+        }
+    }
+
+    private void finishFront() {
+        while (frontState != null) {
+            paginateFrontPage();
+        }
+    }
+
+    /**
+     * Lays out the rest of the pages in a low-priority thread, until
+     * they are all done or {@link #stopPaginating()} is called.
+     */
+    public final synchronized void startPaginating() {
+        if (worker != null || (paginated && frontState == null)) {
+            return;
+        }
+
+        stopped = false;
+        worker = new Thread(new Runnable() {
+            public void run() {
+                while (!stopped && paginateNext()) {
+                    Thread.yield();
+                }
+
+                //#debug
+                AlbiteMIDlet.LOGGER.log("paginated in the background");
+            }
+        });
+
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    /**
+     * Stops laying out pages in the background and waits for the page
+     * being laid out to be done. {@link #startPaginating()} goes on
+     * from there.
+     */
+    public final void stopPaginating() {
+        stopped = true;
 
-            while (!ps.finishedReading()) {
+        final Thread t;
+
+        synchronized (this) {
+            t = worker;
+        }
+
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {}
+
+            synchronized (this) {
+                if (worker == t) {
+                    worker = null;
+                }
+            }
+        }
+    }
+
+    private void paginateNextPage() {
+        try {
+            if (!pageState.finishedReading()) {
                 //#debug
-                AlbiteMIDlet.LOGGER.log("New page #" + (i++));
+                AlbiteMIDlet.LOGGER.log("New page #" + pages.size());
 
-                current = new TextPage(this, ps);
+                final TextPage current = new TextPage(this, pageState);
 
                 if (!current.isEmpty()) {
                     /*
                      * page with content to render
                      */
-
-                    pagesTemp.addElement(current);
+                    pages.addElement(current);
                 }
             }
 
-            //#debug
-            AlbiteMIDlet.LOGGER.log("pages done!");
+            if (pageState.finishedReading()) {
+                //#debug
+                AlbiteMIDlet.LOGGER.log("pages done!");
+                finishPagination();
+            }
         } catch (OutOfMemoryError e) {
             //#debug
             AlbiteMIDlet.LOGGER.log(e);
-            pagesTemp = new Vector(3);
-            
-            /*
-             * Reserve the position of the first dummy page
-             */
-            pagesTemp.addElement(null);
-            
+
             /*
-             * Add a warning message
+             * Add a warning message after the pages laid out so far
              */
-            pagesTemp.addElement(
+            pages.addElement(
                     new DummyPage(this, DummyPage.TYPE_CHAPTER_TOO_BIG));
+            finishPagination();
         } catch (Exception e) {
             //#debug
             AlbiteMIDlet.LOGGER.log(e);
-            pagesTemp = new Vector(3);
 
             /*
-             * Reserve the position of the first dummy page
+             * Add a warning message after the pages laid out so far
              */
-            pagesTemp.addElement(null);
+            pages.addElement(
+                    new DummyPage(this, DummyPage.TYPE_CHAPTER_ERROR));
+            finishPagination();
+        }
+    }
 
-            /*
-             * Add a warning message
-             */
-            pagesTemp.addElement(
+    /**
+     * Lays out one more of the pages before the position the pages
+     * were laid out from.
+     */
+    private void paginateFrontPage() {
+        try {
+            if (!frontState.finishedReading()) {
+                //#debug
+                AlbiteMIDlet.LOGGER.log("New page before #" + frontIndex);
+
+                final TextPage current = new TextPage(this, frontState);
+
+                if (!current.isEmpty()) {
+                    insertFrontPage(current);
+                }
+            }
+
+            if (frontState.finishedReading()) {
+                frontState = null;
+            }
+        } catch (OutOfMemoryError e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+
+            insertFrontPage(
+                    new DummyPage(this, DummyPage.TYPE_CHAPTER_TOO_BIG));
+            frontState = null;
+        } catch (Exception e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+
+            insertFrontPage(
                     new DummyPage(this, DummyPage.TYPE_CHAPTER_ERROR));
+            frontState = null;
         }
+    }
+
+    private void insertFrontPage(final Page page) {
+        pages.insertElementAt(page, frontIndex);
+
+        if (currentPageIndex >= frontIndex) {
+            currentPageIndex++;
+        }
+
+        frontIndex++;
 
         /*
-         * Don't forget to set the final field
+         * The page before the current one may have just been laid out
          */
-        pages = pagesTemp;
-
-        if (pages.size() == 1) {
-            /*
-             * No TextPages have been added; == 1 because of the reserved
-             * position of the first dummy page
-             */
+        if (currentPage != null) {
+            choosePages();
+        }
+    }
 
-            pages.addElement(new DummyPage(this, DummyPage.TYPE_EMPTY_CHAPTER));
+    /**
+     * Finds where the pages around a position could be laid out from,
+     * without laying out the pages before them: the start of the
+     * paragraph the position is in or the word at the position, if the
+     * paragraph starts too far before it. The tokens before it are
+     * replayed to find the style of the text there.
+     *
+     * @param position
+     * @return the state to lay out the pages from or null, if they
+     * are about to be laid out anyway
+     */
+    private PageState findAnchor(final int position) {
+        if (position - pageState.position < ANCHOR_DISTANCE) {
+            return null;
         }
 
+        final TokenParser parser = new TokenParser(chapter.getTokens());
+
+        TextBuffer buffer = getTextBuffer();
+        int bufferSize = getTextSize();
+
+        byte style = 0;
+        boolean center = false;
+
         /*
-         * First dummy page (transition to prev chapter or opening of book)
+         * The style before the tokens at the last position
          */
-        if (chapter.getPrevChapter() == null) {
-            pages.setElementAt(
-                    new DummyPage(this, DummyPage.TYPE_BOOK_START), 0);
+        int last = -1;
+        byte lastStyle = 0;
+        boolean lastCenter = false;
+
+        int paragraph = 0;
+        byte paragraphStyle = 0;
+        boolean paragraphCenter = false;
+
+        int word = -1;
+        byte wordStyle = 0;
+        boolean wordCenter = false;
+
+        while (true) {
+            if (!parser.parseNext(buffer, bufferSize)) {
+                if (loadMoreText()) {
+                    buffer = getTextBuffer();
+                    bufferSize = getTextSize();
+                    continue;
+                }
+                break;
+            }
+
+            if (parser.position > position) {
+                break;
+            }
+
+            if (parser.position != last) {
+                last = parser.position;
+                lastStyle = style;
+                lastCenter = center;
+            }
+
+            switch (parser.state) {
+                case TextParser.STATE_NEW_LINE:
+                case TextParser.STATE_NEW_SOFT_LINE:
+                case TextParser.STATE_PAGE_BREAK:
+                case TextParser.STATE_RULER:
+                    paragraph = last;
+                    paragraphStyle = lastStyle;
+                    paragraphCenter = lastCenter;
+                    word = -1;
+                    break;
+
+                case TextParser.STATE_TEXT:
+                    if (parser.length > 0) {
+                        word = last;
+                        wordStyle = lastStyle;
+                        wordCenter = lastCenter;
+                    }
+                    break;
+
+                case TextParser.STATE_STYLING:
+                    if (parser.enableBold) {
+                        style |= StylingConstants.BOLD;
+                    }
+
+                    if (parser.enableItalic) {
+                        style |= StylingConstants.ITALIC;
+                    }
+
+                    if (parser.enableHeading) {
+                        style |= StylingConstants.HEADING;
+                    }
+
+                    if (parser.enableCenterAlign) {
+                        center = true;
+                    }
+
+                    if (parser.disableCenterAlign) {
+                        center = false;
+                    }
+
+                    if (parser.disableBold) {
+                        style &= ~StylingConstants.BOLD;
+                    }
+
+                    if (parser.disableItalic) {
+                        style &= ~StylingConstants.ITALIC;
+                    }
+
+                    if (parser.disableHeading) {
+                        style &= ~StylingConstants.HEADING;
+                    }
+                    break;
+            }
+        }
+
+        final boolean startsNewParagraph =
+                (word < 0 || position - paragraph <= PARAGRAPH_DISTANCE);
+
+        final int anchor = (startsNewParagraph ? paragraph : word);
+
+        if (anchor - pageState.position < ANCHOR_DISTANCE) {
+            return null;
+        }
+
+        final PageState state =
+                new PageState(pageState.parser, chapter.getTokens());
+
+        state.position = anchor;
+
+        if (startsNewParagraph) {
+            state.style = paragraphStyle;
+            state.center = paragraphCenter;
         } else {
-            pages.setElementAt(
-                    new DummyPage(this, DummyPage.TYPE_CHAPTER_PREV), 0);
+            state.style = wordStyle;
+            state.center = wordCenter;
+            state.startsNewParagraph = false;
+        }
+
+        return state;
+    }
+
+    private void finishPagination() {
+        paginated = true;
+
+        if (pages.size() == 1) {
+            /*
+             * No TextPages have been added; == 1 because of the
+             * first dummy page
+             */
+
+            pages.addElement(new DummyPage(this, DummyPage.TYPE_EMPTY_CHAPTER));
         }
 
         /*
@@ -185,23 +530,108 @@ public class Booklet {
         } else {
             pages.addElement(new DummyPage(this, DummyPage.TYPE_CHAPTER_NEXT));
         }
+    }
 
-        goToFirstPage();
+    /**
+     * Creates a booklet for another chapter with the same layout
+     * as this one.
+     *
+     * @param chapter the chapter to lay out
+     * @param parser a parser that is not used by another booklet
+     * @return the new booklet
+     */
+    public final Booklet createBooklet(
+            final Chapter chapter, final TextParser parser) {
+
+        return new Booklet(
+                width,
+                height,
+                inverted,
+                chapter,
+                bookArchive,
+                fontPlain,
+                fontItalic,
+                fontHeight - fontPlain.lineHeight,
+                renderImages,
+                //#if !(TinyMode || TinyModeExport || LightMode || LightModeExport)
+                hyphenator,
+                //#endif
+                parser);
+    }
+
+    /**
+     * @param pages
+     * @return true, if the current page is at most <code>pages</code>
+     * pages away from the first dummy page
+     */
+    public final synchronized boolean isNearFirstPage(final int pages) {
+        return (frontState == null || currentPageIndex < frontIndex)
+                && currentPageIndex <= pages;
     }
 
-    public final Page getCurrentPage() {
+    /**
+     * @param pages
+     * @return true, if the current page is at most <code>pages</code>
+     * pages away from the last dummy page
+     */
+    public final synchronized boolean isNearLastPage(final int pages) {
+        return !paginate(currentPageIndex + pages + 1);
+    }
+
+    public final synchronized Page getCurrentPage() {
         return currentPage;
     }
 
-    public final Page getNextPage() {
+    public final synchronized Page getNextPage() {
         return nextPage;
     }
 
-    public final Page getPrevPage() {
+    public final synchronized Page getPrevPage() {
         return prevPage;
     }
 
-    public final boolean goToPrevPage() {
+    /**
+     * If the pages around the current one were laid out first and the
+     * ones before them are still being laid out, lays them out, so that
+     * the page that comes before the current one is the right one.
+     */
+    public final synchronized void paginateBeforeCurrentPage() {
+        if (frontState != null && currentPageIndex == frontIndex) {
+            finishFront();
+        }
+    }
+
+    /**
+     * @return the first page after the leading dummy page
+     */
+    public final synchronized Page getFirstPage() {
+        paginate(1);
+        return (Page) pages.elementAt(1);
+    }
+
+    /**
+     * Lays out the pages up to the end of the chapter, but not the ones
+     * that are still to be laid out before the position the chapter
+     * was opened at.
+     *
+     * @return the last page before the trailing dummy page
+     */
+    public final synchronized Page getLastPage() {
+        while (!paginated) {
+            paginateNextPage();
+        }
+        return (Page) pages.elementAt(pages.size() - 2);
+    }
+
+    /**
+     * @return true, if the pages up to the end of the chapter have been
+     * laid out, so that {@link #getLastPage()} doesn't have to wait
+     */
+    public final synchronized boolean isPaginatedToEnd() {
+        return paginated;
+    }
+
+    public final synchronized boolean goToPrevPage() {
         if (inverted) {
             return incrementPage();
         } else {
@@ -210,6 +640,8 @@ public class Booklet {
     }
 
     private boolean decrementPage() {
+        paginateBeforeCurrentPage();
+
         int index = currentPageIndex - 1;
         if (index < 0) {
             return false;
@@ -219,7 +651,7 @@ public class Booklet {
         return true;
     }
 
-    public final boolean goToNextPage() {
+    public final synchronized boolean goToNextPage() {
         if (inverted) {
             return decrementPage();
         } else {
@@ -229,7 +661,7 @@ public class Booklet {
 
     private boolean incrementPage() {
         int index = currentPageIndex + 1;
-        if (index == pages.size()) {
+        if (!paginate(index)) {
             return false;
         }
         currentPageIndex = index;
@@ -237,46 +669,80 @@ public class Booklet {
         return true;
     }
 
-    public final void goToFirstPage() {
+    public final synchronized void goToFirstPage() {
+        paginate(1);
         currentPageIndex = 1;
         setPages();
     }
 
-    public final void goToLastPage() {
+    public final synchronized void goToLastPage() {
+        paginateAll();
         currentPageIndex = pages.size() - 2;
         setPages();
     }
 
-    public final void goToPosition(final int position) {
+    public final synchronized void goToPosition(final int position) {
         if (position <= 0) {
             goToFirstPage();
             return;
         }
 
-        if (position >= chapter.getTextBuffer().length) {
+        if (chapter.isTextLoaded()
+                && position >= chapter.getAvailableTextSize()) {
             goToLastPage();
             return;
         }
 
-        Page foundPage;
-        final int pagesSize = pages.size();
-        for (int i = 0; i < pagesSize; i++) {
-            foundPage = (Page) pages.elementAt(i);
-            if (foundPage.contains(position)) {
-                goToPage(i);
-                return;
+        if (frontState == null && !paginated) {
+            /*
+             * Lay out the pages from the position, leaving the ones
+             * before it for later
+             */
+            final PageState anchor = findAnchor(position);
+
+            if (anchor != null) {
+                //#debug
+                AlbiteMIDlet.LOGGER.log("Laying out from " + anchor.position);
+
+                frontState = pageState;
+                frontState.end = anchor.position;
+                frontIndex = pages.size();
+                pageState = anchor;
+            }
+        }
+
+        while (true) {
+            for (int i = 0; i < pages.size(); i++) {
+                if (((Page) pages.elementAt(i)).contains(position)) {
+                    goToPage(i);
+                    return;
+                }
+            }
+
+            if (frontState != null && position < frontState.end) {
+                paginateFrontPage();
+            } else if (!paginated) {
+                paginateNextPage();
+            } else {
+                break;
             }
         }
+
+        if (position >= chapter.getAvailableTextSize()) {
+            goToLastPage();
+            return;
+        }
+
         goToFirstPage();
     }
 
-    public void goToPage(final int page) {
+    public synchronized void goToPage(final int page) {
         if (page <= 0) {
             goToFirstPage();
             return;
         }
 
-        if (page >= pages.size() - 1) {
+        if (!paginate(page + 1)) {
             goToLastPage();
             return;
         }
@@ -287,6 +753,17 @@ public class Booklet {
 
     private void setPages() {
 
+        /*
+         * Make sure the next page has been laid out, too
+         */
+        paginate(currentPageIndex + 1);
+
+        choosePages();
+
+        chapter.setCurrentPosition(currentPage.getStart());
+    }
+
+    private void choosePages() {
         /* there are always at least three Pages in a booklet! */
         currentPage = (Page)(pages.elementAt(currentPageIndex));
 
@@ -297,11 +774,9 @@ public class Booklet {
             prevPage = choosePrevPage();
             nextPage = chooseNextPage();
         }
-
-        chapter.setCurrentPosition(currentPage.getStart());
     }
 
-    public void setInverted(final boolean inverted) {
+    public synchronized void setInverted(final boolean inverted) {
         //#debug
         AlbiteMIDlet.LOGGER.log("setting inverted: " + inverted);
 
@@ -327,16 +802,56 @@ public class Booklet {
         }
     }
 
-    public final int getCurrentPageIndex() {
+    public final synchronized int getCurrentPageIndex() {
         return currentPageIndex;
     }
 
-    public final int getPagesCount() {
+    public final synchronized int getPagesCount() {
+        paginateAll();
         return pages.size();
     }
 
-    public final char[] getTextBuffer() {
-        return chapter.getTextBuffer();
+    /**
+     * Returns how much of the chapter has been read. As long as the
+     * chapter hasn't been paginated completely, the value is estimated
+     * from the position of the current page.
+     *
+     * @return a value between 0 and 1
+     */
+    public final synchronized float getProgress() {
+        if (paginated && frontState == null) {
+            final int count = pages.size() - 3;
+
+            if (count <= 0) {
+                return 1;
+            }
+
+            return ((float) currentPageIndex - 1) / count;
+        }
+
+        final int size = chapter.getTextSizeEstimate();
+
+        if (size <= 0) {
+            return 0;
+        }
+
+        return Math.min(1, ((float) currentPage.getStart()) / size);
+    }
+
+    /**
+     * Returns the text decoded so far. It contains the text of all
+     * pages that have been laid out.
+     */
+    public final TextBuffer getTextBuffer() {
+        return chapter.getAvailableText();
+    }
+
+    final int getTextSize() {
+        return chapter.getAvailableTextSize();
+    }
+
+    final boolean loadMoreText() {
+        return chapter.loadMoreText();
     }
 
     public final Chapter getChapter() {
@@ -0,0 +1,140 @@
+package org.albite.book.view;
+
+import org.albite.albite.AlbiteMIDlet;
+import org.albite.book.model.book.Book;
+import org.albite.book.model.book.Chapter;
+
+/**
+ * Decodes and lays out a chapter in a low-priority thread, so that it is
+ * ready by the time the user gets to it.
+ *
+ * @author albus
+ */
+public class BookletPrefetcher implements Runnable {
+
+    /*
+     * How many pages to lay out in advance, if the chapter is going to be
+     * read from its beginning. The rest are laid out when needed.
+     */
+    private static final int   PREFETCHED_PAGES    = 3;
+
+    private final Book          book;
+    private final Booklet       template;
+    private final Chapter       chapter;
+    private final boolean       fromEnd;
+
+    private final Thread        thread;
+    private volatile boolean    cancelled = false;
+    private volatile boolean    done = false;
+    private Booklet             booklet;
+
+    /**
+     * @param book the book the chapter belongs to
+     * @param template the booklet whose layout is to be used
+     * @param chapter the chapter to lay out
+     * @param fromEnd if the chapter is to be read from its end,
+     * so that all of its pages are needed
+     */
+    public BookletPrefetcher(
+            final Book book,
+            final Booklet template,
+            final Chapter chapter,
+            final boolean fromEnd) {
+
+        this.book = book;
+        this.template = template;
+        this.chapter = chapter;
+        this.fromEnd = fromEnd;
+
+        thread = new Thread(this);
+        thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public final void start() {
+        thread.start();
+    }
+
+    public final void run() {
+        try {
+            if (!book.reserveChapterBuffer(chapter)) {
+                //#debug
+                AlbiteMIDlet.LOGGER.log("Not enough memory to prefetch");
+                return;
+            }
+
+            /*
+             * Laying out the booklet moves the chapter to its first page
+             */
+            final int position = chapter.getCurrentPosition();
+
+            final Booklet b =
+                    template.createBooklet(chapter, book.createParser());
+
+            chapter.setCurrentPosition(position);
+
+            int pages = 0;
+            while (!cancelled
+                    && (fromEnd || pages < PREFETCHED_PAGES)
+                    && b.paginateNext()) {
+                pages++;
+            }
+
+            if (!cancelled) {
+                booklet = b;
+            }
+        } catch (OutOfMemoryError e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+        } catch (Exception e) {
+            //#debug
+            AlbiteMIDlet.LOGGER.log(e);
+        } finally {
+            done = true;
+        }
+    }
+
+    public final Chapter getChapter() {
+        return chapter;
+    }
+
+    public final boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits for the chapter to be laid out.
+     *
+     * @return the booklet or null, if it couldn't be laid out
+     */
+    public final Booklet getBooklet() {
+        join();
+        return booklet;
+    }
+
+    /**
+     * Waits for the chapter to be laid out, which is done at normal
+     * priority from now on, as it's needed at once.
+     *
+     * @return the booklet or null, if it couldn't be laid out
+     */
+    public final Booklet finish() {
+        if (!done) {
+            thread.setPriority(Thread.NORM_PRIORITY);
+        }
+        return getBooklet();
+    }
+
+    /**
+     * Stops laying out the chapter and waits for the thread to finish.
+     */
+    public final void cancel() {
+        cancelled = true;
+        join();
+    }
+
+    private void join() {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {}
+    }
+}
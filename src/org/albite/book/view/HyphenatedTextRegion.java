@@ -3,6 +3,7 @@ package org.albite.book.view;
 import javax.microedition.lcdui.Graphics;
 import org.albite.albite.ColorScheme;
 import org.albite.font.AlbiteFont;
+import org.albite.lang.TextBuffer;
 
 public class HyphenatedTextRegion extends TextRegion {
 
@@ -52,7 +53,7 @@ public class HyphenatedTextRegion extends TextRegion {
             final ColorScheme cp,
             final AlbiteFont fontPlain,
             final AlbiteFont fontItalic,
-            final char[] chapterBuffer) {
+            final TextBuffer chapterBuffer) {
 
         draw(
                 g,
@@ -68,7 +69,7 @@ public class HyphenatedTextRegion extends TextRegion {
             final ColorScheme cp,
             final AlbiteFont fontPlain,
             final AlbiteFont fontItalic,
-            final char[] chapterBuffer) {
+            final TextBuffer chapterBuffer) {
 
         draw(
                 g,
@@ -82,7 +83,7 @@ public class HyphenatedTextRegion extends TextRegion {
     private void draw(
             final Graphics g,
             final AlbiteFont font,
-            final char[] chapterBuffer,
+            final TextBuffer chapterBuffer,
             final int backgroundColor,
             final int textColor,
             final boolean drawBackground) {
@@ -97,18 +98,18 @@ public class HyphenatedTextRegion extends TextRegion {
         font.drawChars(g, textColor,
                 chapterBuffer, x, y, chunkPosition, chunkLength, screenWidth);
 
-        if (chapterBuffer[chunkPosition + chunkLength - 1] != '-'
+        if (chapterBuffer.charAt(chunkPosition + chunkLength - 1) != '-'
                 && (chunkPosition + chunkLength != position + length))
             font.drawChar(g, textColor, '-', x + width - font.dashWidth, y);
     }
 
     public void addTextChunk(
-            final char[] chapterBuffer,
+            final TextBuffer chapterBuffer,
             final StringBuffer buf) {
 
         final int chunkPosition = position + chunkOffset;
 
-        buf.append(chapterBuffer, chunkPosition, chunkLength);
+        chapterBuffer.appendTo(buf, chunkPosition, chunkLength);
         
         if (position + length == chunkPosition + chunkLength) {
             buf.append(' ');
@@ -8,6 +8,7 @@ package org.albite.book.view;
 import javax.microedition.lcdui.Graphics;
 import org.albite.albite.ColorScheme;
 import org.albite.font.AlbiteFont;
+import org.albite.lang.TextBuffer;
 
 /**
  *
@@ -39,7 +40,7 @@ public abstract class Page {
             ColorScheme cp,
             AlbiteFont fontPlain,
             AlbiteFont fontItalic,
-            char[] textBuffer);
+            TextBuffer textBuffer);
 
     public int getStart() {
         return 0;
@@ -53,12 +54,12 @@ public abstract class Page {
         return null;
     }
 
-    public String getTextForBookmark(final char[] chapterBuffer) {
+    public String getTextForBookmark(final TextBuffer chapterBuffer) {
         return "";
     }
 
     public String getTextForBookmark(
-            final char[] chapterBuffer,
+            final TextBuffer chapterBuffer,
             final int firstIndex,
             final int lastIndex) {
         return "";
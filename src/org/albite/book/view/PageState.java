@@ -6,6 +6,8 @@
 package org.albite.book.view;
 
 import org.albite.book.model.parser.TextParser;
+import org.albite.book.model.parser.TokenParser;
+import org.albite.book.model.parser.TokenStream;
 import java.util.Vector;
 
 /**
@@ -22,18 +24,33 @@ public class PageState {
     HyphenatedTextRegion    lastHyphenatedWord;
     boolean                 startsNewParagraph = true;
 
+    /*
+     * Replays the tokens of the chapter's text
+     */
+    TextParser              tokens;
+
+    /*
+     * Parses the alt text of images
+     */
     TextParser              parser;
     Vector                  images;
 
     boolean                 bufferRead = false;
 
-    public PageState(final TextParser parser) {
+    /*
+     * Where the text to be laid out ends, i.e. where the pages
+     * that have been laid out from another position start
+     */
+    int                     end = Integer.MAX_VALUE;
+
+    public PageState(final TextParser parser, final TokenStream tokens) {
         position = 0;
         length = 0;
         center = false;
         style = 0;
         images = new Vector(8);
         this.parser = parser;
+        this.tokens = new TokenParser(tokens);
         parser.reset();
     }
 
@@ -8,6 +8,7 @@ package org.albite.book.view;
 import javax.microedition.lcdui.Graphics;
 import org.albite.albite.ColorScheme;
 import org.albite.font.AlbiteFont;
+import org.albite.lang.TextBuffer;
 
 /**
  *
@@ -35,7 +36,7 @@ public class RulerRegion extends Region {
             final ColorScheme cp,
             final AlbiteFont fontPlain,
             final AlbiteFont fontItalic,
-            final char[] chapterBuffer) {
+            final TextBuffer chapterBuffer) {
 
         g.setColor(cp.colors[color]);
         int yy = y + (height / 2);
@@ -47,7 +48,7 @@ public class RulerRegion extends Region {
             final ColorScheme cp,
             final AlbiteFont fontPlain,
             final AlbiteFont fontItalic,
-            final char[] chapterBuffer) {
+            final TextBuffer chapterBuffer) {
         g.setColor(cp.colors[color]);
         g.fillRect(x, y, width, height);
         g.setColor(cp.colors[ColorScheme.COLOR_BACKGROUND]);
@@ -55,11 +56,11 @@ public class RulerRegion extends Region {
         g.drawLine(x, yy, width, yy);
     }
 
-    public final String getText(char[] chapterBuffer) {
+    public final String getText(TextBuffer chapterBuffer) {
         return TEXT_REPRESENTATION;
     }
 
-    public void addTextChunk(char[] chapterBuffer, StringBuffer buf) {
+    public void addTextChunk(TextBuffer chapterBuffer, StringBuffer buf) {
         buf.append(TEXT_REPRESENTATION);
     }
 }
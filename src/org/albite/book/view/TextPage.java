@@ -8,6 +8,7 @@ import org.albite.albite.AlbiteMIDlet;
 import org.albite.albite.ColorScheme;
 import org.albite.font.AlbiteFont;
 import org.albite.io.RandomReadingFile;
+import org.albite.lang.TextBuffer;
 import org.albite.util.archive.Archive;
 //#if !(TinyMode || TinyModeExport || LightMode || LightModeExport)
 import org.geometerplus.zlibrary.text.hyphenation.ZLTextHyphenationInfo;
@@ -50,8 +51,8 @@ public class TextPage
 
         // Chapter settings
         final String chapterPath = booklet.getChapter().getPath();
-        final char[] buffer = booklet.getTextBuffer();
-        final int bufferSize;
+        TextBuffer buffer = booklet.getTextBuffer();
+        int bufferSize;
         final Archive bookFile = booklet.bookArchive;
         final Vector images = ip.images;
 
@@ -64,7 +65,7 @@ public class TextPage
         HyphenatedTextRegion lastHyphenatedWord;
         boolean startsNewParagraph;
 
-        TextParser parser = ip.parser;
+        TextParser parser;
         int wordPixelWidth; //word width in pixels
 
         Vector wordsOnThisLine = new Vector(20); //RegionTexts
@@ -80,10 +81,11 @@ public class TextPage
             //text mode
             regionsTemp = new Vector(300);
 
+            parser = ip.tokens;
             parser.position = end = start = ip.position;
             parser.length = ip.length;
 
-            bufferSize = buffer.length;
+            bufferSize = booklet.getTextSize();
 
             style = ip.style;
             center = ip.center;
@@ -101,6 +103,8 @@ public class TextPage
 
             posY = 0;
 
+            parser = ip.parser;
+
             bufferSize = ri.altTextBufferPosition + ri.altTextBufferLength;
             parser.position = end = start = ri.altTextBufferPosition;
             parser.length = 0;
@@ -164,7 +168,20 @@ public class TextPage
                         /*
                          * Parse on
                          */
-                        if (!parser.parseNext(buffer, bufferSize)) {
+                        if (!parser.parseNext(buffer, bufferSize)
+                                || (imageRegion == null
+                                    && parser.position >= ip.end)) {
+                            if (imageRegion == null
+                                    && parser.position < ip.end
+                                    && booklet.loadMoreText()) {
+                                /*
+                                 * More of the chapter has been decoded
+                                 */
+                                buffer = booklet.getTextBuffer();
+                                bufferSize = booklet.getTextSize();
+                                continue line;
+                            }
+
                             //#ifdef DEBUG_PARSER
 //#                             AlbiteMIDlet.LOGGER.log("parser done");
                             //#endif
@@ -173,6 +190,15 @@ public class TextPage
 
                             if (imageRegion == null) {
                                 ip.bufferRead = true;
+
+                                if (parser.position >= ip.end) {
+                                    /*
+                                     * The pages from there on have been
+                                     * laid out already
+                                     */
+                                    parser.position = ip.end;
+                                    parser.length = 0;
+                                }
                             }
 
                             lineBreak = true;
@@ -191,8 +217,8 @@ public class TextPage
                         //#ifdef DEBUG_PARSER
 //#                         AlbiteMIDlet.LOGGER.log(
 //#                                 "parser: _"
-//#                                 + new String(
-//#                                 buffer, parser.position, parser.length)
+//#                                 + buffer.getString(
+//#                                 parser.position, parser.length)
 //#                                 + "_, "
 //#                                 + parser.position + " / "
 //#                                 + parser.length
@@ -282,7 +308,7 @@ public class TextPage
                                                     RandomReadingFile
                                                     .relativeToAbsoluteURL(
                                                     chapterPath +
-                                                    new String(buffer,
+                                                    buffer.getString(
                                                         parser.imageURLPosition,
                                                         parser.imageURLLength))
                                                     )),
@@ -293,6 +319,20 @@ public class TextPage
 
                                 continue line;
 
+                            case TextParser.STATE_PAGE_BREAK:
+                                if (!firstLine || (posX >
+                                        (startsNewParagraph ? fontIndent : 0)
+                                        )) {
+                                    /*
+                                     * End the page after this line
+                                     */
+                                    lineBreak = true;
+                                    lastLine = true;
+                                    break line;
+                                }
+
+                                continue line;
+
                             case TextParser.STATE_RULER:
 
                                 regionsTemp.addElement(
@@ -396,7 +436,7 @@ public class TextPage
                                          * If the word chunk already ends with a
                                          * dash, include it.
                                          */
-                                        if (buffer[parser.position + i]
+                                        if (buffer.charAt(parser.position + i)
                                                 == '-') {
                                             i++;
                                         }
@@ -614,7 +654,7 @@ public class TextPage
             final ColorScheme cp,
             final AlbiteFont fontPlain,
             final AlbiteFont fontItalic,
-            final char[] textBuffer) {
+            final TextBuffer textBuffer) {
 
         final int regionsSize = regions.length;
 
@@ -683,7 +723,7 @@ public class TextPage
 
         final AlbiteFont fontPlain = booklet.fontPlain;
         final AlbiteFont fontItalic = booklet.fontItalic;
-        final char[] textBuffer = booklet.getTextBuffer();
+        final TextBuffer textBuffer = booklet.getTextBuffer();
 
         final int regionsSize = regions.length;
         final int k = Math.min(firstElement, lastElement);
@@ -699,7 +739,7 @@ public class TextPage
         }
     }
 
-    public final String getTextForBookmark(final char[] chapterBuffer) {
+    public final String getTextForBookmark(final TextBuffer chapterBuffer) {
 
         final int size = regions.length;
         StringBuffer buf = new StringBuffer(48);
@@ -716,7 +756,7 @@ public class TextPage
     }
 
     public final String getTextForBookmark(
-            final char[] chapterBuffer,
+            final TextBuffer chapterBuffer,
             final int firstIndex,
             final int lastIndex) {
 
@@ -3,6 +3,7 @@ package org.albite.book.view;
 import javax.microedition.lcdui.Graphics;
 import org.albite.albite.ColorScheme;
 import org.albite.font.AlbiteFont;
+import org.albite.lang.TextBuffer;
 //#if !(TinyMode || TinyModeExport || LightMode || LightModeExport)
 import org.albite.lang.TextTools;
 //#endif
@@ -38,7 +39,7 @@ public class TextRegion extends Region {
             final ColorScheme cp,
             final AlbiteFont fontPlain,
             final AlbiteFont fontItalic,
-            final char[] chapterBuffer) {
+            final TextBuffer chapterBuffer) {
 
         AlbiteFont font =
                 TextPage.chooseFont(fontPlain, fontItalic, style);
@@ -52,7 +53,7 @@ public class TextRegion extends Region {
             final ColorScheme cp,
             final AlbiteFont fontPlain,
             final AlbiteFont fontItalic,
-            final char[] chapterBuffer) {
+            final TextBuffer chapterBuffer) {
         
         AlbiteFont font =
                 TextPage.chooseFont(fontPlain, fontItalic, style);
@@ -63,18 +64,19 @@ public class TextRegion extends Region {
                 x, y, position, length);
     }
 
-    public final String getText(final char[] chapterBuffer) {
+    public final String getText(final TextBuffer chapterBuffer) {
     //#if !(TinyMode || TinyModeExport || LightMode || LightModeExport)
-        return TextTools.prepareForDict(chapterBuffer, position, length);
+        return TextTools.prepareForDict(
+                chapterBuffer.getChars(position, length), 0, length);
     //#else
-//#         return new String(chapterBuffer, position, length);
+//#         return chapterBuffer.getString(position, length);
     //#endif
     }
 
     public void addTextChunk(
-            final char[] chapterBuffer,
+            final TextBuffer chapterBuffer,
             final StringBuffer buf) {
-        buf.append(chapterBuffer, position, length);
+        chapterBuffer.appendTo(buf, position, length);
         buf.append(' ');
     }
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ package org.albite.font;
 import javax.microedition.lcdui.Font;
 import javax.microedition.lcdui.Graphics;
 import org.albite.albite.AlbiteMIDlet;
+import org.albite.lang.TextBuffer;
 
 /**
  *
@@ -24,6 +25,11 @@ public class AlbiteFont {
     private   final Font            font;
     private   final int             theCCharWidth;
 
+    /*
+     * A char outside the BMP, to be drawn at once
+     */
+    private   final char[]          surrogates = new char[2];
+
     public final int                spaceWidth;
     public final int                dashWidth;
     public final int                questionWidth;
@@ -108,7 +114,25 @@ public class AlbiteFont {
         return res;
     }
 
+    public final int charsWidth(
+            final TextBuffer c, final int offset, final int length) {
+
+        int res = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+            res += charWidth(c.charAt(i));
+        }
+
+        return res;
+    }
+
     public final int charWidth(char c) {
+        if( isLowSurrogate(c) ) {
+            /*
+             * It's drawn together with the first surrogate
+             */
+            return 0;
+        }
         if( (int)c>0xff ) {
             //return font.charWidth( c );
             return theCCharWidth;
@@ -137,7 +161,10 @@ public class AlbiteFont {
 
         for (int i = offset; i < end; i++) {
             c = buffer[i];
-            drawCharFromSystem( g, color, c, x, y );
+            if( isHighSurrogate(c) && (i+1)<end )
+                drawSurrogates( g, color, (char)c, buffer[i+1], x, y );
+            else
+                drawCharFromSystem( g, color, c, x, y );
             x+=charWidth((char)c);
             if( limitedWidth>0 && (i+1)<end && (x+charWidth(buffer[i+1]))>=limitedWidth )
                 break;
@@ -154,6 +181,39 @@ public class AlbiteFont {
         this.drawChars(g, color, buffer, x, y, offset, length, 0);
     }
 
+    public final void drawChars(
+            final Graphics g,
+            final int color,
+            final TextBuffer buffer,
+                  int x, final int y,
+            final int offset,
+            final int length,
+            final int limitedWidth) {
+        int end = offset+length;
+        char c;
+
+        for (int i = offset; i < end; i++) {
+            c = buffer.charAt(i);
+            if( isHighSurrogate(c) && (i+1)<end )
+                drawSurrogates( g, color, c, buffer.charAt(i+1), x, y );
+            else
+                drawCharFromSystem( g, color, c, x, y );
+            x+=charWidth(c);
+            if( limitedWidth>0 && (i+1)<end && (x+charWidth(buffer.charAt(i+1)))>=limitedWidth )
+                break;
+        }
+    }
+
+    public final void drawChars(
+            final Graphics g,
+            final int color,
+            final TextBuffer buffer,
+                  int x, final int y,
+            final int offset,
+            final int length) {
+        this.drawChars(g, color, buffer, x, y, offset, length, 0);
+    }
+
     public final void drawChars(
             final Graphics g,
             final int color,
@@ -167,11 +227,34 @@ public class AlbiteFont {
             final int color,
             final int c,
             final int x, final int y ) {
+        if( isLowSurrogate(c) )
+            return;
         g.setFont( font );
         g.setColor( color );
         g.drawChar( (char)c, x, y, Graphics.TOP |Graphics.LEFT );
     }
 
+    private void drawSurrogates(
+            final Graphics g,
+            final int color,
+            final char high,
+            final char low,
+            final int x, final int y ) {
+        surrogates[0] = high;
+        surrogates[1] = low;
+        g.setFont( font );
+        g.setColor( color );
+        g.drawChars( surrogates, 0, 2, x, y, Graphics.TOP |Graphics.LEFT );
+    }
+
+    private static boolean isHighSurrogate( final int c ) {
+        return c>=0xD800 && c<=0xDBFF;
+    }
+
+    private static boolean isLowSurrogate( final int c ) {
+        return c>=0xDC00 && c<=0xDFFF;
+    }
+
     public final void drawChar(
             final Graphics g,
             final int color,
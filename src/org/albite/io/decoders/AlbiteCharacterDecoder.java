@@ -5,8 +5,6 @@
 
 package org.albite.io.decoders;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 
 /**
@@ -23,20 +21,28 @@ abstract class AlbiteCharacterDecoder {
      */
     public static final char    SUBSTITUTE_CHAR     = '?';
 
-    public abstract int decode(InputStream in) throws IOException;
+    /**
+     * Decodes the bytes of <code>src</code> into <code>dst</code>, until
+     * <code>len</code> chars have been written, or there are no more
+     * bytes that make a whole char. The bytes of a multibyte char, which
+     * is cut off at the end of <code>src</code>, are left there, so that
+     * they could be decoded with the next bytes from the stream.
+     * A char outside the BMP is decoded into two surrogates, and if there
+     * is room for only one of them, it is left in <code>src</code>, too.
+     *
+     * @param src the bytes to decode; its position is moved past the
+     * bytes that have been decoded
+     * @param dst where to put the chars
+     * @param off where to start putting them
+     * @param len how many chars to decode at most
+     * @return the number of chars decoded
+     */
+    public abstract int decode(
+            DecoderInput src, char[] dst, int off, int len);
 
     public static AlbiteCharacterDecoder getDecoder(final String encoding)
             throws UnsupportedEncodingException {
 
-        //#if !(TinyMode || TinyModeExport)
-        /*
-         * ASCII
-         */
-        if (match(encoding, Encodings.ASCII_ALIASES)) {
-            return DecoderASCII.getInstance();
-        }
-        //#endif
-
         /*
          * UTF-8
          */
@@ -45,101 +51,41 @@ abstract class AlbiteCharacterDecoder {
         }
 
         /*
-         * ISO-8859-X
+         * UTF-16
          */
-        if (match(encoding, Encodings.ISO_8859_1_ALIASES)) {
-            return DecoderISO_8859_1.getInstance();
-        }
-
-        //#if !(TinyMode || TinyModeExport)
-        if (match(encoding, Encodings.ISO_8859_2_ALIASES)) {
-            return DecoderISO_8859_2.getInstance();
-        }
-
-        if (match(encoding, Encodings.ISO_8859_3_ALIASES)) {
-            return DecoderISO_8859_3.getInstance();
-        }
-
-        if (match(encoding, Encodings.ISO_8859_4_ALIASES)) {
-            return DecoderISO_8859_4.getInstance();
+        if (match(encoding, Encodings.UTF_16LE_ALIASES)) {
+            return DecoderUTF_16.getInstance(false);
         }
 
-        if (match(encoding, Encodings.ISO_8859_5_ALIASES)) {
-            return DecoderISO_8859_5.getInstance();
+        if (match(encoding, Encodings.UTF_16BE_ALIASES)) {
+            return DecoderUTF_16.getInstance(true);
         }
 
-        if (match(encoding, Encodings.ISO_8859_7_ALIASES)) {
-            return DecoderISO_8859_7.getInstance();
-        }
-
-        if (match(encoding, Encodings.ISO_8859_9_ALIASES)) {
-            return DecoderISO_8859_9.getInstance();
-        }
-
-        if (match(encoding, Encodings.ISO_8859_10_ALIASES)) {
-            return DecoderISO_8859_10.getInstance();
-        }
-
-        if (match(encoding, Encodings.ISO_8859_13_ALIASES)) {
-            return DecoderISO_8859_13.getInstance();
-        }
-
-        if (match(encoding, Encodings.ISO_8859_14_ALIASES)) {
-            return DecoderISO_8859_14.getInstance();
-        }
-
-        if (match(encoding, Encodings.ISO_8859_15_ALIASES)) {
-            return DecoderISO_8859_15.getInstance();
-        }
-
-        if (match(encoding, Encodings.ISO_8859_16_ALIASES)) {
-            return DecoderISO_8859_16.getInstance();
-        }
-        //#endif
-
+        //#if !(TinyMode || TinyModeExport)
         /*
-         * Windows
+         * CJK
          */
-        if (match(encoding, Encodings.WINDOWS_1250_ALIASES)) {
-            return DecoderWindows_1250.getInstance();
-        }
-
-        //#if !(TinyMode || TinyModeExport)
-        if (match(encoding, Encodings.WINDOWS_1251_ALIASES)) {
-            return DecoderWindows_1251.getInstance();
-        }
-
-        if (match(encoding, Encodings.WINDOWS_1252_ALIASES)) {
-            return DecoderWindows_1252.getInstance();
+        if (match(encoding, Encodings.BIG5_ALIASES)) {
+            return DecoderBig5.getInstance();
         }
 
-        if (match(encoding, Encodings.WINDOWS_1253_ALIASES)) {
-            return DecoderWindows_1253.getInstance();
+        if (match(encoding, Encodings.GB18030_ALIASES)) {
+            return DecoderGB18030.getInstance();
         }
 
-        if (match(encoding, Encodings.WINDOWS_1254_ALIASES)) {
-            return DecoderWindows_1254.getInstance();
-        }
-
-        if (match(encoding, Encodings.WINDOWS_1257_ALIASES)) {
-            return DecoderWindows_1257.getInstance();
+        if (match(encoding, Encodings.SHIFT_JIS_ALIASES)) {
+            return DecoderShift_JIS.getInstance();
         }
+        //#endif
 
         /*
-         * KOI8
+         * All the rest are single byte encodings
          */
-        if (match(encoding, Encodings.KOI8_R_ALIASES)) {
-            return DecoderKOI8_R.getInstance();
-        }
-
-        if (match(encoding, Encodings.KOI8_RU_ALIASES)) {
-            return DecoderKOI8_RU.getInstance();
-        }
-
-        if (match(encoding, Encodings.KOI8_U_ALIASES)) {
-            return DecoderKOI8_U.getInstance();
+        for (int i = 0; i < Encodings.ALIASES.length; i++) {
+            if (match(encoding, Encodings.ALIASES[i])) {
+                return SingleByteDecoder.getInstance(Encodings.ALIASES[i][0]);
+            }
         }
-        //#endif
 
         throw new UnsupportedEncodingException();
     }
@@ -154,6 +100,28 @@ abstract class AlbiteCharacterDecoder {
         return false;
     }
 
+    /**
+     * @param encoding the name of an encoding, as in Encodings.ENCODINGS
+     * @return true, if it's one of the single byte encodings
+     */
+    static boolean isSingleByte(final String encoding) {
+        if (Encodings.UTF_8.equals(encoding)
+                || Encodings.UTF_16LE.equals(encoding)
+                || Encodings.UTF_16BE.equals(encoding)) {
+            return false;
+        }
+
+        //#if !(TinyMode || TinyModeExport)
+        if (Encodings.BIG5.equals(encoding)
+                || Encodings.GB18030.equals(encoding)
+                || Encodings.SHIFT_JIS.equals(encoding)) {
+            return false;
+        }
+        //#endif
+
+        return true;
+    }
+
     public static boolean decoderAvailable(final String encoding) {
         for (int i = 0; i < Encodings.ALIASES.length; i++) {
             if (match(encoding, Encodings.ALIASES[i])) {
@@ -9,7 +9,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
-import java13.io.BufferedInputStream;
 
 /**
  *
@@ -17,72 +16,170 @@ import java13.io.BufferedInputStream;
  */
 public class AlbiteStreamReader extends Reader {
 
+    private static final int                BUFFER_SIZE = 2048;
+
     private final   InputStream             in;
     private         AlbiteCharacterDecoder  decoder;
 
+    /*
+     * Bytes read from the stream, which haven't been decoded yet
+     */
+    private final   DecoderInput            input =
+            new DecoderInput(BUFFER_SIZE);
+
+    /*
+     * The second surrogate of a char, whose first one has been read
+     * alone, or -1
+     */
+    private         int                     pendingChar = -1;
+    private         int                     markedPendingChar = -1;
+
+    /*
+     * If the stream starts with a byte order mark, which settles the
+     * encoding
+     */
+    private         boolean                 byteOrderMark = false;
+
+    private final   char[]                  singleChar = new char[1];
+    private final   char[]                  surrogates = new char[2];
+
     public AlbiteStreamReader(
             final InputStream in,
             final String encoding)
             throws IOException {
 
+        this.in = in;
         setEncoding(encoding);
         
-        if (decoder instanceof DecoderUTF_8) {
-            if (!in.markSupported()) {
-                this.in = new BufferedInputStream(in);
-            } else {
-                this.in = in;
-            }
+        if (decoder instanceof DecoderUTF_8
+                || decoder instanceof DecoderUTF_16) {
             skipBOM();
-        } else {
-            this.in = in;
         }
     }
 
+    /**
+     * Skips the byte order mark and switches to the Unicode encoding it
+     * stands for, e.g. a file said to be UTF-8 may be UTF-16 after all.
+     */
     private void skipBOM() throws IOException {
-        in.mark(10);
+        while (input.limit < 3 && input.fill(in, 3 - input.limit) > 0) {}
 
-        int c0 = in.read();
-        int c1 = in.read();
-        int c2 = in.read();
+        final byte[] b = input.bytes;
 
         if (
-                   c0 != 0xEF
-                || c1 != 0xBB
-                || c2 != 0xBF) {
+                   input.limit >= 3
+                && b[0] == (byte) 0xEF
+                && b[1] == (byte) 0xBB
+                && b[2] == (byte) 0xBF) {
+
+            decoder = DecoderUTF_8.getInstance();
+            input.position = 3;
+            byteOrderMark = true;
 
-            in.reset();
+        } else if (
+                   input.limit >= 2
+                && b[0] == (byte) 0xFF
+                && b[1] == (byte) 0xFE) {
+
+            decoder = DecoderUTF_16.getInstance(false);
+            input.position = 2;
+            byteOrderMark = true;
+
+        } else if (
+                   input.limit >= 2
+                && b[0] == (byte) 0xFE
+                && b[1] == (byte) 0xFF) {
+
+            decoder = DecoderUTF_16.getInstance(true);
+            input.position = 2;
+            byteOrderMark = true;
         }
     }
 
+    /**
+     * Changes the encoding, unless it has been set by a byte order mark.
+     */
     public final void setEncoding(final String encoding)
             throws UnsupportedEncodingException {
 
+        if (byteOrderMark) {
+            return;
+        }
+
         this.decoder = AlbiteCharacterDecoder.getDecoder(encoding);
     }
 
     public int read() throws IOException {
-        return decoder.decode(in);
+        if (pendingChar < 0 && decoder.decode(input, singleChar, 0, 1) == 1) {
+            return singleChar[0];
+        }
+
+        if (read(singleChar, 0, 1) == 0) {
+            return AlbiteCharacterDecoder.DECODING_DONE;
+        }
+
+        return singleChar[0];
     }
 
+    /**
+     * Reads blocks of bytes from the stream and decodes them at once.
+     * The bytes, which haven't been decoded, are left for the next read.
+     */
     public int read(char[] cbuf, int off, int len) throws IOException {
 
-        int read = 0;
+        if (len == 0) {
+            return 0;
+        }
+
+        int done = 0;
 
-        for (int i = 0; i < len; i++) {
-            read = decoder.decode(in);
+        if (pendingChar >= 0) {
+            cbuf[off] = (char) pendingChar;
+            pendingChar = -1;
+            done = 1;
+        }
+
+        while (done < len) {
+            done += decoder.decode(input, cbuf, off + done, len - done);
 
-            if (read == -1) {
+            if (done == len - 1) {
                 /*
-                 * EOF
+                 * There may have been room only for the first surrogate
                  */
-                return i;
+                final int n = decoder.decode(input, surrogates, 0, 2);
+
+                if (n > 0) {
+                    cbuf[off + done++] = surrogates[0];
+                }
+
+                if (n == 2) {
+                    pendingChar = surrogates[1];
+                }
+            }
+
+            if (done == len) {
+                break;
             }
 
-            cbuf[i + off] = (char) read;
+            input.compact();
+
+            if (input.fill(in, input.bytes.length) == -1) {
+                /*
+                 * EOF
+                 */
+                if (input.position < input.limit) {
+                    /*
+                     * The last char has been cut off
+                     */
+                    input.position = input.limit;
+                    cbuf[off + done++] =
+                            AlbiteCharacterDecoder.SUBSTITUTE_CHAR;
+                }
+                break;
+            }
         }
 
-        return len;
+        return done;
     }
 
     /**
@@ -118,16 +215,37 @@ public class AlbiteStreamReader extends Reader {
         in.close();
     }
 
+    /**
+     * The mark is kept in the buffer of the reader, so the stream
+     * needn't support it.
+     *
+     * @param readlimit the number of bytes after which the mark may be
+     * dropped
+     */
     public void mark(final int readlimit) {
-        in.mark(readlimit);
+        input.mark(readlimit);
+        markedPendingChar = pendingChar;
     }
 
     public void reset() throws IOException {
-        in.reset();
+        if (!input.reset()) {
+            throw new IOException("Mark invalid");
+        }
+
+        pendingChar = markedPendingChar;
     }
 
     public boolean markSupported() {
-        return in.markSupported();
+        return true;
+    }
+
+    /**
+     * @return the number of bytes that have been read from the stream,
+     * but haven't been decoded yet, or -1, if half of a surrogate pair
+     * is waiting to be read
+     */
+    public final int getUndecodedBytes() {
+        return (pendingChar >= 0 ? -1 : input.remaining());
     }
 
     public static boolean encodingSupported(final String encoding) {
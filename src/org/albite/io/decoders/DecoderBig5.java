@@ -0,0 +1,26 @@
+package org.albite.io.decoders;
+
+/**
+ * Big5, with the extensions of Windows code page 950.
+ *
+ * @author albus
+ */
+class DecoderBig5 extends DoubleByteDecoder {
+
+    private static DecoderBig5 instance;
+
+    private DecoderBig5() {
+        super(Encodings.BIG5, false);
+    }
+
+    public static AlbiteCharacterDecoder getInstance() {
+        if (instance == null) {
+            instance = new DecoderBig5();
+        }
+        return instance;
+    }
+
+    protected final boolean isLeadByte(final int b) {
+        return b >= 0x81 && b <= 0xFE;
+    }
+}
@@ -0,0 +1,135 @@
+package org.albite.io.decoders;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.albite.albite.AlbiteMIDlet;
+
+/**
+ * GB18030, which also decodes GBK and GB2312, as their chars of two bytes
+ * are the same.
+ *
+ * The rest of the BMP is in chars of four bytes, which go in the same
+ * order as the code points they stand for. They are found through
+ * /res/encodings/gb18030/ranges.bin, which holds the places where the
+ * order skips a code point: a short for the number of ranges, and then
+ * for each one the index of its first char of four bytes and the code
+ * point of that char. The chars from 0x90308130 on are the code points
+ * from U+10000 on.
+ *
+ * @author albus
+ */
+class DecoderGB18030 extends DoubleByteDecoder {
+
+    private static final String RANGES_PATH =
+            "/res/encodings/gb18030/ranges.bin";
+
+    /*
+     * The index of the last char in the BMP, i.e. 0x8431A439
+     */
+    private static final int    BMP_LAST            = 39419;
+
+    /*
+     * The index of 0x90308130, i.e. U+10000
+     */
+    private static final int    SUPPLEMENTARY_FIRST = 189000;
+
+    private static DecoderGB18030 instance;
+
+    private char[] rangeIndices;
+    private char[] rangeChars;
+
+    private DecoderGB18030() {
+        super(Encodings.GB18030, true);
+    }
+
+    public static AlbiteCharacterDecoder getInstance() {
+        if (instance == null) {
+            instance = new DecoderGB18030();
+        }
+        return instance;
+    }
+
+    protected final boolean isLeadByte(final int b) {
+        return b >= 0x81 && b <= 0xFE;
+    }
+
+    protected final int decodeFourBytes(
+            final int b1, final int b2, final int b3, final int b4) {
+
+        final int index =
+                (((b1 - 0x81) * 10 + (b2 - 0x30)) * 126 + (b3 - 0x81)) * 10
+                + (b4 - 0x30);
+
+        if (index >= SUPPLEMENTARY_FIRST) {
+            final int c = index - SUPPLEMENTARY_FIRST + 0x10000;
+            return (c <= 0x10FFFF ? c : -1);
+        }
+
+        if (index > BMP_LAST) {
+            return -1;
+        }
+
+        if (rangeIndices == null) {
+            loadRanges();
+        }
+
+        /*
+         * Find the last range that starts at or before the index
+         */
+        int low = 0;
+        int high = rangeIndices.length - 1;
+        int mid;
+
+        if (high < 0 || index < rangeIndices[0]) {
+            return -1;
+        }
+
+        while (low < high) {
+            mid = (low + high + 1) >> 1;
+
+            if (rangeIndices[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return rangeChars[low] + index - rangeIndices[low];
+    }
+
+    private void loadRanges() {
+        char[] indices = new char[0];
+        char[] chars = new char[0];
+
+        final InputStream is = getClass().getResourceAsStream(RANGES_PATH);
+
+        if (is != null) {
+            final DataInputStream in = new DataInputStream(is);
+
+            try {
+                try {
+                    final int count = in.readUnsignedShort();
+                    indices = new char[count];
+                    chars = new char[count];
+
+                    for (int i = 0; i < count; i++) {
+                        indices[i] = in.readChar();
+                        chars[i] = in.readChar();
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                //#debug
+                AlbiteMIDlet.LOGGER.log(e);
+
+                indices = new char[0];
+                chars = new char[0];
+            }
+        }
+
+        rangeIndices = indices;
+        rangeChars = chars;
+    }
+}
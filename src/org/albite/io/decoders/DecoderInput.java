@@ -0,0 +1,96 @@
+package org.albite.io.decoders;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Bytes waiting to be decoded. The decoders take the bytes between
+ * <code>position</code> and <code>limit</code> and move
+ * <code>position</code> past the ones they have decoded.
+ *
+ * The bytes after a mark are kept, until more than
+ * <code>markLimit</code> of them have been decoded.
+ *
+ * @author albus
+ */
+final class DecoderInput {
+
+    byte[]          bytes;
+    int             position    = 0;
+    int             limit       = 0;
+
+    private int     mark        = -1;
+    private int     markLimit   = 0;
+
+    DecoderInput(final int size) {
+        bytes = new byte[size];
+    }
+
+    final int remaining() {
+        return limit - position;
+    }
+
+    final void mark(final int readLimit) {
+        mark = position;
+        markLimit = readLimit;
+    }
+
+    /**
+     * @return false, if there is no mark to go back to
+     */
+    final boolean reset() {
+        if (mark < 0) {
+            return false;
+        }
+
+        position = mark;
+        return true;
+    }
+
+    /**
+     * Moves the bytes that haven't been decoded yet, or have been marked,
+     * to the start of the buffer, making it bigger if there's no room
+     * left after them.
+     */
+    final void compact() {
+        if (mark >= 0 && position - mark > markLimit) {
+            mark = -1;
+        }
+
+        final int start = (mark >= 0 ? mark : position);
+        final int kept = limit - start;
+
+        if (kept == bytes.length) {
+            final byte[] b = new byte[bytes.length * 2];
+            System.arraycopy(bytes, start, b, 0, kept);
+            bytes = b;
+        } else if (start > 0 && kept > 0) {
+            System.arraycopy(bytes, start, bytes, 0, kept);
+        }
+
+        if (mark >= 0) {
+            mark -= start;
+        }
+
+        position -= start;
+        limit = kept;
+    }
+
+    /**
+     * Reads as many bytes as there is room for, but not more than
+     * <code>max</code>.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException
+     */
+    final int fill(final InputStream in, final int max) throws IOException {
+        final int read =
+                in.read(bytes, limit, Math.min(max, bytes.length - limit));
+
+        if (read > 0) {
+            limit += read;
+        }
+
+        return read;
+    }
+}
@@ -0,0 +1,35 @@
+package org.albite.io.decoders;
+
+/**
+ * Shift_JIS, with the extensions of Windows code page 932. The bytes
+ * 0xA1 - 0xDF are the halfwidth katakana.
+ *
+ * @author albus
+ */
+class DecoderShift_JIS extends DoubleByteDecoder {
+
+    private static DecoderShift_JIS instance;
+
+    private DecoderShift_JIS() {
+        super(Encodings.SHIFT_JIS, false);
+    }
+
+    public static AlbiteCharacterDecoder getInstance() {
+        if (instance == null) {
+            instance = new DecoderShift_JIS();
+        }
+        return instance;
+    }
+
+    protected final boolean isLeadByte(final int b) {
+        return (b >= 0x81 && b <= 0x9F) || (b >= 0xE0 && b <= 0xFC);
+    }
+
+    protected final char decodeSingleByte(final int b) {
+        if (b >= 0xA1 && b <= 0xDF) {
+            return (char) (0xFF61 + b - 0xA1);
+        }
+
+        return SUBSTITUTE_CHAR;
+    }
+}
@@ -0,0 +1,105 @@
+package org.albite.io.decoders;
+
+/**
+ * Decodes UTF-16 of either byte order, a pair of bytes at a time.
+ * A surrogate without its other half becomes a SUBSTITUTE_CHAR.
+ *
+ * @author albus
+ */
+class DecoderUTF_16 extends AlbiteCharacterDecoder {
+
+    private static DecoderUTF_16 littleEndian;
+    private static DecoderUTF_16 bigEndian;
+
+    /*
+     * Where the high and the low byte of a code unit are
+     */
+    private final int high;
+    private final int low;
+
+    private DecoderUTF_16(final boolean bigEndian) {
+        high = (bigEndian ? 0 : 1);
+        low = 1 - high;
+    }
+
+    public static AlbiteCharacterDecoder getInstance(final boolean big) {
+        if (big) {
+            if (bigEndian == null) {
+                bigEndian = new DecoderUTF_16(true);
+            }
+            return bigEndian;
+        }
+
+        if (littleEndian == null) {
+            littleEndian = new DecoderUTF_16(false);
+        }
+        return littleEndian;
+    }
+
+    public final int decode(
+            final DecoderInput src,
+            final char[] dst,
+            final int off,
+            final int len) {
+
+        final byte[] bytes = src.bytes;
+        final int limit = src.limit;
+        final int high = this.high;
+        final int low = this.low;
+
+        int pos = src.position;
+        int i = off;
+
+        /*
+         * Each char takes at least two bytes
+         */
+        final int end = off + Math.min(len, (limit - pos) >> 1);
+
+        int c, c2;
+
+        while (i < end) {
+            c = ((bytes[pos + high] & 0xFF) << 8) | (bytes[pos + low] & 0xFF);
+
+            if ((c & 0xF800) == 0xD800) {
+                if (c < 0xDC00) {
+                    /*
+                     * A high surrogate needs to be decoded together
+                     * with the low one after it
+                     */
+                    if (pos + 4 > limit) {
+                        break;
+                    }
+
+                    c2 = ((bytes[pos + 2 + high] & 0xFF) << 8)
+                            | (bytes[pos + 2 + low] & 0xFF);
+
+                    if ((c2 & 0xFC00) == 0xDC00) {
+                        if (i + 1 == off + len) {
+                            /*
+                             * There is no room for both of them
+                             */
+                            break;
+                        }
+
+                        dst[i++] = (char) c;
+                        dst[i++] = (char) c2;
+                        pos += 4;
+                        continue;
+                    }
+                }
+
+                c = SUBSTITUTE_CHAR;
+            }
+
+            dst[i++] = (char) c;
+            pos += 2;
+        }
+
+        src.position = pos;
+        return i - off;
+    }
+
+    public final String getEncoding() {
+        return (high == 0 ? Encodings.UTF_16BE : Encodings.UTF_16LE);
+    }
+}
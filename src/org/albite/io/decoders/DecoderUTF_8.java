@@ -5,10 +5,12 @@
 
 package org.albite.io.decoders;
 
-import java.io.IOException;
-import java.io.InputStream;
-
 /**
+ * Runs of ASCII are copied straight through. Multibyte sequences are
+ * validated, so that overlong forms, encoded surrogates and values above
+ * U+10FFFF become a single SUBSTITUTE_CHAR, which takes only the bytes
+ * up to the first one that doesn't fit. Chars outside the BMP are
+ * decoded into surrogate pairs.
  *
  * @author albus
  */
@@ -25,62 +27,182 @@ class DecoderUTF_8 extends AlbiteCharacterDecoder {
         return instance;
     }
 
-    public final int decode(final InputStream in) throws IOException {
+    public final int decode(
+            final DecoderInput src,
+            final char[] dst,
+            final int off,
+            final int len) {
 
-        int char1, char2, char3;
+        final byte[] bytes = src.bytes;
+        final int limit = src.limit;
+        final int end = off + len;
 
-        char1 = in.read();
+        int pos = src.position;
+        int i = off;
 
-        if (char1 == -1) {
-            return DECODING_DONE;
-        }
+        int b, b2, b3, b4, c;
+        int runEnd;
+
+        while (i < end && pos < limit) {
+            b = bytes[pos];
+
+            if (b >= 0) {
+                /* 0xxxxxxx */
+                runEnd = Math.min(limit, pos + end - i);
+
+                do {
+                    dst[i++] = (char) b;
+                    pos++;
+                } while (pos < runEnd && (b = bytes[pos]) >= 0);
 
-        switch (char1 >> 4) {
+                continue;
+            }
 
-            case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
-                /* 0xxxxxxx*/
-                return char1;
+            b &= 0xFF;
 
-            case 12: case 13:
-                /* 110x xxxx   10xx xxxx*/
-                char2 = in.read();
-                if (char2 == -1) {
-                    return SUBSTITUTE_CHAR;
+            /*
+             * Each continuation byte is checked as soon as it's read, so
+             * that a char, which has been cut off (and decoding stops
+             * before it), is told from one, which is invalid. The ranges of the first continuation
+             * byte exclude overlong forms, surrogates and values
+             * above U+10FFFF.
+             */
+            if (b >= 0xE0 && b < 0xF0) {
+                /* 1110 xxxx  10xx xxxx  10xx xxxx */
+                if (pos + 2 < limit) {
+                    /*
+                     * Check both continuation bytes at once and leave
+                     * the byte-by-byte checks for the invalid chars
+                     */
+                    b2 = bytes[pos + 1];
+                    b3 = bytes[pos + 2];
+                    c = ((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F);
+
+                    if (((b2 & 0xC0) | ((b3 & 0xC0) >> 2)) == 0xA0
+                            && c >= 0x800 && (c < 0xD800 || c > 0xDFFF)) {
+                        dst[i++] = (char) c;
+                        pos += 3;
+                        continue;
+                    }
                 }
 
-                if ((char2 & 0xC0) != 0x80) {
-                    return SUBSTITUTE_CHAR;
+                if (pos + 1 == limit) {
+                    break;
                 }
 
-                return (((char1 & 0x1F) << 6) | (char2 & 0x3F));
+                b2 = bytes[pos + 1];
 
-            case 14:
-                /* 1110 xxxx  10xx xxxx  10xx xxxx */
-                char2 = in.read();
-                if (char2 == -1) {
-                    return SUBSTITUTE_CHAR;
+                if ((b2 & 0xC0) != 0x80
+                        || (b == 0xE0 && (b2 & 0xFF) < 0xA0)
+                        || (b == 0xED && (b2 & 0xFF) > 0x9F)) {
+                    pos++;
+                    dst[i++] = SUBSTITUTE_CHAR;
+                    continue;
+                }
+
+                if (pos + 2 == limit) {
+                    break;
+                }
+
+                b3 = bytes[pos + 2];
+
+                if ((b3 & 0xC0) != 0x80) {
+                    pos += 2;
+                    dst[i++] = SUBSTITUTE_CHAR;
+                    continue;
+                }
+
+                dst[i++] = (char) (
+                          ((b  & 0x0F) << 12)
+                        | ((b2 & 0x3F) << 6 )
+                        | ((b3 & 0x3F)      ));
+                pos += 3;
+
+            } else if (b >= 0xC2 && b < 0xE0) {
+                /* 110x xxxx  10xx xxxx */
+                if (pos + 1 == limit) {
+                    break;
+                }
+
+                b2 = bytes[pos + 1];
+
+                if ((b2 & 0xC0) != 0x80) {
+                    pos++;
+                    dst[i++] = SUBSTITUTE_CHAR;
+                    continue;
                 }
 
-                char3 = in.read();
-                if (char3 == -1) {
-                    return SUBSTITUTE_CHAR;
+                dst[i++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+                pos += 2;
+
+            } else if (b >= 0xF0 && b < 0xF5) {
+                /* 1111 0xxx  10xx xxxx  10xx xxxx  10xx xxxx */
+                if (pos + 1 == limit) {
+                    break;
+                }
+
+                b2 = bytes[pos + 1];
+
+                if ((b2 & 0xC0) != 0x80
+                        || (b == 0xF0 && (b2 & 0xFF) < 0x90)
+                        || (b == 0xF4 && (b2 & 0xFF) > 0x8F)) {
+                    pos++;
+                    dst[i++] = SUBSTITUTE_CHAR;
+                    continue;
                 }
 
-                if (((char2 & 0xC0) != 0x80) || ((char3 & 0xC0) != 0x80)) {
-                    return SUBSTITUTE_CHAR;
+                if (pos + 2 == limit) {
+                    break;
                 }
 
-                return (  ((char1 & 0x0F) << 12)
-                        | ((char2 & 0x3F) << 6 )
-                        | ((char3 & 0x3F)      ));
+                b3 = bytes[pos + 2];
+
+                if ((b3 & 0xC0) != 0x80) {
+                    pos += 2;
+                    dst[i++] = SUBSTITUTE_CHAR;
+                    continue;
+                }
+
+                if (pos + 3 == limit) {
+                    break;
+                }
 
-            default:
-                /* 10xx xxxx,  1111 xxxx */
-                return SUBSTITUTE_CHAR;
+                b4 = bytes[pos + 3];
+
+                if ((b4 & 0xC0) != 0x80) {
+                    pos += 3;
+                    dst[i++] = SUBSTITUTE_CHAR;
+                    continue;
+                }
+
+                if (i + 1 == end) {
+                    /*
+                     * No room for both of the surrogates
+                     */
+                    break;
+                }
+
+                c = (     ((b  & 0x07) << 18)
+                        | ((b2 & 0x3F) << 12)
+                        | ((b3 & 0x3F) << 6 )
+                        | ((b4 & 0x3F)      )) - 0x10000;
+
+                dst[i++] = (char) (0xD800 | (c >> 10));
+                dst[i++] = (char) (0xDC00 | (c & 0x3FF));
+                pos += 4;
+
+            } else {
+                /* 10xx xxxx, an overlong 110x xxxx, or 1111 1xxx */
+                pos++;
+                dst[i++] = SUBSTITUTE_CHAR;
+            }
         }
+
+        src.position = pos;
+        return i - off;
     }
 
     public final String getEncoding() {
         return Encodings.UTF_8;
     }
-}
\ No newline at end of file
+}
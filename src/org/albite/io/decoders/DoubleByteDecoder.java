@@ -0,0 +1,273 @@
+package org.albite.io.decoders;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.albite.albite.AlbiteMIDlet;
+
+/**
+ * Decodes the CJK encodings, in which bytes below 0x80 are ASCII and a
+ * lead byte above them starts a char of two bytes.
+ *
+ * The chars are kept in a two-level table: a row for each lead byte,
+ * indexed by the trail byte. The rows are stored in pages of 16 lead
+ * bytes in /res/encodings/&lt;encoding&gt;/&lt;page&gt;.bin, where
+ * &lt;page&gt; is the high nibble of the lead byte in hex. A page is
+ * loaded only when one of its lead bytes is first met, so that texts
+ * which use only a part of the table don't need the rest of it in memory.
+ *
+ * Each row in a page starts with the first trail byte that has a char
+ * and the number of trail bytes that follow it. The chars come in runs,
+ * each one starting with a short: if it's positive, that many chars
+ * follow; if it's negative, only one char follows, and the run is made of
+ * it and the chars right after it. A zero char is not mapped.
+ *
+ * @author albus
+ */
+abstract class DoubleByteDecoder extends AlbiteCharacterDecoder {
+
+    private static final String     TABLES_PATH     = "/res/encodings/";
+
+    private static final int        PAGE_SIZE       = 16;
+
+    /*
+     * Used for lead bytes that have no chars
+     */
+    private static final char[]     EMPTY_ROW       = {0};
+
+    private final String            encoding;
+
+    /*
+     * If there are chars of four bytes, like in GB18030
+     */
+    private final boolean           fourByteChars;
+
+    /*
+     * The rows for the lead bytes 0x80 - 0xFF. The first char of a row
+     * is the trail byte of the char after it.
+     */
+    private final char[][]          rows            = new char[0x80][];
+
+    protected DoubleByteDecoder(
+            final String encoding, final boolean fourByteChars) {
+
+        this.encoding = encoding;
+        this.fourByteChars = fourByteChars;
+    }
+
+    /**
+     * @param b a byte above 0x7F
+     * @return true, if <code>b</code> starts a multibyte char
+     */
+    protected abstract boolean isLeadByte(int b);
+
+    /**
+     * @param b a byte above 0x7F, that doesn't start a multibyte char
+     * @return the char for <code>b</code>
+     */
+    protected char decodeSingleByte(final int b) {
+        return SUBSTITUTE_CHAR;
+    }
+
+    /**
+     * Decodes a char of four bytes, whose second and fourth bytes are
+     * digits. Called only if the decoder was made with
+     * <code>fourByteChars</code>.
+     *
+     * @return the code point, or -1, if there is no char for the bytes,
+     * or they can't start a char of four bytes
+     */
+    protected int decodeFourBytes(
+            final int b1, final int b2, final int b3, final int b4) {
+        return -1;
+    }
+
+    public final int decode(
+            final DecoderInput src,
+            final char[] dst,
+            final int off,
+            final int len) {
+
+        final byte[] bytes = src.bytes;
+        final int limit = src.limit;
+        final int end = off + len;
+
+        int pos = src.position;
+        int i = off;
+
+        int b, b2, b3, b4, c;
+        int runEnd;
+        char[] row;
+
+        while (i < end && pos < limit) {
+            b = bytes[pos];
+
+            if (b >= 0) {
+                runEnd = Math.min(limit, pos + end - i);
+
+                do {
+                    dst[i++] = (char) b;
+                    pos++;
+                } while (pos < runEnd && (b = bytes[pos]) >= 0);
+
+                continue;
+            }
+
+            b &= 0xFF;
+
+            if (!isLeadByte(b)) {
+                dst[i++] = decodeSingleByte(b);
+                pos++;
+                continue;
+            }
+
+            if (pos + 1 == limit) {
+                break;
+            }
+
+            b2 = bytes[pos + 1] & 0xFF;
+
+            if (fourByteChars && b2 >= 0x30 && b2 <= 0x39) {
+                /*
+                 * Possibly a char of four bytes
+                 */
+                if (pos + 3 >= limit) {
+                    break;
+                }
+
+                b3 = bytes[pos + 2] & 0xFF;
+                b4 = bytes[pos + 3] & 0xFF;
+
+                if (b3 < 0x81 || b3 > 0xFE || b4 < 0x30 || b4 > 0x39) {
+                    dst[i++] = SUBSTITUTE_CHAR;
+                    pos++;
+                    continue;
+                }
+
+                c = decodeFourBytes(b, b2, b3, b4);
+
+                if (c < 0) {
+                    dst[i++] = SUBSTITUTE_CHAR;
+                    pos++;
+                    continue;
+                }
+
+                if (c > 0xFFFF) {
+                    if (i + 1 == end) {
+                        /*
+                         * No room for both of the surrogates
+                         */
+                        break;
+                    }
+
+                    c -= 0x10000;
+                    dst[i++] = (char) (0xD800 | (c >> 10));
+                    dst[i++] = (char) (0xDC00 | (c & 0x3FF));
+                } else {
+                    dst[i++] = (char) c;
+                }
+
+                pos += 4;
+                continue;
+            }
+
+            if (b2 < 0x40 || b2 == 0x7F || b2 == 0xFF) {
+                /*
+                 * Not a trail byte, so leave it for the next char
+                 */
+                dst[i++] = SUBSTITUTE_CHAR;
+                pos++;
+                continue;
+            }
+
+            row = rows[b - 0x80];
+
+            if (row == null) {
+                loadPage(b);
+                row = rows[b - 0x80];
+            }
+
+            c = b2 - row[0] + 1;
+            dst[i++] = (c > 0 && c < row.length && row[c] != 0
+                    ? row[c] : SUBSTITUTE_CHAR);
+            pos += 2;
+        }
+
+        src.position = pos;
+        return i - off;
+    }
+
+    private void loadPage(final int lead) {
+        final int first = lead & ~(PAGE_SIZE - 1);
+
+        final InputStream is = getClass().getResourceAsStream(
+                TABLES_PATH + encoding + "/"
+                + Integer.toHexString(first >> 4) + ".bin");
+
+        if (is != null) {
+            final DataInputStream in = new DataInputStream(is);
+
+            try {
+                try {
+                    for (int i = 0; i < PAGE_SIZE; i++) {
+                        rows[first + i - 0x80] = readRow(in);
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                //#debug
+                AlbiteMIDlet.LOGGER.log(e);
+            }
+        }
+
+        /*
+         * Missing or broken tables leave the chars unmapped
+         */
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            if (rows[first + i - 0x80] == null) {
+                rows[first + i - 0x80] = EMPTY_ROW;
+            }
+        }
+    }
+
+    private static char[] readRow(final DataInputStream in)
+            throws IOException {
+
+        final int firstTrail = in.readUnsignedByte();
+        final int count = in.readUnsignedByte();
+
+        if (count == 0) {
+            return EMPTY_ROW;
+        }
+
+        final char[] row = new char[count + 1];
+        row[0] = (char) firstTrail;
+
+        int i = 1;
+        int run;
+        char c;
+
+        while (i <= count) {
+            run = in.readShort();
+
+            if (run > 0) {
+                while (run-- > 0) {
+                    row[i++] = in.readChar();
+                }
+            } else {
+                c = in.readChar();
+
+                while (run++ < 0) {
+                    row[i++] = c++;
+                }
+            }
+        }
+
+        return row;
+    }
+
+    public final String getEncoding() {
+        return encoding;
+    }
+}
@@ -0,0 +1,471 @@
+package org.albite.io.decoders;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Guesses the encoding of text, which doesn't say what its encoding is.
+ *
+ * A byte order mark tells the Unicode encodings at once. UTF-16 without
+ * one is told by its many zero bytes.
+ *
+ * Otherwise, the first few KB are checked to be valid UTF-8. If they
+ * aren't, they are decoded with each of the single byte encodings and the
+ * one, whose chars look most like real text, is taken. Letters score by how common
+ * they are and by the letters next to them, e.g. a Cyrillic letter should
+ * be next to other Cyrillic letters, but an accented Latin one is usually
+ * next to unaccented ones. Control chars, undefined chars and odd symbols
+ * count against the encoding.
+ *
+ * The common Latin letters are those of the languages the encoding is
+ * made for, as the Latin encodings put different letters on the same
+ * bytes, e.g. the ù of French in windows-1252 is the ů of Czech in
+ * windows-1250. If windows-1252 falls only a little behind, it's taken
+ * anyway, as it's the most widely used one.
+ *
+ * The verdict is kept, so that it could be used for all of the files
+ * of a book.
+ *
+ * @author albus
+ */
+public class EncodingDetector {
+
+    private static final int    SAMPLE_SIZE         = 4096;
+
+    /*
+     * Scripts of the chars
+     */
+    private static final byte   SCRIPT_OTHER        = 0;
+    private static final byte   SCRIPT_ASCII        = 1;
+    private static final byte   SCRIPT_LATIN        = 2;
+    private static final byte   SCRIPT_GREEK        = 3;
+    private static final byte   SCRIPT_CYRILLIC     = 4;
+
+    /*
+     * The most frequent lowercase letters, the Latin ones by the
+     * languages of the encodings
+     */
+    private static final String COMMON_WESTERN =
+            "àáâãäåæçèé"
+            + "êëìíîïñòóô"
+            + "öøùúüýÿßœ";
+
+    private static final String COMMON_CENTRAL =
+            "áâäéíóöúüý"
+            + "ăąćčďęěłńň"
+            + "őřśşšţťůűź"
+            + "żž";
+
+    private static final String COMMON_SOUTHERN =
+            "àèéìòùçöüâ"
+            + "îûċġħĉĝĥĵŝ"
+            + "ŭğış";
+
+    private static final String COMMON_BALTIC =
+            "äõöüåæøāčē"
+            + "ėģīįķļņšūų"
+            + "žą";
+
+    private static final String COMMON_GREEK =
+            "αοιετσνηυρ"
+            + "πκμλάέίόύή"
+            + "ώς";
+
+    private static final String COMMON_CYRILLIC =
+            "оеаинтсрвл"
+            + "кмдпуя";
+
+    /*
+     * Symbols that are common in text
+     */
+    private static final String PUNCTUATION =
+            "\u00a0¡§©ª«°±·º"
+            + "»¿–—‘’‚“”„"
+            + "•…‹›€№™";
+
+    /*
+     * Preferred, if encodings score the same
+     */
+    private static final String[] PREFERRED = {
+        "windows-1252", "windows-1251", "koi8-r", "windows-1250",
+        "windows-1253", "iso-8859-1"
+    };
+
+    /*
+     * windows-1252 is still taken, if it scores less than the best
+     * encoding by no more than this part of the best score, i.e. 1/16
+     */
+    private static final int    WESTERN_MARGIN      = 16;
+
+    private String verdict;
+
+    public final String getVerdict() {
+        return verdict;
+    }
+
+    /**
+     * @param encoding the encoding detected before, or null or an empty
+     * string, if none has been
+     */
+    public final void setVerdict(final String encoding) {
+        verdict = (encoding == null || encoding.length() == 0
+                ? null : encoding);
+    }
+
+    /**
+     * Returns the encoding detected before, or detects it from the first
+     * bytes of the stream, which is reset to where it was.
+     *
+     * @param in a stream that supports marks
+     * @return the encoding, or null, if the bytes are all ASCII and it
+     * can't be told
+     * @throws IOException
+     */
+    public final String detect(final InputStream in) throws IOException {
+        if (verdict != null) {
+            return verdict;
+        }
+
+        final DecoderInput sample = new DecoderInput(SAMPLE_SIZE);
+
+        in.mark(SAMPLE_SIZE);
+        try {
+            while (sample.limit < SAMPLE_SIZE
+                    && sample.fill(in, SAMPLE_SIZE) > 0) {}
+        } finally {
+            in.reset();
+        }
+
+        verdict = detect(sample);
+        return verdict;
+    }
+
+    private static String detect(final DecoderInput sample) {
+        final byte[] bytes = sample.bytes;
+        final int length = sample.limit;
+
+        if (length >= 2) {
+            if (bytes[0] == (byte) 0xFF && bytes[1] == (byte) 0xFE) {
+                return Encodings.UTF_16LE;
+            }
+
+            if (bytes[0] == (byte) 0xFE && bytes[1] == (byte) 0xFF) {
+                return Encodings.UTF_16BE;
+            }
+        }
+
+        if (length >= 3
+                && bytes[0] == (byte) 0xEF
+                && bytes[1] == (byte) 0xBB
+                && bytes[2] == (byte) 0xBF) {
+            return Encodings.UTF_8;
+        }
+
+        /*
+         * The high bytes of UTF-16 are mostly zero, if it's in a
+         * Latin, Greek or Cyrillic script, as spaces and punctuation are
+         * ASCII. There are no zeros in the other encodings.
+         */
+        int evenZeros = 0;
+        int oddZeros = 0;
+
+        for (int i = 0; i + 1 < length; i += 2) {
+            if (bytes[i] == 0) {
+                evenZeros++;
+            }
+
+            if (bytes[i + 1] == 0) {
+                oddZeros++;
+            }
+        }
+
+        final int units = length >> 1;
+
+        if (oddZeros > units / 16 && evenZeros <= oddZeros / 8) {
+            return Encodings.UTF_16LE;
+        }
+
+        if (evenZeros > units / 16 && oddZeros <= evenZeros / 8) {
+            return Encodings.UTF_16BE;
+        }
+
+        int high = 0;
+        int questionMarks = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] < 0) {
+                high++;
+            } else if (bytes[i] == AlbiteCharacterDecoder.SUBSTITUTE_CHAR) {
+                questionMarks++;
+            }
+        }
+
+        if (high == 0) {
+            return null;
+        }
+
+        final char[] chars = new char[length];
+
+        /*
+         * It's UTF-8, if there are no invalid chars, i.e. no other
+         * substitutes but the question marks that are really there.
+         * A char cut off at the end of the sample isn't decoded at all.
+         */
+        final int decoded =
+                DecoderUTF_8.getInstance().decode(sample, chars, 0, length);
+
+        if (count(chars, decoded, AlbiteCharacterDecoder.SUBSTITUTE_CHAR)
+                == questionMarks) {
+            return Encodings.UTF_8;
+        }
+
+        String best = null;
+        int bestScore = Integer.MIN_VALUE;
+        int westernScore = Integer.MIN_VALUE;
+
+        for (int i = 0; i < Encodings.ALIASES.length; i++) {
+            final String encoding = Encodings.ALIASES[i][0];
+
+            if (!AlbiteCharacterDecoder.isSingleByte(encoding)) {
+                continue;
+            }
+
+            final SingleByteDecoder decoder;
+
+            try {
+                decoder = SingleByteDecoder.load(encoding);
+            } catch (UnsupportedEncodingException e) {
+                continue;
+            }
+
+            sample.position = 0;
+            decoder.decode(sample, chars, 0, length);
+
+            final int score =
+                    score(bytes, chars, length, getCommonLatin(encoding));
+
+            if (PREFERRED[0].equals(encoding)) {
+                westernScore = score;
+            }
+
+            if (score > bestScore
+                    || (score == bestScore
+                        && preference(encoding) < preference(best))) {
+                best = encoding;
+                bestScore = score;
+            }
+        }
+
+        if (westernScore != Integer.MIN_VALUE
+                && bestScore - westernScore
+                    <= Math.max(1, bestScore / WESTERN_MARGIN)) {
+            return PREFERRED[0];
+        }
+
+        return best;
+    }
+
+    /**
+     * @param commonLatin the most frequent Latin letters of the languages
+     * the encoding is made for
+     */
+    private static int score(
+            final byte[] bytes, final char[] chars, final int length,
+            final String commonLatin) {
+
+        int score = 0;
+
+        byte prevScript = SCRIPT_OTHER;
+        boolean prevLower = false;
+
+        for (int i = 0; i < length; i++) {
+            final char c = chars[i];
+            final byte script = getScript(c);
+
+            if (bytes[i] >= 0) {
+                prevScript = script;
+                prevLower = (c >= 'a' && c <= 'z');
+                continue;
+            }
+
+            if (c < 0xA0) {
+                /*
+                 * Undefined or a control char
+                 */
+                score -= 10;
+            } else if (script == SCRIPT_OTHER) {
+                if (PUNCTUATION.indexOf(c) < 0) {
+                    score -= 2;
+                }
+            } else {
+                final boolean lower = isLowerCase(c);
+
+                score++;
+
+                if (lower) {
+                    score++;
+
+                    if ((script == SCRIPT_LATIN ? commonLatin
+                            : getCommon(script)).indexOf(c) >= 0) {
+                        score += 2;
+                    }
+                } else if (prevLower && prevScript == script) {
+                    /*
+                     * A capital letter in the middle of a word
+                     */
+                    score -= 2;
+                }
+
+                final byte nextScript = (i + 1 < length
+                        ? getScript(chars[i + 1]) : SCRIPT_OTHER);
+
+                if (i + 2 < length
+                        && chars[i + 1] >= 'A' && chars[i + 1] <= 'Z'
+                        && chars[i + 2] >= 'a' && chars[i + 2] <= 'z') {
+                    /*
+                     * A word doesn't go on with a capitalised one, so
+                     * it's rather a symbol before it, like the ¿ and ¡
+                     * of Spanish, which are letters in other encodings
+                     */
+                    score -= 4;
+                }
+
+                if (script == SCRIPT_LATIN) {
+                    /*
+                     * Accented letters are mostly found among
+                     * unaccented ones
+                     */
+                    if (prevScript == SCRIPT_ASCII
+                            || nextScript == SCRIPT_ASCII) {
+                        score++;
+                    } else if (prevScript == SCRIPT_LATIN) {
+                        score--;
+                    }
+                } else {
+                    if (prevScript == SCRIPT_ASCII
+                            || nextScript == SCRIPT_ASCII) {
+                        score -= 2;
+                    } else if (prevScript == script) {
+                        score++;
+                    }
+                }
+
+                prevLower = lower;
+            }
+
+            prevScript = script;
+        }
+
+        return score;
+    }
+
+    private static byte getScript(final char c) {
+        if (c < 0x80) {
+            return ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    ? SCRIPT_ASCII : SCRIPT_OTHER);
+        }
+
+        if (c >= 0xC0 && c < 0x250 && c != 0xD7 && c != 0xF7) {
+            return SCRIPT_LATIN;
+        }
+
+        if (c >= 0x386 && c <= 0x3CE) {
+            return SCRIPT_GREEK;
+        }
+
+        if ((c >= 0x400 && c <= 0x45F) || c == 0x490 || c == 0x491) {
+            return SCRIPT_CYRILLIC;
+        }
+
+        return SCRIPT_OTHER;
+    }
+
+    private static String getCommon(final byte script) {
+        switch (script) {
+            case SCRIPT_GREEK:
+                return COMMON_GREEK;
+
+            case SCRIPT_CYRILLIC:
+                return COMMON_CYRILLIC;
+
+            default:
+                return COMMON_WESTERN;
+        }
+    }
+
+    private static String getCommonLatin(final String encoding) {
+        if ("windows-1250".equals(encoding)
+                || "iso-8859-2".equals(encoding)
+                || "iso-8859-16".equals(encoding)) {
+            return COMMON_CENTRAL;
+        }
+
+        if ("windows-1254".equals(encoding)
+                || "iso-8859-9".equals(encoding)
+                || "iso-8859-3".equals(encoding)) {
+            return COMMON_SOUTHERN;
+        }
+
+        if ("windows-1257".equals(encoding)
+                || "iso-8859-4".equals(encoding)
+                || "iso-8859-10".equals(encoding)
+                || "iso-8859-13".equals(encoding)) {
+            return COMMON_BALTIC;
+        }
+
+        return COMMON_WESTERN;
+    }
+
+    private static boolean isLowerCase(final char c) {
+        if (c < 0x100) {
+            return c >= 0xDF && c != 0xF7;
+        }
+
+        if (c < 0x180) {
+            /*
+             * Latin Extended-A goes in pairs of a capital and a small
+             * letter, starting at an odd char in two of the ranges
+             */
+            if ((c >= 0x139 && c <= 0x148) || (c >= 0x179 && c <= 0x17E)) {
+                return (c & 1) == 0;
+            }
+
+            return (c & 1) == 1;
+        }
+
+        if (c >= 0x386 && c <= 0x3CE) {
+            return c >= 0x3AC;
+        }
+
+        if (c >= 0x400 && c <= 0x45F) {
+            return c >= 0x430;
+        }
+
+        return c == 0x491;
+    }
+
+    private static int preference(final String encoding) {
+        for (int i = 0; i < PREFERRED.length; i++) {
+            if (PREFERRED[i].equals(encoding)) {
+                return i;
+            }
+        }
+
+        return PREFERRED.length;
+    }
+
+    private static int count(final char[] chars, final int length,
+            final char c) {
+
+        int res = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (chars[i] == c) {
+                res++;
+            }
+        }
+
+        return res;
+    }
+}
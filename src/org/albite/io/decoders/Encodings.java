@@ -26,6 +26,22 @@ public interface Encodings {
 
     public static final String UTF_8 = UTF_8_ALIASES[0];
 
+    /*
+     * UTF-16. Without a byte order mark it's taken to be big endian.
+     * --------------------------------------------------------------------
+     */
+    public static final String[] UTF_16LE_ALIASES = new String[] {
+        "utf-16le", "x-utf-16le", "unicode", "unicodelittleunmarked"
+    };
+
+    public static final String[] UTF_16BE_ALIASES = new String[] {
+        "utf-16be", "x-utf-16be", "utf-16", "unicodefffe",
+        "unicodebigunmarked", "iso-10646-ucs-2", "csunicode"
+    };
+
+    public static final String UTF_16LE = UTF_16LE_ALIASES[0];
+    public static final String UTF_16BE = UTF_16BE_ALIASES[0];
+
     //#if !(TinyMode || TinyModeExport)
     /*
      * US ASCII
@@ -279,6 +295,40 @@ public interface Encodings {
     public static final String KOI8_R  = KOI8_R_ALIASES[0];
     public static final String KOI8_RU = KOI8_RU_ALIASES[0];
     public static final String KOI8_U  = KOI8_U_ALIASES[0];
+
+    /*
+     * CJK
+     * --------------------------------------------------------------------
+     */
+
+    /*
+     * Traditional Chinese
+     */
+    public static final String[] BIG5_ALIASES = new String[] {
+        "big5", "big-5", "csbig5", "cn-big5", "x-x-big5",
+        "windows-950", "x-windows-950", "cp950", "ms950"
+    };
+
+    /*
+     * Simplified Chinese. GBK and GB2312 are its subsets.
+     */
+    public static final String[] GB18030_ALIASES = new String[] {
+        "gb18030", "gb18030-2000", "gbk", "x-gbk", "cp936", "ms936",
+        "windows-936", "gb2312", "csgb2312", "gb_2312-80", "iso-ir-58",
+        "csiso58gb231280", "euc-cn", "x-euc-cn", "chinese"
+    };
+
+    /*
+     * Japanese
+     */
+    public static final String[] SHIFT_JIS_ALIASES = new String[] {
+        "shift_jis", "shift-jis", "sjis", "x-sjis", "ms_kanji",
+        "csshiftjis", "windows-31j", "cswindows31j", "cp932", "ms932"
+    };
+
+    public static final String BIG5      = BIG5_ALIASES[0];
+    public static final String GB18030   = GB18030_ALIASES[0];
+    public static final String SHIFT_JIS = SHIFT_JIS_ALIASES[0];
     //#endif
 
     /**
@@ -288,6 +338,8 @@ public interface Encodings {
 
     public static final String[] ENCODINGS = {
         UTF_8,
+        UTF_16LE,
+        UTF_16BE,
         //#if !(TinyMode || TinyModeExport)
         ASCII,
         //#endif
@@ -314,12 +366,17 @@ public interface Encodings {
         WINDOWS_1257,
         KOI8_R,
         KOI8_RU,
-        KOI8_U
+        KOI8_U,
+        BIG5,
+        GB18030,
+        SHIFT_JIS
         //#endif
     };
 
     public static final String[][] ALIASES = {
         UTF_8_ALIASES,
+        UTF_16LE_ALIASES,
+        UTF_16BE_ALIASES,
         //#if !(TinyMode || TinyModeExport)
         ASCII_ALIASES,
         //#endif
@@ -346,7 +403,10 @@ public interface Encodings {
         WINDOWS_1257_ALIASES,
         KOI8_R_ALIASES,
         KOI8_RU_ALIASES,
-        KOI8_U_ALIASES
+        KOI8_U_ALIASES,
+        BIG5_ALIASES,
+        GB18030_ALIASES,
+        SHIFT_JIS_ALIASES
         //#endif
     };
 }
\ No newline at end of file
@@ -5,23 +5,131 @@
 
 package org.albite.io.decoders;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Hashtable;
 
 /**
+ * Decodes all of the single byte encodings. Bytes below 0x80 are ASCII in
+ * all of them, and the chars for the rest are taken from a table in
+ * /res/encodings/&lt;encoding&gt;.bin, i.e. 128 big-endian chars for
+ * the bytes 0x80 - 0xFF.
+ *
+ * A table is loaded only when its encoding is first needed.
  *
  * @author albus
  */
-abstract class SingleByteDecoder extends AlbiteCharacterDecoder {
-
-    public final int decode(final InputStream in) throws IOException {
-        int code = in.read();
-        if (code == -1) {
-            return DECODING_DONE;
-        } else {
-            return decode(code);
+final class SingleByteDecoder extends AlbiteCharacterDecoder {
+
+    private static final String     TABLES_PATH = "/res/encodings/";
+
+    private static final Hashtable  instances = new Hashtable();
+
+    private final String            encoding;
+
+    /*
+     * The chars for the bytes 0x80 - 0xFF
+     */
+    private final char[]            map;
+
+    private SingleByteDecoder(final String encoding)
+            throws UnsupportedEncodingException {
+
+        this.encoding = encoding;
+        this.map = loadMap(encoding);
+    }
+
+    /**
+     * @param encoding the name of the encoding, which is also the name of
+     * its table
+     * @return the decoder for the encoding
+     * @throws UnsupportedEncodingException if the table couldn't be loaded
+     */
+    public static AlbiteCharacterDecoder getInstance(final String encoding)
+            throws UnsupportedEncodingException {
+
+        SingleByteDecoder decoder =
+                (SingleByteDecoder) instances.get(encoding);
+
+        if (decoder == null) {
+            decoder = new SingleByteDecoder(encoding);
+            instances.put(encoding, decoder);
         }
+
+        return decoder;
+    }
+
+    /**
+     * Returns the decoder for the encoding, without keeping it for later,
+     * if it hasn't been loaded yet.
+     *
+     * @param encoding the name of the encoding
+     * @return the decoder
+     * @throws UnsupportedEncodingException if the table couldn't be loaded
+     */
+    static SingleByteDecoder load(final String encoding)
+            throws UnsupportedEncodingException {
+
+        final SingleByteDecoder decoder =
+                (SingleByteDecoder) instances.get(encoding);
+
+        return (decoder != null ? decoder : new SingleByteDecoder(encoding));
     }
 
-    public abstract int decode(int code);
-}
\ No newline at end of file
+    private char[] loadMap(final String encoding)
+            throws UnsupportedEncodingException {
+
+        final InputStream is =
+                getClass().getResourceAsStream(TABLES_PATH + encoding + ".bin");
+
+        if (is == null) {
+            throw new UnsupportedEncodingException(encoding);
+        }
+
+        final char[] map = new char[0x80];
+        final DataInputStream in = new DataInputStream(is);
+
+        try {
+            try {
+                for (int i = 0; i < map.length; i++) {
+                    map[i] = in.readChar();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new UnsupportedEncodingException(encoding);
+        }
+
+        return map;
+    }
+
+    public final int decode(
+            final DecoderInput src,
+            final char[] dst,
+            final int off,
+            final int len) {
+
+        final byte[] bytes = src.bytes;
+        final char[] map = this.map;
+        int pos = src.position;
+
+        final int count = Math.min(len, src.limit - pos);
+        final int end = off + count;
+
+        int code;
+        for (int i = off; i < end; i++) {
+            code = bytes[pos++];
+            dst[i] = (code >= 0 ? (char) code : map[code + 0x80]);
+        }
+
+        src.position = pos;
+        return count;
+    }
+
+    public final String getEncoding() {
+        return encoding;
+    }
+}
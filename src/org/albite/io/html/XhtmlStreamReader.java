@@ -8,7 +8,6 @@ package org.albite.io.html;
 import org.albite.io.decoders.AlbiteStreamReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.Hashtable;
 
 /**
  *
@@ -17,11 +16,48 @@ import java.util.Hashtable;
 public class XhtmlStreamReader extends Reader implements HTMLSubstitues {
 
     private static final int SEARCH_BUFFER = 2048;
-    private static final Hashtable ENTITIES = new Hashtable(200);
+
+    /*
+     * An entity must end with a ';' in as many chars
+     */
+    private static final int ENTITY_LENGTH = 10;
 
     private final AlbiteStreamReader in;
-    private final char[] buffer = new char[10];
-    private Hashtable customEntities;
+    private final char[] buffer = new char[ENTITY_LENGTH];
+
+    /*
+     * The entities declared in the doctype
+     */
+    private String[] customNames;
+    private int[] customChars;
+    private int customCount = 0;
+
+    /*
+     * While an entity is being read, the names in ENTITY_NAMES from
+     * entityLow up to entityHigh start with the chars read so far
+     */
+    private int entityLow;
+    private int entityHigh;
+
+    /*
+     * The second surrogate of a char reference outside the BMP, or -1
+     */
+    private int pendingChar = -1;
+
+    /*
+     * The chars of an entity are taken from here first, and then from
+     * the stream. When a block of chars is being read, it's the rest of the
+     * block after the '&amp;'.
+     */
+    private char[] source;
+    private int sourcePosition;
+    private int sourceLimit = 0;
+
+    /*
+     * If the chars in source were not enough for the entity,
+     * so that some of its chars were read from the stream
+     */
+    private boolean overread;
 
     public XhtmlStreamReader(
             final AlbiteStreamReader in,
@@ -207,15 +243,12 @@ public class XhtmlStreamReader extends Reader implements HTMLSubstitues {
 
                         final String entityValue = intdecl.substring(replstart + 2, replend - 1);
 
-                        int entityIntVal = processEntity(entityValue);
+                        int entityIntVal = findEntity(entityValue);
                         if (entityIntVal != 0) {
                             /*
                              * add the entity
                              */
-                            if (customEntities == null) {
-                                customEntities = new Hashtable(20);
-                            }
-                            customEntities.put(entityName, new Integer(entityIntVal));
+                            addCustomEntity(entityName, entityIntVal);
                         }
                     } catch (StringIndexOutOfBoundsException e) {
                         /*
@@ -266,6 +299,12 @@ public class XhtmlStreamReader extends Reader implements HTMLSubstitues {
     }
 
     public int read() throws IOException {
+        if (pendingChar >= 0) {
+            final int c = pendingChar;
+            pendingChar = -1;
+            return c;
+        }
+
         int read = in.read();
 
         if (read == -1) {
@@ -283,88 +322,228 @@ public class XhtmlStreamReader extends Reader implements HTMLSubstitues {
         }
 
         if (read == 38) { //'&'
-            in.mark(10);
-
-            for (int len = 0; len < 10; len++) {
-
-                read = in.read();
+            /*
+             * Mark four times as much, for the chars may take up to
+             * four bytes
+             */
+            in.mark(ENTITY_LENGTH * 4);
 
-                if (read == 59) { //;
-                    /*
-                     * Found entity
-                     */
-                    return processEntity(new String(buffer, 0, len));
-                }
+            final int c = readEntity();
 
-                if (read == -1
-                        || read == 0x20
-                        || read == 0x9 || read == 0xD || read == 0xA) {
-                    /*
-                     * Couldn't find entity's end before EOF
-                     * or this is not a valid entry.
-                     */
-                    break;
-                }
+            if (c > 0xFFFF) {
+                pendingChar = 0xDC00 | ((c - 0x10000) & 0x3FF);
+                return 0xD800 | ((c - 0x10000) >> 10);
+            }
 
-                buffer[len] = (char) read;
+            if (c >= 0) {
+                return c;
             }
 
             /*
              * Couldn't find entity, so reset stream from position after entity
              */
-            read = 38;
             in.reset();
         }
 
         return read;
     }
 
-    private int processEntity(final String entityName) {
-
-        Object entityValue;
+    /**
+     * Takes the entities declared in the doctype, which another reader
+     * of the same file has read, e.g. if this one starts in the middle
+     * of the file.
+     *
+     * @param other the reader, which has read the doctype
+     */
+    public final void useEntitiesOf(final XhtmlStreamReader other) {
+        customNames = other.customNames;
+        customChars = other.customChars;
+        customCount = other.customCount;
+    }
 
-        entityValue = ENTITIES.get(entityName);
+    /**
+     * @return true, if the first surrogate of a char reference has been
+     * read, but the second one hasn't
+     */
+    public final boolean isCharPending() {
+        return pendingChar >= 0;
+    }
 
-        if (entityValue != null) {
-            /*
-             * Entity found in the main table
-             */
-            return ((Integer) entityValue).intValue();
+    /**
+     * Reads an entity after its '&amp;', matching the name against
+     * ENTITY_NAMES as the chars come.
+     *
+     * @return the char of the entity, 0 if the entity is unknown, or -1,
+     * if there is no entity, i.e. no ';' at its end
+     * @throws IOException
+     */
+    private int readEntity() throws IOException {
+        int read = nextChar();
+
+        if (read == '#') {
+            return readCharReference();
         }
 
-        if (customEntities != null) {
-            entityValue = customEntities.get(entityName);
+        entityLow = 0;
+        entityHigh = ENTITY_NAMES.length;
 
-            if (entityValue != null) {
+        for (int len = 0; len < ENTITY_LENGTH; len++) {
+            if (read == ';') {
+                if (entityLow < entityHigh
+                        && ENTITY_NAMES[entityLow].length() == len) {
+                    return ENTITY_CHARS[entityLow];
+                }
+
+                return findCustomEntity(len);
+            }
+
+            if (read == -1
+                    || read == 0x20
+                    || read == 0x9 || read == 0xD || read == 0xA) {
                 /*
-                 * found in document's table
+                 * Couldn't find entity's end before EOF
+                 * or this is not a valid entry.
                  */
-                return ((Integer) entityValue).intValue();
+                return -1;
+            }
+
+            buffer[len] = (char) read;
+
+            if (entityLow < entityHigh) {
+                matchEntityChar(len, (char) read);
             }
+
+            read = nextChar();
+        }
+
+        return -1;
+    }
+
+    /**
+     * Reads the number of &amp;#1234; or &amp;#xABCD; after the '#'.
+     *
+     * @return the char, 0 if the number is not valid, or -1,
+     * if there is no ';' at its end
+     * @throws IOException
+     */
+    private int readCharReference() throws IOException {
+        int read = nextChar();
+        int len = 1;
+        int radix = 10;
+
+        if (read == 'x' || read == 'X') {
+            radix = 16;
+            read = nextChar();
+            len++;
         }
 
+        int value = 0;
+        int digits = 0;
+        boolean valid = true;
+        int digit;
+
+        for (; len < ENTITY_LENGTH; len++) {
+            if (read == ';') {
+                return (valid && digits > 0 ? value : 0);
+            }
+
+            if (read == -1
+                    || read == 0x20
+                    || read == 0x9 || read == 0xD || read == 0xA) {
+                return -1;
+            }
+
+            digit = Character.digit((char) read, radix);
+
+            if (digit < 0) {
+                valid = false;
+            } else {
+                value = value * radix + digit;
+                digits++;
+
+                if (value > 0x10FFFF) {
+                    valid = false;
+                    value = 0;
+                }
+            }
+
+            read = nextChar();
+        }
+
+        return -1;
+    }
+
+    private int nextChar() throws IOException {
+        if (sourcePosition < sourceLimit) {
+            return source[sourcePosition++];
+        }
+
+        overread = true;
+        return in.read();
+    }
+
+    /**
+     * Narrows the names from entityLow up to entityHigh to those that
+     * have <code>c</code> at <code>index</code>. As the names are sorted,
+     * they are still next to each other.
+     */
+    private void matchEntityChar(final int index, final char c) {
+        final String[] names = ENTITY_NAMES;
+
+        int low = entityLow;
+        int high = entityHigh;
+        int mid;
+
         /*
-         * Is it a number?
-         * &#1234;
-         * &#xABCD;
+         * A name that is as long as the chars before c comes before
+         * all of the longer ones
          */
+        if (names[low].length() == index) {
+            low++;
+        }
 
-        if (entityName.length() > 0 && entityName.charAt(0) == '#') {
-            if (entityName.length() > 3 && (entityName.charAt(1) == 'x' || entityName.charAt(1) == 'X')) {
-                //at least x or X and one digit
-                /*
-                 * &#xABCD;
-                 */
-                try {
-                    return Integer.parseInt(entityName.substring(2), 16);
-                } catch (NumberFormatException e) {}
-            } else if (entityName.length() > 2) { //at least one digit
-                /*
-                 * &1234;
-                 */
-                try {
-                    return Integer.parseInt(entityName.substring(1));
-                } catch (NumberFormatException e) {}
+        while (low < high) {
+            mid = (low + high) >>> 1;
+
+            if (names[mid].charAt(index) < c) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        entityLow = low;
+        high = entityHigh;
+
+        while (low < high) {
+            mid = (low + high) >>> 1;
+
+            if (names[mid].charAt(index) <= c) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        entityHigh = low;
+    }
+
+    private int findCustomEntity(final int len) {
+        String name;
+
+        for (int i = 0; i < customCount; i++) {
+            name = customNames[i];
+
+            if (name.length() == len) {
+                int k = 0;
+
+                while (k < len && name.charAt(k) == buffer[k]) {
+                    k++;
+                }
+
+                if (k == len) {
+                    return customChars[i];
+                }
             }
         }
 
@@ -375,321 +554,275 @@ public class XhtmlStreamReader extends Reader implements HTMLSubstitues {
         return 0;
     }
 
+    private void addCustomEntity(final String name, final int c) {
+        if (customNames == null) {
+            customNames = new String[8];
+            customChars = new int[8];
+        } else if (customCount == customNames.length) {
+            final String[] names = new String[customCount * 2];
+            final int[] chars = new int[customCount * 2];
+            System.arraycopy(customNames, 0, names, 0, customCount);
+            System.arraycopy(customChars, 0, chars, 0, customCount);
+            customNames = names;
+            customChars = chars;
+        }
+
+        customNames[customCount] = name;
+        customChars[customCount] = c;
+        customCount++;
+    }
+
+    /**
+     * Finds the char of an entity in the doctype, given without
+     * the '&amp;' and the ';'.
+     */
+    private int findEntity(final String entityName) {
+        final int len = entityName.length();
+
+        /*
+         * Is it a number?
+         * &#1234;
+         * &#xABCD;
+         */
+        if (len > 0 && entityName.charAt(0) == '#') {
+            try {
+                if (len > 2 && (entityName.charAt(1) == 'x'
+                        || entityName.charAt(1) == 'X')) {
+                    return Integer.parseInt(entityName.substring(2), 16);
+                }
+
+                return Integer.parseInt(entityName.substring(1));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        entityLow = 0;
+        entityHigh = ENTITY_NAMES.length;
+
+        for (int i = 0; i < len && entityLow < entityHigh; i++) {
+            matchEntityChar(i, entityName.charAt(i));
+        }
+
+        if (entityLow < entityHigh
+                && ENTITY_NAMES[entityLow].length() == len) {
+            return ENTITY_CHARS[entityLow];
+        }
+
+        for (int i = 0; i < customCount; i++) {
+            if (customNames[i].equals(entityName)) {
+                return customChars[i];
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Decodes a block of chars at once, right into <code>cbuf</code>,
+     * and then replaces the markup chars in it, moving the chars after
+     * an entity back over it. The chars are the same as the ones that
+     * {@link #read()} would return.
+     */
     public int read(char[] cbuf, int off, int len) throws IOException {
 
-        int read = 0;
+        if (len == 0) {
+            return 0;
+        }
+
+        final int cbufEnd = off + len;
+        int done = off;
+
+        if (pendingChar >= 0) {
+            cbuf[done++] = (char) pendingChar;
+            pendingChar = -1;
+        }
 
-        for (int i = 0; i < len; i++) {
-            read = read();
+        block:
+        while (done < cbufEnd) {
+            final int read = in.read(cbuf, done, cbufEnd - done);
 
-            if (read == -1) {
+            if (read <= 0) {
                 /*
                  * EOF
                  */
-                return i;
+                break;
             }
 
-            cbuf[i + off] = (char) read;
-        }
+            final int end = done + read;
+            int w = done;
+            char c;
+            int e;
 
-        return len;
-    }
+            for (int r = done; r < end; r++) {
+                c = cbuf[r];
 
-    public void close() throws IOException {
-        in.close();
-    }
+                if (c > '>') {
+                    /*
+                     * Most of the chars, i.e. all letters
+                     */
+                    cbuf[w++] = c;
+                    continue;
+                }
 
-    static {
-        /*
-         * HTML Entities. See the link
-         * http://en.wikipedia.org/wiki/List_of_XML_and_HTML_character_entity_references
-         */
+                if (c == '<') {
+                    c = START_TAG_CHAR;
+                } else if (c == '>') {
+                    c = END_TAG_CHAR;
+                } else if (c == '&') {
+                    source = cbuf;
+                    sourcePosition = r + 1;
+                    sourceLimit = end;
+                    overread = false;
+
+                    in.mark(ENTITY_LENGTH * 4);
+                    e = readEntity();
+                    sourceLimit = 0;
+
+                    if (e >= 0) {
+                        if (e > 0xFFFF) {
+                            e -= 0x10000;
+                            cbuf[w++] = (char) (0xD800 | (e >> 10));
+                            e = 0xDC00 | (e & 0x3FF);
+
+                            if (w == cbufEnd) {
+                                /*
+                                 * The entity was the last char
+                                 * there was room for
+                                 */
+                                pendingChar = e;
+                                done = w;
+                                break block;
+                            }
+                        }
 
-        /*
-         * HTMLspecial
-         */
-        ENTITIES.put("quot",    new Integer('"'));
-        ENTITIES.put("amp",     new Integer('&'));
-        ENTITIES.put("apos",    new Integer('\''));
-        ENTITIES.put("lt",      new Integer('<'));
-        ENTITIES.put("gt",      new Integer('>'));
+                        cbuf[w++] = (char) e;
 
-        /*
-         * HTMLlat1
-         */
-        ENTITIES.put("nbsp",    new Integer('\u00A0'));
-        ENTITIES.put("iexcl",   new Integer('\u00A1'));
-        ENTITIES.put("cent",    new Integer('\u00A2'));
-        ENTITIES.put("pound",   new Integer('\u00A3'));
-        ENTITIES.put("curren",  new Integer('\u00A4'));
-        ENTITIES.put("yen",     new Integer('\u00A5'));
-        ENTITIES.put("brvbar",  new Integer('\u00A6'));
-        ENTITIES.put("sect",    new Integer('\u00A7'));
-        ENTITIES.put("uml",     new Integer('\u00A8'));
-        ENTITIES.put("copy",    new Integer('\u00A9'));
-        ENTITIES.put("ordf",    new Integer('\u00AA'));
-        ENTITIES.put("laquo",   new Integer('\u00AB'));
-        ENTITIES.put("not",     new Integer('\u00AC'));
-        ENTITIES.put("shy",     new Integer('\u00AD'));
-        ENTITIES.put("reg",     new Integer('\u00AE'));
-        ENTITIES.put("macr",    new Integer('\u00AF'));
-
-        ENTITIES.put("deg",     new Integer('\u00B0'));
-        ENTITIES.put("plusmn",  new Integer('\u00B1'));
-        ENTITIES.put("sup2",    new Integer('\u00B2'));
-        ENTITIES.put("sup3",    new Integer('\u00B3'));
-        ENTITIES.put("acute",   new Integer('\u00B4'));
-        ENTITIES.put("micro",   new Integer('\u00B5'));
-        ENTITIES.put("para",    new Integer('\u00B6'));
-        ENTITIES.put("middot",  new Integer('\u00B7'));
-        ENTITIES.put("cedil",   new Integer('\u00B8'));
-        ENTITIES.put("sup1",    new Integer('\u00B9'));
-        ENTITIES.put("ordm",    new Integer('\u00BA'));
-        ENTITIES.put("raquo",   new Integer('\u00BB'));
-        ENTITIES.put("frac14",  new Integer('\u00BC'));
-        ENTITIES.put("frac12",  new Integer('\u00BD'));
-        ENTITIES.put("frac34",  new Integer('\u00BE'));
-        ENTITIES.put("iquest",  new Integer('\u00BF'));
-
-        ENTITIES.put("Agrave",  new Integer('\u00C0'));
-        ENTITIES.put("Aacute",  new Integer('\u00C1'));
-        ENTITIES.put("Acirc",   new Integer('\u00C2'));
-        ENTITIES.put("Atilde",  new Integer('\u00C3'));
-        ENTITIES.put("Auml",    new Integer('\u00C4'));
-        ENTITIES.put("Aring",   new Integer('\u00C5'));
-        ENTITIES.put("AElig",   new Integer('\u00C6'));
-        ENTITIES.put("Ccedil",  new Integer('\u00C7'));
-        ENTITIES.put("Egrave",  new Integer('\u00C8'));
-        ENTITIES.put("Eacute",  new Integer('\u00C9'));
-        ENTITIES.put("Ecirc",   new Integer('\u00CA'));
-        ENTITIES.put("Euml",    new Integer('\u00CB'));
-        ENTITIES.put("Igrave",  new Integer('\u00CC'));
-        ENTITIES.put("Iacute",  new Integer('\u00CD'));
-        ENTITIES.put("Icirc",   new Integer('\u00CE'));
-        ENTITIES.put("Iuml",    new Integer('\u00CF'));
-
-        ENTITIES.put("ETH",     new Integer('\u00D0'));
-        ENTITIES.put("Ntilde",  new Integer('\u00D1'));
-        ENTITIES.put("Ograve",  new Integer('\u00D2'));
-        ENTITIES.put("Oacute",  new Integer('\u00D3'));
-        ENTITIES.put("Ocirc",   new Integer('\u00D4'));
-        ENTITIES.put("Otilde",  new Integer('\u00D5'));
-        ENTITIES.put("Ouml",    new Integer('\u00D6'));
-        ENTITIES.put("times",   new Integer('\u00D7'));
-        ENTITIES.put("Oslash",  new Integer('\u00D8'));
-        ENTITIES.put("Ugrave",  new Integer('\u00D9'));
-        ENTITIES.put("Uacute",  new Integer('\u00DA'));
-        ENTITIES.put("Ucirc",   new Integer('\u00DB'));
-        ENTITIES.put("Uuml",    new Integer('\u00DC'));
-        ENTITIES.put("Yacute",  new Integer('\u00DD'));
-        ENTITIES.put("THORN",   new Integer('\u00DE'));
-        ENTITIES.put("szlig",   new Integer('\u00DF'));
-
-        ENTITIES.put("agrave",  new Integer('\u00E0'));
-        ENTITIES.put("aacute",  new Integer('\u00E1'));
-        ENTITIES.put("acirc",   new Integer('\u00E2'));
-        ENTITIES.put("atilde",  new Integer('\u00E3'));
-        ENTITIES.put("auml",    new Integer('\u00E4'));
-        ENTITIES.put("aring",   new Integer('\u00E5'));
-        ENTITIES.put("aelig",   new Integer('\u00E6'));
-        ENTITIES.put("ccedil",  new Integer('\u00E7'));
-        ENTITIES.put("egrave",  new Integer('\u00E8'));
-        ENTITIES.put("eacute",  new Integer('\u00E9'));
-        ENTITIES.put("ecirc",   new Integer('\u00EA'));
-        ENTITIES.put("euml",    new Integer('\u00EB'));
-        ENTITIES.put("igrave",  new Integer('\u00EC'));
-        ENTITIES.put("iacute",  new Integer('\u00ED'));
-        ENTITIES.put("icirc",   new Integer('\u00EE'));
-        ENTITIES.put("iuml",    new Integer('\u00EF'));
-
-        ENTITIES.put("eth",     new Integer('\u00F0'));
-        ENTITIES.put("ntilde",  new Integer('\u00F1'));
-        ENTITIES.put("ograve",  new Integer('\u00F2'));
-        ENTITIES.put("oacute",  new Integer('\u00F3'));
-        ENTITIES.put("ocirc",   new Integer('\u00F4'));
-        ENTITIES.put("otilde",  new Integer('\u00F5'));
-        ENTITIES.put("ouml",    new Integer('\u00F6'));
-        ENTITIES.put("divide",  new Integer('\u00F7'));
-        ENTITIES.put("oslash",  new Integer('\u00F8'));
-        ENTITIES.put("ugrave",  new Integer('\u00F9'));
-        ENTITIES.put("uacute",  new Integer('\u00FA'));
-        ENTITIES.put("ucirc",   new Integer('\u00FB'));
-        ENTITIES.put("uuml",    new Integer('\u00FC'));
-        ENTITIES.put("yacute",  new Integer('\u00FD'));
-        ENTITIES.put("thorn",   new Integer('\u00FE'));
-        ENTITIES.put("yuml",    new Integer('\u00FF'));
+                        if (overread) {
+                            /*
+                             * The entity took the rest of the block
+                             */
+                            done = w;
+                            continue block;
+                        }
 
-        /*
-         * HTMLspecial
-         */
-        ENTITIES.put("OElig",   new Integer('\u0152'));
-        ENTITIES.put("oelig",   new Integer('\u0153'));
-        ENTITIES.put("Scaron",  new Integer('\u0160'));
-        ENTITIES.put("scaron",  new Integer('\u0161'));
-        ENTITIES.put("Yuml",    new Integer('\u0178'));
-        ENTITIES.put("fnof",    new Integer('\u0192'));
-        ENTITIES.put("circ",    new Integer('\u02C6'));
-        ENTITIES.put("tilde",   new Integer('\u02DC'));
+                        r = sourcePosition - 1;
+                        continue;
+                    }
 
-        /*
-         * HTMLsymbols
-         */
-        ENTITIES.put("Alpha",   new Integer('\u0391'));
-        ENTITIES.put("Beta",    new Integer('\u0392'));
-        ENTITIES.put("Gamma",   new Integer('\u0393'));
-        ENTITIES.put("Delta",   new Integer('\u0394'));
-        ENTITIES.put("Epsilon", new Integer('\u0395'));
-        ENTITIES.put("Zeta",    new Integer('\u0396'));
-        ENTITIES.put("Eta",     new Integer('\u0397'));
-        ENTITIES.put("Theta",   new Integer('\u0398'));
-        ENTITIES.put("Iota",    new Integer('\u0399'));
-        ENTITIES.put("Kappa",   new Integer('\u039A'));
-        ENTITIES.put("Lambda",  new Integer('\u039B'));
-        ENTITIES.put("Mu",      new Integer('\u039C'));
-        ENTITIES.put("Nu",      new Integer('\u039D'));
-        ENTITIES.put("Xi",      new Integer('\u039E'));
-        ENTITIES.put("Omicron", new Integer('\u039F'));
-        ENTITIES.put("Pi",      new Integer('\u03A0'));
-        ENTITIES.put("Rho",     new Integer('\u03A1'));
-        ENTITIES.put("Sigma",   new Integer('\u03A3'));
-        ENTITIES.put("Tau",     new Integer('\u03A4'));
-        ENTITIES.put("Upsilon", new Integer('\u03A5'));
-        ENTITIES.put("Phi",     new Integer('\u03A6'));
-        ENTITIES.put("Chi",     new Integer('\u03A7'));
-        ENTITIES.put("Psi",     new Integer('\u03A8'));
-        ENTITIES.put("Omega",   new Integer('\u03A9'));
-
-        ENTITIES.put("alpha",   new Integer('\u03B1'));
-        ENTITIES.put("beta",    new Integer('\u03B2'));
-        ENTITIES.put("gamma",   new Integer('\u03B3'));
-        ENTITIES.put("delta",   new Integer('\u03B4'));
-        ENTITIES.put("epsilon", new Integer('\u03B5'));
-        ENTITIES.put("zeta",    new Integer('\u03B6'));
-        ENTITIES.put("eta",     new Integer('\u03B7'));
-        ENTITIES.put("theta",   new Integer('\u03B8'));
-        ENTITIES.put("iota",    new Integer('\u03B9'));
-        ENTITIES.put("kappa",   new Integer('\u03BA'));
-        ENTITIES.put("lambda",  new Integer('\u03BB'));
-        ENTITIES.put("mu",      new Integer('\u03BC'));
-        ENTITIES.put("nu",      new Integer('\u03BD'));
-        ENTITIES.put("xi",      new Integer('\u03BE'));
-        ENTITIES.put("omicron", new Integer('\u03BF'));
-        ENTITIES.put("pi",      new Integer('\u03C0'));
-        ENTITIES.put("rho",     new Integer('\u03C1'));
-        ENTITIES.put("sigmaf",  new Integer('\u03C2'));
-        ENTITIES.put("sigma",   new Integer('\u03C3'));
-        ENTITIES.put("tau",     new Integer('\u03C4'));
-        ENTITIES.put("upsilon", new Integer('\u03C5'));
-        ENTITIES.put("phi",     new Integer('\u03C6'));
-        ENTITIES.put("chi",     new Integer('\u03C7'));
-        ENTITIES.put("psi",     new Integer('\u03C8'));
-        ENTITIES.put("omega",   new Integer('\u03C9'));
-        ENTITIES.put("thetasym",new Integer('\u03D1'));
-        ENTITIES.put("upsih",   new Integer('\u03D2'));
-        ENTITIES.put("piv",     new Integer('\u03D6'));
+                    /*
+                     * Not an entity, so go on with the chars after the '&'
+                     */
+                    if (overread) {
+                        in.reset();
+                    }
+                }
 
-        /*
-         * HTMLspecial
-         */
-        ENTITIES.put("ensp",    new Integer('\u2002'));
-        ENTITIES.put("emsp",    new Integer('\u2003'));
-        ENTITIES.put("thinsp",  new Integer('\u2009'));
-        ENTITIES.put("ndash",   new Integer('\u2013'));
-        ENTITIES.put("mdash",   new Integer('\u2014'));
-        ENTITIES.put("lsquo",   new Integer('\u2018'));
-        ENTITIES.put("rsquo",   new Integer('\u2019'));
-        ENTITIES.put("sbquo",   new Integer('\u201A'));
-        ENTITIES.put("ldquo",   new Integer('\u201C'));
-        ENTITIES.put("rdquo",   new Integer('\u201D'));
-        ENTITIES.put("bdquo",   new Integer('\u201E'));
-        ENTITIES.put("dagger",  new Integer('\u2020'));
-        ENTITIES.put("Dagger",  new Integer('\u2021'));
-        ENTITIES.put("bull",    new Integer('\u2022'));
-        ENTITIES.put("hellip",  new Integer('\u2026'));
-        ENTITIES.put("permil",  new Integer('\u2030'));
-        ENTITIES.put("prime",   new Integer('\u2032'));
-        ENTITIES.put("Prime",   new Integer('\u2033'));
-        ENTITIES.put("lsaquo",  new Integer('\u2039'));
-        ENTITIES.put("rsaquo",  new Integer('\u203A'));
+                cbuf[w++] = c;
+            }
 
-        /*
-         *HTMLsymbol
-         */
-        ENTITIES.put("oline",   new Integer('\u203E'));
-        ENTITIES.put("frasl",   new Integer('\u2044'));
+            done = w;
+        }
 
-        /*
-         * HTMLspecial
-         */
-        ENTITIES.put("euro",    new Integer('\u20AC'));
+        source = null;
+        return done - off;
+    }
 
-        /*
-         * HTMLsymbol
-         */
-        ENTITIES.put("image",   new Integer('\u2111'));
-        ENTITIES.put("weierp",  new Integer('\u2118'));
-        ENTITIES.put("real",    new Integer('\u211C'));
-        ENTITIES.put("trade",   new Integer('\u2122'));
-        ENTITIES.put("alefsym", new Integer('\u2135'));
-        ENTITIES.put("larr",    new Integer('\u2190'));
-        ENTITIES.put("uarr",    new Integer('\u2191'));
-        ENTITIES.put("rarr",    new Integer('\u2192'));
-        ENTITIES.put("darr",    new Integer('\u2193'));
-        ENTITIES.put("harr",    new Integer('\u2194'));
-        ENTITIES.put("crarr",   new Integer('\u21B5'));
-        ENTITIES.put("lArr",    new Integer('\u21D0'));
-        ENTITIES.put("uArr",    new Integer('\u21D1'));
-        ENTITIES.put("rArr",    new Integer('\u21D2'));
-        ENTITIES.put("dArr",    new Integer('\u21D3'));
-        ENTITIES.put("hArr",    new Integer('\u21D4'));
-        ENTITIES.put("forall",  new Integer('\u2200'));
-        ENTITIES.put("part",    new Integer('\u2202'));
-        ENTITIES.put("exist",   new Integer('\u2203'));
-        ENTITIES.put("empty",   new Integer('\u2205'));
-        ENTITIES.put("nabla",   new Integer('\u2207'));
-        ENTITIES.put("isin",    new Integer('\u2208'));
-        ENTITIES.put("notin",   new Integer('\u2209'));
-        ENTITIES.put("ni",      new Integer('\u220B'));
-        ENTITIES.put("prod",    new Integer('\u220F'));
-        ENTITIES.put("sum",     new Integer('\u2211'));
-        ENTITIES.put("minus",   new Integer('\u2212'));
-        ENTITIES.put("lowast",  new Integer('\u2217'));
-        ENTITIES.put("radic",   new Integer('\u221A'));
-        ENTITIES.put("prop",    new Integer('\u221D'));
-        ENTITIES.put("infin",   new Integer('\u221E'));
-        ENTITIES.put("ang",     new Integer('\u2220'));
-        ENTITIES.put("and",     new Integer('\u2227'));
-        ENTITIES.put("or",      new Integer('\u2228'));
-        ENTITIES.put("cap",     new Integer('\u2229'));
-        ENTITIES.put("cup",     new Integer('\u222A'));
-        ENTITIES.put("int",     new Integer('\u222B'));
-        ENTITIES.put("there4",  new Integer('\u2234'));
-        ENTITIES.put("sim",     new Integer('\u223C'));
-        ENTITIES.put("cong",    new Integer('\u2245'));
-        ENTITIES.put("asymp",   new Integer('\u2248'));
-        ENTITIES.put("ne",      new Integer('\u2260'));
-        ENTITIES.put("equiv",   new Integer('\u2261'));
-        ENTITIES.put("le",      new Integer('\u2264'));
-        ENTITIES.put("ge",      new Integer('\u2265'));
-        ENTITIES.put("sub",     new Integer('\u2282'));
-        ENTITIES.put("sup",     new Integer('\u2283'));
-        ENTITIES.put("nsub",    new Integer('\u2284'));
-        ENTITIES.put("sube",    new Integer('\u2286'));
-        ENTITIES.put("supe",    new Integer('\u2287'));
-        ENTITIES.put("oplus",   new Integer('\u2295'));
-        ENTITIES.put("otimes",  new Integer('\u2297'));
-        ENTITIES.put("perp",    new Integer('\u22A5'));
-        ENTITIES.put("sdot",    new Integer('\u22C5'));
-        ENTITIES.put("lceil",   new Integer('\u2308'));
-        ENTITIES.put("rceil",   new Integer('\u2309'));
-        ENTITIES.put("lfloor",  new Integer('\u230A'));
-        ENTITIES.put("rfloor",  new Integer('\u230B'));
-        ENTITIES.put("lang",    new Integer('\u2329'));
-        ENTITIES.put("rang",    new Integer('\u232A'));
-        ENTITIES.put("loz",     new Integer('\u25CA'));
-        ENTITIES.put("spades",  new Integer('\u2660'));
-        ENTITIES.put("clubs",   new Integer('\u2663'));
-        ENTITIES.put("hearts",  new Integer('\u2665'));
-        ENTITIES.put("diams",   new Integer('\u2666'));
+    public void close() throws IOException {
+        in.close();
     }
-}
\ No newline at end of file
+
+    /*
+     * HTML Entities, sorted by name, and their chars. See the link
+     * http://en.wikipedia.org/wiki/List_of_XML_and_HTML_character_entity_references
+     */
+    private static final String[] ENTITY_NAMES = {
+        "AElig",    "Aacute",   "Acirc",    "Agrave",   "Alpha",    "Aring",
+        "Atilde",   "Auml",     "Beta",     "Ccedil",   "Chi",      "Dagger",
+        "Delta",    "ETH",      "Eacute",   "Ecirc",    "Egrave",   "Epsilon",
+        "Eta",      "Euml",     "Gamma",    "Iacute",   "Icirc",    "Igrave",
+        "Iota",     "Iuml",     "Kappa",    "Lambda",   "Mu",       "Ntilde",
+        "Nu",       "OElig",    "Oacute",   "Ocirc",    "Ograve",   "Omega",
+        "Omicron",  "Oslash",   "Otilde",   "Ouml",     "Phi",      "Pi",
+        "Prime",    "Psi",      "Rho",      "Scaron",   "Sigma",    "THORN",
+        "Tau",      "Theta",    "Uacute",   "Ucirc",    "Ugrave",   "Upsilon",
+        "Uuml",     "Xi",       "Yacute",   "Yuml",     "Zeta",     "aacute",
+        "acirc",    "acute",    "aelig",    "agrave",   "alefsym",  "alpha",
+        "amp",      "and",      "ang",      "apos",     "aring",    "asymp",
+        "atilde",   "auml",     "bdquo",    "beta",     "brvbar",   "bull",
+        "cap",      "ccedil",   "cedil",    "cent",     "chi",      "circ",
+        "clubs",    "cong",     "copy",     "crarr",    "cup",      "curren",
+        "dArr",     "dagger",   "darr",     "deg",      "delta",    "diams",
+        "divide",   "eacute",   "ecirc",    "egrave",   "empty",    "emsp",
+        "ensp",     "epsilon",  "equiv",    "eta",      "eth",      "euml",
+        "euro",     "exist",    "fnof",     "forall",   "frac12",   "frac14",
+        "frac34",   "frasl",    "gamma",    "ge",       "gt",       "hArr",
+        "harr",     "hearts",   "hellip",   "iacute",   "icirc",    "iexcl",
+        "igrave",   "image",    "infin",    "int",      "iota",     "iquest",
+        "isin",     "iuml",     "kappa",    "lArr",     "lambda",   "lang",
+        "laquo",    "larr",     "lceil",    "ldquo",    "le",       "lfloor",
+        "lowast",   "loz",      "lsaquo",   "lsquo",    "lt",       "macr",
+        "mdash",    "micro",    "middot",   "minus",    "mu",       "nabla",
+        "nbsp",     "ndash",    "ne",       "ni",       "not",      "notin",
+        "nsub",     "ntilde",   "nu",       "oacute",   "ocirc",    "oelig",
+        "ograve",   "oline",    "omega",    "omicron",  "oplus",    "or",
+        "ordf",     "ordm",     "oslash",   "otilde",   "otimes",   "ouml",
+        "para",     "part",     "permil",   "perp",     "phi",      "pi",
+        "piv",      "plusmn",   "pound",    "prime",    "prod",     "prop",
+        "psi",      "quot",     "rArr",     "radic",    "rang",     "raquo",
+        "rarr",     "rceil",    "rdquo",    "real",     "reg",      "rfloor",
+        "rho",      "rsaquo",   "rsquo",    "sbquo",    "scaron",   "sdot",
+        "sect",     "shy",      "sigma",    "sigmaf",   "sim",      "spades",
+        "sub",      "sube",     "sum",      "sup",      "sup1",     "sup2",
+        "sup3",     "supe",     "szlig",    "tau",      "there4",   "theta",
+        "thetasym", "thinsp",   "thorn",    "tilde",    "times",    "trade",
+        "uArr",     "uacute",   "uarr",     "ucirc",    "ugrave",   "uml",
+        "upsih",    "upsilon",  "uuml",     "weierp",   "xi",       "yacute",
+        "yen",      "yuml",     "zeta"
+    };
+
+    private static final char[] ENTITY_CHARS = {
+        '\u00C6',   '\u00C1',   '\u00C2',   '\u00C0',   '\u0391',   '\u00C5',
+        '\u00C3',   '\u00C4',   '\u0392',   '\u00C7',   '\u03A7',   '\u2021',
+        '\u0394',   '\u00D0',   '\u00C9',   '\u00CA',   '\u00C8',   '\u0395',
+        '\u0397',   '\u00CB',   '\u0393',   '\u00CD',   '\u00CE',   '\u00CC',
+        '\u0399',   '\u00CF',   '\u039A',   '\u039B',   '\u039C',   '\u00D1',
+        '\u039D',   '\u0152',   '\u00D3',   '\u00D4',   '\u00D2',   '\u03A9',
+        '\u039F',   '\u00D8',   '\u00D5',   '\u00D6',   '\u03A6',   '\u03A0',
+        '\u2033',   '\u03A8',   '\u03A1',   '\u0160',   '\u03A3',   '\u00DE',
+        '\u03A4',   '\u0398',   '\u00DA',   '\u00DB',   '\u00D9',   '\u03A5',
+        '\u00DC',   '\u039E',   '\u00DD',   '\u0178',   '\u0396',   '\u00E1',
+        '\u00E2',   '\u00B4',   '\u00E6',   '\u00E0',   '\u2135',   '\u03B1',
+        '&',        '\u2227',   '\u2220',   '\'',       '\u00E5',   '\u2248',
+        '\u00E3',   '\u00E4',   '\u201E',   '\u03B2',   '\u00A6',   '\u2022',
+        '\u2229',   '\u00E7',   '\u00B8',   '\u00A2',   '\u03C7',   '\u02C6',
+        '\u2663',   '\u2245',   '\u00A9',   '\u21B5',   '\u222A',   '\u00A4',
+        '\u21D3',   '\u2020',   '\u2193',   '\u00B0',   '\u03B4',   '\u2666',
+        '\u00F7',   '\u00E9',   '\u00EA',   '\u00E8',   '\u2205',   '\u2003',
+        '\u2002',   '\u03B5',   '\u2261',   '\u03B7',   '\u00F0',   '\u00EB',
+        '\u20AC',   '\u2203',   '\u0192',   '\u2200',   '\u00BD',   '\u00BC',
+        '\u00BE',   '\u2044',   '\u03B3',   '\u2265',   '>',        '\u21D4',
+        '\u2194',   '\u2665',   '\u2026',   '\u00ED',   '\u00EE',   '\u00A1',
+        '\u00EC',   '\u2111',   '\u221E',   '\u222B',   '\u03B9',   '\u00BF',
+        '\u2208',   '\u00EF',   '\u03BA',   '\u21D0',   '\u03BB',   '\u2329',
+        '\u00AB',   '\u2190',   '\u2308',   '\u201C',   '\u2264',   '\u230A',
+        '\u2217',   '\u25CA',   '\u2039',   '\u2018',   '<',        '\u00AF',
+        '\u2014',   '\u00B5',   '\u00B7',   '\u2212',   '\u03BC',   '\u2207',
+        '\u00A0',   '\u2013',   '\u2260',   '\u220B',   '\u00AC',   '\u2209',
+        '\u2284',   '\u00F1',   '\u03BD',   '\u00F3',   '\u00F4',   '\u0153',
+        '\u00F2',   '\u203E',   '\u03C9',   '\u03BF',   '\u2295',   '\u2228',
+        '\u00AA',   '\u00BA',   '\u00F8',   '\u00F5',   '\u2297',   '\u00F6',
+        '\u00B6',   '\u2202',   '\u2030',   '\u22A5',   '\u03C6',   '\u03C0',
+        '\u03D6',   '\u00B1',   '\u00A3',   '\u2032',   '\u220F',   '\u221D',
+        '\u03C8',   '"',        '\u21D2',   '\u221A',   '\u232A',   '\u00BB',
+        '\u2192',   '\u2309',   '\u201D',   '\u211C',   '\u00AE',   '\u230B',
+        '\u03C1',   '\u203A',   '\u2019',   '\u201A',   '\u0161',   '\u22C5',
+        '\u00A7',   '\u00AD',   '\u03C3',   '\u03C2',   '\u223C',   '\u2660',
+        '\u2282',   '\u2286',   '\u2211',   '\u2283',   '\u00B9',   '\u00B2',
+        '\u00B3',   '\u2287',   '\u00DF',   '\u03C4',   '\u2234',   '\u03B8',
+        '\u03D1',   '\u2009',   '\u00FE',   '\u02DC',   '\u00D7',   '\u2122',
+        '\u21D1',   '\u00FA',   '\u2191',   '\u00FB',   '\u00F9',   '\u00A8',
+        '\u03D2',   '\u03C5',   '\u00FC',   '\u2118',   '\u03BE',   '\u00FD',
+        '\u00A5',   '\u00FF',   '\u03B6'
+    };
+}
@@ -0,0 +1,507 @@
+package org.albite.lang;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.albite.io.html.HTMLSubstitues;
+
+/**
+ * Holds the text of a chapter. As long as every char of the text has an
+ * 8-bit code, the text is kept in a byte[], i.e. using half the memory a
+ * char[] would. The first char without a code switches the buffer to a
+ * char[] for good.
+ *
+ * The text is kept in fixed-size blocks, so it never needs to be
+ * reallocated as it grows, nor copied to an exact-size array when it's
+ * complete.
+ *
+ * The 8-bit codes are those of Latin-1, except that 0x80-0x9F are used for
+ * the typographic chars from Windows-1252 (quotes, dashes, etc.) and 0x01
+ * and 0x02 are used for the markers of the HTML tags.
+ *
+ * @author albus
+ */
+public final class TextBuffer implements HTMLSubstitues {
+
+    /*
+     * The chars Windows-1252 has at 0x80-0x9F. The positions it leaves
+     * undefined are kept as they are.
+     */
+    private static final char[] CP1252          = {
+        '\u20AC', '\u0081', '\u201A', '\u0192', '\u201E', '\u2026', '\u2020', '\u2021',
+        '\u02C6', '\u2030', '\u0160', '\u2039', '\u0152', '\u008D', '\u017D', '\u008F',
+        '\u0090', '\u2018', '\u2019', '\u201C', '\u201D', '\u2022', '\u2013', '\u2014',
+        '\u02DC', '\u2122', '\u0161', '\u203A', '\u0153', '\u009D', '\u017E', '\u0178'
+    };
+
+    /*
+     * The char for each 8-bit code
+     */
+    private static final char[] CHARS           = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            CHARS[i] = (char) i;
+        }
+
+        for (int i = 0; i < CP1252.length; i++) {
+            CHARS[0x80 + i] = CP1252[i];
+        }
+
+        CHARS[0x01] = START_TAG_CHAR;
+        CHARS[0x02] = END_TAG_CHAR;
+    }
+
+    /*
+     * The text is stored in blocks of that many chars, so that it can grow
+     * without reallocating and copying what's already there
+     */
+    private static final int    BLOCK_SHIFT     = 12;
+    private static final int    BLOCK_SIZE      = 1 << BLOCK_SHIFT;
+    private static final int    BLOCK_MASK      = BLOCK_SIZE - 1;
+
+    /*
+     * Only one of them is used at a time
+     */
+    private byte[][]            bytes;
+    private char[][]            chars;
+
+    private int                 blocks;
+    private int                 length;
+
+    /**
+     * Creates an empty buffer.
+     */
+    public TextBuffer() {
+        bytes = new byte[16][];
+    }
+
+    /**
+     * Creates a buffer holding the given text.
+     *
+     * @param text the text
+     */
+    public TextBuffer(final char[] text) {
+        this();
+        append(text, 0, text.length);
+    }
+
+    public final int length() {
+        return length;
+    }
+
+    /**
+     * @return true, if the text is stored as bytes
+     */
+    public final boolean isCompact() {
+        return bytes != null;
+    }
+
+    /**
+     * @return the number of bytes taken by the text
+     */
+    public final int getMemorySize() {
+        int size = 0;
+
+        if (bytes != null) {
+            for (int i = 0; i < blocks; i++) {
+                size += bytes[i].length;
+            }
+        } else {
+            for (int i = 0; i < blocks; i++) {
+                size += chars[i].length * 2;
+            }
+        }
+
+        return size;
+    }
+
+    public final char charAt(final int index) {
+        final byte[][] b = bytes;
+        if (b != null) {
+            return CHARS[b[index >> BLOCK_SHIFT][index & BLOCK_MASK] & 0xFF];
+        }
+        return chars[index >> BLOCK_SHIFT][index & BLOCK_MASK];
+    }
+
+    /**
+     * Finds a char, looking through the blocks directly.
+     *
+     * @param c the char to look for
+     * @param from the index to start from
+     * @param to the index to stop at
+     * @return the index of the first <code>c</code> in
+     * [<code>from</code>, <code>to</code>), or -1, if there is none
+     */
+    public final int indexOf(final char c, int from, final int to) {
+        final byte[][] b = bytes;
+        final int code = (b != null ? encode(c) : c);
+
+        if (code < 0) {
+            return -1;
+        }
+
+        while (from < to) {
+            final int block = from >> BLOCK_SHIFT;
+            final int start = from & BLOCK_MASK;
+            final int end = Math.min(BLOCK_SIZE, start + to - from);
+
+            if (b != null) {
+                final byte[] blockBytes = b[block];
+                final byte target = (byte) code;
+
+                for (int i = start; i < end; i++) {
+                    if (blockBytes[i] == target) {
+                        return from + i - start;
+                    }
+                }
+            } else {
+                final char[] blockChars = chars[block];
+
+                for (int i = start; i < end; i++) {
+                    if (blockChars[i] == c) {
+                        return from + i - start;
+                    }
+                }
+            }
+
+            from += end - start;
+        }
+
+        return -1;
+    }
+
+    public final void append(final char[] text, int offset, final int len) {
+        final int end = offset + len;
+
+        while (offset < end) {
+            final int block = length >> BLOCK_SHIFT;
+            final int pos = length & BLOCK_MASK;
+            final int n = Math.min(BLOCK_SIZE - pos, end - offset);
+
+            ensureBlock(block);
+
+            if (bytes != null) {
+                final byte[] b = bytes[block];
+                int code;
+                int i = 0;
+
+                for (; i < n; i++) {
+                    code = encode(text[offset + i]);
+
+                    if (code < 0) {
+                        break;
+                    }
+
+                    b[pos + i] = (byte) code;
+                }
+
+                length += i;
+                offset += i;
+
+                if (i < n) {
+                    widen();
+                }
+            } else {
+                System.arraycopy(text, offset, chars[block], pos, n);
+                length += n;
+                offset += n;
+            }
+        }
+    }
+
+    /**
+     * Frees the unused capacity of the last block.
+     */
+    public final void trim() {
+        final int last = length >> BLOCK_SHIFT;
+        final int size = length & BLOCK_MASK;
+
+        if (last >= blocks) {
+            return;
+        }
+
+        if (bytes != null) {
+            final byte[] b = new byte[size];
+            System.arraycopy(bytes[last], 0, b, 0, size);
+            bytes[last] = b;
+        } else {
+            final char[] c = new char[size];
+            System.arraycopy(chars[last], 0, c, 0, size);
+            chars[last] = c;
+        }
+    }
+
+    public final char[] getChars(final int offset, final int len) {
+        final char[] res = new char[len];
+        copy(offset, res, 0, len);
+        return res;
+    }
+
+    /**
+     * Copies chars of the buffer into an array.
+     */
+    public final void getChars(final int offset, final int len,
+            final char[] dst, final int dstOffset) {
+        copy(offset, dst, dstOffset, len);
+    }
+
+    public final String getString(final int offset, final int len) {
+        return new String(getChars(offset, len));
+    }
+
+    public final void appendTo(
+            final StringBuffer buf, int offset, final int len) {
+
+        final int end = offset + len;
+
+        while (offset < end) {
+            final int block = offset >> BLOCK_SHIFT;
+            final int pos = offset & BLOCK_MASK;
+            final int n = Math.min(BLOCK_SIZE - pos, end - offset);
+
+            if (bytes != null) {
+                final byte[] b = bytes[block];
+                for (int i = pos; i < pos + n; i++) {
+                    buf.append(CHARS[b[i] & 0xFF]);
+                }
+            } else {
+                buf.append(chars[block], pos, n);
+            }
+
+            offset += n;
+        }
+    }
+
+    /**
+     * Writes the text, one byte per char if the buffer is compact,
+     * two bytes per char otherwise.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public final void write(final DataOutputStream out) throws IOException {
+        final byte[] buf = (bytes != null ? null : new byte[BLOCK_SIZE * 2]);
+
+        for (int block = 0, pos = 0; pos < length; block++) {
+            final int n = Math.min(BLOCK_SIZE, length - pos);
+
+            if (bytes != null) {
+                out.write(bytes[block], 0, n);
+            } else {
+                final char[] c = chars[block];
+
+                for (int i = 0, j = 0; i < n; i++, j += 2) {
+                    buf[j]     = (byte) (c[i] >> 8);
+                    buf[j + 1] = (byte) c[i];
+                }
+
+                out.write(buf, 0, n * 2);
+            }
+
+            pos += n;
+        }
+    }
+
+    /**
+     * Reads text written by {@link #write(DataOutputStream)}.
+     *
+     * @param in
+     * @param length the number of chars
+     * @param compact if the chars were written as bytes
+     * @return the new buffer
+     * @throws IOException
+     */
+    public static TextBuffer read(
+            final DataInputStream in,
+            final int length,
+            final boolean compact) throws IOException {
+
+        final TextBuffer res = new TextBuffer();
+
+        if (!compact) {
+            res.widen();
+        }
+
+        final byte[] buf = (compact ? null : new byte[BLOCK_SIZE * 2]);
+
+        for (int block = 0, pos = 0; pos < length; block++) {
+            final int n = Math.min(BLOCK_SIZE, length - pos);
+
+            /*
+             * The last block is allocated exactly as big as needed
+             */
+            res.addBlock(n);
+
+            if (compact) {
+                in.readFully(res.bytes[block], 0, n);
+            } else {
+                final char[] c = res.chars[block];
+                in.readFully(buf, 0, n * 2);
+
+                for (int i = 0, j = 0; i < n; i++, j += 2) {
+                    c[i] = (char)
+                            (((buf[j] & 0xFF) << 8) | (buf[j + 1] & 0xFF));
+                }
+            }
+
+            pos += n;
+            res.length = pos;
+        }
+
+        return res;
+    }
+
+    /**
+     * @return the number of bytes {@link #write(DataOutputStream)}
+     * would write
+     */
+    public final int getWrittenSize() {
+        return (bytes != null ? length : length * 2);
+    }
+
+    private void copy(
+            int offset, final char[] dst, int dstOffset, final int len) {
+
+        final int end = offset + len;
+
+        while (offset < end) {
+            final int block = offset >> BLOCK_SHIFT;
+            final int pos = offset & BLOCK_MASK;
+            final int n = Math.min(BLOCK_SIZE - pos, end - offset);
+
+            if (bytes != null) {
+                final byte[] b = bytes[block];
+                for (int i = 0; i < n; i++) {
+                    dst[dstOffset + i] = CHARS[b[pos + i] & 0xFF];
+                }
+            } else {
+                System.arraycopy(chars[block], pos, dst, dstOffset, n);
+            }
+
+            offset += n;
+            dstOffset += n;
+        }
+    }
+
+    /**
+     * Makes sure the given block exists and has room for a full block
+     * of chars. Only the last block may be smaller, if it's been trimmed.
+     */
+    private void ensureBlock(final int block) {
+        if (block == blocks) {
+            addBlock(BLOCK_SIZE);
+            return;
+        }
+
+        if (bytes != null) {
+            if (bytes[block].length < BLOCK_SIZE) {
+                final byte[] b = new byte[BLOCK_SIZE];
+                System.arraycopy(bytes[block], 0, b, 0, bytes[block].length);
+                bytes[block] = b;
+            }
+        } else {
+            if (chars[block].length < BLOCK_SIZE) {
+                final char[] c = new char[BLOCK_SIZE];
+                System.arraycopy(chars[block], 0, c, 0, chars[block].length);
+                chars[block] = c;
+            }
+        }
+    }
+
+    private void addBlock(final int size) {
+        if (bytes != null) {
+            if (blocks == bytes.length) {
+                final byte[][] b = new byte[blocks * 2][];
+                System.arraycopy(bytes, 0, b, 0, blocks);
+                bytes = b;
+            }
+            bytes[blocks] = new byte[size];
+        } else {
+            if (blocks == chars.length) {
+                final char[][] c = new char[blocks * 2][];
+                System.arraycopy(chars, 0, c, 0, blocks);
+                chars = c;
+            }
+            chars[blocks] = new char[size];
+        }
+
+        blocks++;
+    }
+
+    /**
+     * Switches to a char[] storage. The bytes are dropped only after all
+     * blocks have been converted, so running out of memory on the way
+     * leaves the buffer as it was.
+     */
+    private void widen() {
+        final byte[][] b = bytes;
+        final char[][] c = new char[b.length][];
+
+        for (int i = 0; i < blocks; i++) {
+            final byte[] block = b[i];
+            final char[] wide = new char[block.length];
+
+            for (int j = 0; j < block.length; j++) {
+                wide[j] = CHARS[block[j] & 0xFF];
+            }
+
+            c[i] = wide;
+        }
+
+        chars = c;
+        bytes = null;
+    }
+
+    /**
+     * @param c
+     * @return the 8-bit code of the char or -1, if it has none
+     */
+    private static int encode(final char c) {
+        if (c < 0x80) {
+            if (c == 0x01 || c == 0x02) {
+                return -1;
+            }
+            return c;
+        }
+
+        if (c >= 0xA0 && c <= 0xFF) {
+            return c;
+        }
+
+        switch (c) {
+            case START_TAG_CHAR:    return 0x01;
+            case END_TAG_CHAR:      return 0x02;
+
+            case '\u20AC':          return 0x80;
+            case '\u201A':          return 0x82;
+            case '\u0192':          return 0x83;
+            case '\u201E':          return 0x84;
+            case '\u2026':          return 0x85;
+            case '\u2020':          return 0x86;
+            case '\u2021':          return 0x87;
+            case '\u02C6':          return 0x88;
+            case '\u2030':          return 0x89;
+            case '\u0160':          return 0x8A;
+            case '\u2039':          return 0x8B;
+            case '\u0152':          return 0x8C;
+            case '\u017D':          return 0x8E;
+            case '\u2018':          return 0x91;
+            case '\u2019':          return 0x92;
+            case '\u201C':          return 0x93;
+            case '\u201D':          return 0x94;
+            case '\u2022':          return 0x95;
+            case '\u2013':          return 0x96;
+            case '\u2014':          return 0x97;
+            case '\u02DC':          return 0x98;
+            case '\u2122':          return 0x99;
+            case '\u0161':          return 0x9A;
+            case '\u203A':          return 0x9B;
+            case '\u0153':          return 0x9C;
+            case '\u017E':          return 0x9E;
+            case '\u0178':          return 0x9F;
+        }
+
+        return -1;
+    }
+}
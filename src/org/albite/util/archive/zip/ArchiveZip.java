@@ -31,6 +31,20 @@ public class ArchiveZip implements Archive {
         zip.close();
     }
 
+    /**
+     * Sets how many checkpoints may be kept for skipping into the
+     * entries, each taking ZipFile.CHECKPOINT_SIZE bytes.
+     *
+     * @param max the number of checkpoints; 0 for none at all
+     */
+    public final void setMaxCheckpoints(final int max) {
+        zip.setMaxCheckpoints(max);
+    }
+
+    public final void dropCheckpoints() {
+        zip.dropCheckpoints();
+    }
+
     public final ArchiveEntry getEntry(final String name) {
         ZipEntry entry = zip.getEntry(name);
 
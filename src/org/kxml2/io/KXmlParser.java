@@ -94,9 +94,103 @@ public class KXmlParser implements XmlPullParser {
     private boolean unresolved;
     private boolean token;
 
+    /*
+     * Element and attribute names, so that a name that comes again is not
+     * made into a new String. The names are hashed by their chars, with
+     * open addressing. Once the pool is full, new names are not kept.
+     */
+    static final private int NAME_POOL_SIZE = 256;
+    static final private int NAME_POOL_LIMIT = NAME_POOL_SIZE * 3 / 4;
+
+    /*
+     * Names that are found in most of the files, given as literals, so that
+     * they are the same instances as the literals in the code that
+     * compares them
+     */
+    static final private String[] COMMON_NAMES = {
+        "xmlns", "version", "encoding", "id", "href", "name", "content",
+        "container", "rootfiles", "rootfile", "full-path", "media-type",
+        "package", "metadata", "dc-metadata", "manifest", "item",
+        "spine", "itemref", "idref", "toc", "guide", "reference", "type",
+        "title", "creator", "language", "meta", "dc", "opf",
+    };
+
+    private final String[] namePool = new String[NAME_POOL_SIZE];
+    private final int[] namePoolHashes = new int[NAME_POOL_SIZE];
+    private int namePoolCount;
+
+    /**
+     * The parser may be used for any number of documents, by calling
+     * setInput() again. Its buffers and the names it has read are kept.
+     */
     public KXmlParser() {
         srcBuf =
             new char[Runtime.getRuntime().freeMemory() >= 1048576 ? 8192 : 128];
+
+        for (int i = 0; i < COMMON_NAMES.length; i++) {
+            final String n = COMMON_NAMES[i];
+            final char[] chars = n.toCharArray();
+            poolName(chars, 0, chars.length, n.hashCode(), n);
+        }
+    }
+
+    /**
+     * Finds the name made of the chars in the pool, adding it, if it's
+     * not there.
+     *
+     * @param hash the hash of the chars, as in String.hashCode()
+     * @param name the name as a String or null, if it's to be made
+     */
+    private final String poolName(
+            char[] buf, int start, int len, int hash, String name) {
+
+        final int mask = NAME_POOL_SIZE - 1;
+        int index = (hash ^ (hash >>> 8)) & mask;
+        String n;
+
+        while ((n = namePool[index]) != null) {
+            if (namePoolHashes[index] == hash && n.length() == len) {
+                int i = 0;
+                while (i < len && n.charAt(i) == buf[start + i])
+                    i++;
+                if (i == len)
+                    return n;
+            }
+
+            index = (index + 1) & mask;
+        }
+
+        if (name == null)
+            name = new String(buf, start, len);
+
+        if (namePoolCount < NAME_POOL_LIMIT) {
+            namePool[index] = name;
+            namePoolHashes[index] = hash;
+            namePoolCount++;
+        }
+
+        return name;
+    }
+
+    /**
+     * Pools a part of a name, i.e. its prefix or its local part.
+     */
+    private final String poolName(String s, int start, int end) {
+        final int len = end - start;
+
+        if (txtPos + len > txtBuf.length) {
+            return s.substring(start, end);
+        }
+
+        final char[] buf = txtBuf;
+        int hash = 0;
+
+        s.getChars(start, end, buf, txtPos);
+
+        for (int i = txtPos; i < txtPos + len; i++)
+            hash = 31 * hash + buf[i];
+
+        return poolName(buf, txtPos, len, hash, null);
     }
 
     private final boolean isProp(String n1, boolean prop, String n2) {
@@ -120,8 +214,8 @@ public class KXmlParser implements XmlPullParser {
             String prefix;
 
             if (cut != -1) {
-                prefix = attrName.substring(0, cut);
-                attrName = attrName.substring(cut + 1);
+                prefix = poolName(attrName, 0, cut);
+                attrName = poolName(attrName, cut + 1, attrName.length());
             }
             else if (attrName.equals("xmlns")) {
                 prefix = attrName;
@@ -169,9 +263,9 @@ public class KXmlParser implements XmlPullParser {
                         "illegal attribute name: " + attrName + " at " + this);
 
                 else if (cut != -1) {
-                    String attrPrefix = attrName.substring(0, cut);
+                    String attrPrefix = poolName(attrName, 0, cut);
 
-                    attrName = attrName.substring(cut + 1);
+                    attrName = poolName(attrName, cut + 1, attrName.length());
 
                     String attrNs = getNamespace(attrPrefix);
 
@@ -205,8 +299,8 @@ public class KXmlParser implements XmlPullParser {
             error("illegal tag name: " + name);
 
         if (cut != -1) {
-            prefix = name.substring(0, cut);
-            name = name.substring(cut + 1);
+            prefix = poolName(name, 0, cut);
+            name = poolName(name, cut + 1, name.length());
         }
 
         this.namespace = getNamespace(prefix);
@@ -910,8 +1004,12 @@ public class KXmlParser implements XmlPullParser {
             && !relaxed)
             error("name expected");
 
+        int hash = 0;
+
         do {
-            push(read());
+            c = read();
+            hash = 31 * hash + c;
+            push(c);
             c = peek(0);
         }
         while ((c >= 'a' && c <= 'z')
@@ -923,7 +1021,7 @@ public class KXmlParser implements XmlPullParser {
             || c == '.'
             || c >= 0x0b7);
 
-        String result = get(pos);
+        String result = poolName(txtBuf, pos, txtPos - pos, hash, null);
         txtPos = pos;
         return result;
     }
@@ -961,8 +1059,16 @@ public class KXmlParser implements XmlPullParser {
         srcCount = 0;
         peekCount = 0;
         depth = 0;
+        txtPos = 0;
+        wasCR = false;
+        stackMismatch = 0;
+        error = null;
+
+        if (entityMap == null)
+            entityMap = new Hashtable();
+        else
+            entityMap.clear();
 
-        entityMap = new Hashtable();
         entityMap.put("amp", "&");
         entityMap.put("apos", "'");
         entityMap.put("gt", ">");